@@ -0,0 +1,175 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Periodically saves a device's learned state to a local file, so a
+ * restarted device can resume forwarding right away instead of relearning
+ * everything. Each checkpoint is written to a temporary file, flushed to
+ * disk, and renamed over the previous checkpoint, so a crash never leaves a
+ * partially written file behind.
+ * <p>
+ * A checkpoint contains a header (magic number, format version, hostname,
+ * and the time it was written) followed by state written by the device.
+ * @author Aaron Gember-Jacobson
+ */
+public class Checkpoint implements Runnable
+{
+	/** Identifies checkpoint files ("VNCP") */
+	private static final int MAGIC = 0x564e4350;
+
+	/** Version of the checkpoint format */
+	private static final short VERSION = 2;
+
+	/** How often (in milliseconds) to write a checkpoint */
+	public static final int INTERVAL = 5 * 1000;
+
+	/** Device whose state is saved */
+	private Device device;
+
+	/** Name of the checkpoint file */
+	private String filename;
+
+	/** Thread for periodically writing checkpoints */
+	private Thread writeThread;
+
+	/**
+	 * Create a checkpoint for a device.
+	 * @param device device whose state is saved
+	 * @param filename name of the checkpoint file
+	 */
+	public Checkpoint(Device device, String filename)
+	{
+		this.device = device;
+		this.filename = filename;
+	}
+
+	/**
+	 * Start writing checkpoints periodically.
+	 */
+	public void start()
+	{
+		this.writeThread = new Thread(this);
+		this.writeThread.setDaemon(true);
+		this.writeThread.start();
+	}
+
+	/**
+	 * Every checkpoint interval: save the device's state.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{ Thread.sleep(INTERVAL); }
+			catch (InterruptedException e)
+			{ break; }
+
+			this.write();
+		}
+	}
+
+	/**
+	 * Save the device's state, replacing the previous checkpoint.
+	 * @return true if the checkpoint was written, otherwise false
+	 */
+	public boolean write()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeUTF(this.device.getHost());
+			out.writeLong(System.currentTimeMillis());
+			this.device.writeState(out);
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error saving state: " + e.toString());
+			return false;
+		}
+
+		File target = new File(this.filename);
+		File temp = new File(this.filename + ".tmp");
+		try
+		{
+			FileOutputStream fileStream = new FileOutputStream(temp);
+			try
+			{
+				bytes.writeTo(fileStream);
+				fileStream.getFD().sync();
+			}
+			finally
+			{ fileStream.close(); }
+			Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing checkpoint " + this.filename
+					+ ": " + e.toString());
+			temp.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restore the device's state from the checkpoint file, aging it by the
+	 * time since the checkpoint was written.
+	 * @return true if state was restored, otherwise false
+	 */
+	public boolean restore()
+	{
+		File file = new File(this.filename);
+		if (!file.exists())
+		{
+			System.err.println("No checkpoint " + this.filename
+					+ ", starting cold");
+			return false;
+		}
+
+		try
+		{
+			byte[] data = Files.readAllBytes(file.toPath());
+			DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(data));
+			if (in.readInt() != MAGIC || in.readShort() != VERSION)
+			{
+				System.err.println("Unrecognized checkpoint " + this.filename);
+				return false;
+			}
+			String host = in.readUTF();
+			if (!host.equals(this.device.getHost()))
+			{
+				System.err.println("Checkpoint " + this.filename + " is for "
+						+ host + ", not " + this.device.getHost());
+				return false;
+			}
+			long age = Math.max(0, System.currentTimeMillis() - in.readLong());
+			this.device.readState(in, age);
+			System.out.println(String.format(
+					"Restored state from %s (%d ms old)", this.filename, age));
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading checkpoint " + this.filename
+					+ ": " + e.toString());
+			return false;
+		}
+	}
+}
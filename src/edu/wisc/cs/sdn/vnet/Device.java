@@ -1,10 +1,21 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+import edu.wisc.cs.sdn.vnet.stats.DropReason;
+import edu.wisc.cs.sdn.vnet.stats.IfaceCounters;
+import edu.wisc.cs.sdn.vnet.stats.MetricsServer;
+import edu.wisc.cs.sdn.vnet.stats.Outcome;
+import edu.wisc.cs.sdn.vnet.stats.PacketLatency;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
 /**
@@ -24,6 +35,12 @@ public abstract class Device
 	
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
+
+	/** Histograms of the time taken to process each packet */
+	private PacketLatency latency;
+
+	/** Single thread that runs all control-plane work */
+	private ScheduledExecutorService controlPlane;
 	
 	/**
 	 * Creates a device.
@@ -36,6 +53,7 @@ public abstract class Device
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.latency = new PacketLatency(host);
 	}
 	
 	/**
@@ -65,6 +83,12 @@ public abstract class Device
 	public Map<String,Iface> getInterfaces()
 	{ return this.interfaces; }
 	
+	/**
+	 * @return histograms of the time taken to process each packet
+	 */
+	public PacketLatency getLatency()
+	{ return this.latency; }
+
 	/**
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
@@ -72,13 +96,41 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Stop all control-plane work, and close the PCAP dump file for the
+	 * device, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		synchronized(this)
+		{
+			if (this.controlPlane != null)
+			{ this.controlPlane.shutdownNow(); }
+		}
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
+
+	/**
+	 * @return single thread that runs all control-plane work; created on
+	 *         first use
+	 */
+	public synchronized ScheduledExecutorService getControlPlane()
+	{
+		if (null == this.controlPlane)
+		{
+			final String name = this.getHost() + "-control";
+			this.controlPlane = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						public Thread newThread(Runnable r)
+						{
+							Thread thread = new Thread(r, name);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return this.controlPlane;
+	}
 	
 	/**
 	 * Add an interface to the device.
@@ -86,7 +138,7 @@ public abstract class Device
 	 */
 	public Iface addInterface(String ifaceName)
 	{
-		Iface iface = new Iface(ifaceName);
+		Iface iface = new Iface(ifaceName, this.interfaces.size());
 		this.interfaces.put(ifaceName, iface);
 		return iface;
 	}
@@ -108,7 +160,145 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		if (!this.vnsComm.sendPacket(etherPacket, iface.getName()))
+		{
+			iface.getCounters().dropped(DropReason.SEND_ERROR);
+			return false;
+		}
+		this.latency.sent();
+		return true;
+	}
+
+	/**
+	 * Send an already serialized Ethernet frame on a specific interface.
+	 * @param frame buffer containing the frame
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int length, Iface iface)
+	{
+		if (!this.vnsComm.sendFrame(frame, length, iface.getName()))
+		{
+			iface.getCounters().dropped(DropReason.SEND_ERROR);
+			return false;
+		}
+		this.latency.sent();
+		return true;
+	}
+
+	/**
+	 * Send an already serialized Ethernet frame on several interfaces,
+	 * serializing the command to the server only once.
+	 * @param frame buffer containing the frame
+	 * @param length length of the frame
+	 * @param ifaces interfaces on which to send the frame
+	 * @param count number of interfaces on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int length, Iface[] ifaces,
+			int count)
+	{
+		if (!this.vnsComm.sendFrame(frame, length, ifaces, count))
+		{
+			for (int i = 0; i < count; i++)
+			{ ifaces[i].getCounters().dropped(DropReason.SEND_ERROR); }
+			return false;
+		}
+		if (count > 0)
+		{ this.latency.sent(); }
+		return true;
+	}
+
+	/**
+	 * Record that a packet received on an interface was dropped.
+	 * @param reason why the packet was dropped
+	 * @param inIface the interface on which the packet was received
+	 */
+	protected void drop(DropReason reason, Iface inIface)
+	{
+		inIface.getCounters().dropped(reason);
+		this.latency.setOutcome(Outcome.DROPPED);
+	}
+
+	/**
+	 * Record what the device did with the packet being processed.
+	 * @param outcome what the device did with the packet
+	 */
+	protected void setOutcome(Outcome outcome)
+	{ this.latency.setOutcome(outcome); }
+
+	/**
+	 * Write the device's learned state to a checkpoint; by default, the
+	 * device has no state to save.
+	 * @param out stream to write to
+	 */
+	public void writeState(DataOutputStream out) throws IOException
+	{ }
+
+	/**
+	 * Restore the device's learned state from a checkpoint written by
+	 * writeState; by default, the device has no state to restore.
+	 * @param in stream to read from
+	 * @param age time (in milliseconds) since the checkpoint was written
+	 */
+	public void readState(DataInputStream in, long age) throws IOException
+	{ }
+
+	/**
+	 * Append the device's metrics in the Prometheus text format.
+	 * @param sb buffer to append to
+	 */
+	public void appendMetrics(StringBuilder sb)
+	{
+		String[][] counters = {
+			{ "vnet_iface_rx_packets_total", "Packets received on an interface" },
+			{ "vnet_iface_rx_bytes_total", "Bytes received on an interface" },
+			{ "vnet_iface_tx_packets_total", "Packets sent on an interface" },
+			{ "vnet_iface_tx_bytes_total", "Bytes sent on an interface" }
+		};
+		for (int i = 0; i < counters.length; i++)
+		{
+			MetricsServer.header(sb, counters[i][0], "counter", counters[i][1]);
+			for (Iface iface : this.interfaces.values())
+			{
+				IfaceCounters ifaceCounters = iface.getCounters();
+				long value;
+				switch (i)
+				{
+				case 0: value = ifaceCounters.getRxPackets(); break;
+				case 1: value = ifaceCounters.getRxBytes(); break;
+				case 2: value = ifaceCounters.getTxPackets(); break;
+				default: value = ifaceCounters.getTxBytes(); break;
+				}
+				MetricsServer.sample(sb, counters[i][0], new String[] {
+						"device", this.host, "iface", iface.getName() }, value);
+			}
+		}
+
+		MetricsServer.header(sb, "vnet_iface_drops_total", "counter",
+				"Packets dropped, by interface and reason");
+		for (Iface iface : this.interfaces.values())
+		{
+			for (DropReason reason : DropReason.values())
+			{
+				MetricsServer.sample(sb, "vnet_iface_drops_total",
+						new String[] { "device", this.host,
+						"iface", iface.getName(), "reason", reason.getLabel() },
+						iface.getCounters().getDrops(reason));
+			}
+		}
+
+		this.latency.appendMetrics(sb);
+	}
+
+	/**
+	 * @return true if only the Ethernet header of received frames should be
+	 *         decoded, leaving the payload as raw bytes
+	 */
+	public boolean isHeaderOnly()
+	{ return false; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
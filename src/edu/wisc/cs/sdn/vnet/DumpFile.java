@@ -7,6 +7,8 @@ import java.io.IOException;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+import edu.wisc.cs.sdn.vnet.events.PcapFlushEvent;
+
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
@@ -78,20 +80,39 @@ public class DumpFile
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
+		this.dump(buf, buf.length);
+	}
+	
+	/**
+	 * Log an already serialized frame.
+	 * @param buf buffer containing the frame
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] buf, int length)
+	{
+		PcapFlushEvent event = new PcapFlushEvent();
+		event.begin();
+
 		int sec = (int)(System.currentTimeMillis()/1000);
 		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(length);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, 0, length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.bytes = length + 16;
+			event.commit();
+		}
 	}
 	
 	public void close()
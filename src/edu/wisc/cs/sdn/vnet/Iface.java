@@ -3,6 +3,8 @@ package edu.wisc.cs.sdn.vnet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.stats.IfaceCounters;
+
 /**
  * An interface on a router.
  * @author Aaron Gember-Jacobson
@@ -10,19 +12,39 @@ import net.floodlightcontroller.packet.MACAddress;
 public class Iface 
 {
 	private String name;
+	private int index;
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
+	private IfaceCounters counters;
 	
 	public Iface(String name)
+	{ this(name, 0); }
+
+	/**
+	 * Create an interface.
+	 * @param name name of the interface
+	 * @param index position of the interface among the device's interfaces,
+	 *        starting at 0
+	 */
+	public Iface(String name, int index)
 	{
 		this.name = name;
+		this.index = index;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.counters = new IfaceCounters();
 	}
 	
 	public String getName()
 	{ return this.name; }
+
+	/**
+	 * @return position of the interface among the device's interfaces,
+	 *         starting at 0; lets per-interface state be kept in arrays
+	 */
+	public int getIndex()
+	{ return this.index; }
 	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
@@ -42,6 +64,12 @@ public class Iface
 	public int getSubnetMask()
 	{ return this.subnetMask; }
 
+	/**
+	 * @return packet, byte, and drop counters for the interface
+	 */
+	public IfaceCounters getCounters()
+	{ return this.counters; }
+
 	public String toString()
 	{
 		if ((null == this.macAddress) || (0 == this.ipAddress)
@@ -1,6 +1,9 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.rt.NatTable;
 import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.stats.MetricsServer;
+import edu.wisc.cs.sdn.vnet.sw.MACTable;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
@@ -16,6 +19,22 @@ public class Main
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String aclFile = null;
+		String vlanFile = null;
+		String lagFile = null;
+		String natIface = null;
+		int natCapacity = NatTable.DEFAULT_CAPACITY;
+		int macCapacity = MACTable.DEFAULT_CAPACITY;
+		int macPortLimit = 0;
+		int metricsPort = 0;
+		int latencyLogInterval = 60;
+		String checkpointFile = null;
+		boolean warmRestart = false;
+		boolean linkState = false;
+		boolean spanningTree = false;
+		boolean headerOnly = false;
+		int[] stormLimits = null;
+		int bfdInterval = 0;
 		String logfile = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
@@ -42,6 +61,48 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ aclFile = args[++i]; }
+			else if (arg.equals("-n"))
+			{ natIface = args[++i]; }
+			else if (arg.equals("-N"))
+			{ natCapacity = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-V"))
+			{ vlanFile = args[++i]; }
+			else if (arg.equals("-G"))
+			{ lagFile = args[++i]; }
+			else if (arg.equals("-M"))
+			{ macCapacity = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-P"))
+			{ macPortLimit = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-S"))
+			{ spanningTree = true; }
+			else if (arg.equals("-H"))
+			{ headerOnly = true; }
+			else if (arg.equals("-C"))
+			{
+				String[] limits = args[++i].split(",");
+				if (limits.length != 3)
+				{
+					usage();
+					return;
+				}
+				stormLimits = new int[limits.length];
+				for (int j = 0; j < limits.length; j++)
+				{ stormLimits[j] = Integer.parseInt(limits[j]); }
+			}
+			else if (arg.equals("-m"))
+			{ metricsPort = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-t"))
+			{ latencyLogInterval = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ checkpointFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ warmRestart = true; }
+			else if (arg.equals("-L"))
+			{ linkState = true; }
+			else if (arg.equals("-b"))
+			{ bfdInterval = Integer.parseInt(args[++i]); }
 		}
 		
 		if (null == host)
@@ -63,7 +124,11 @@ public class Main
 		}
 		
 		if (host.startsWith("s"))
-		{ dev = new Switch(host, dump); }
+		{
+			Switch sw = new Switch(host, dump, macCapacity, macPortLimit);
+			sw.setHeaderOnly(headerOnly);
+			dev = sw;
+		}
 		else if (host.startsWith("r"))
 		{
 			// Create router instance
@@ -83,28 +148,91 @@ public class Main
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
+		// Read port VLAN membership
+		if (dev instanceof Switch && vlanFile != null)
+		{ ((Switch)dev).loadVlans(vlanFile); }
+
+		// Group ports into port channels
+		if (dev instanceof Switch && lagFile != null)
+		{ ((Switch)dev).loadLinkAggregation(lagFile); }
+
+		// Limit flooded traffic accepted on each port
+		if (dev instanceof Switch && stormLimits != null)
+		{
+			((Switch)dev).setStormControl(stormLimits[0], stormLimits[1],
+					stormLimits[2]);
+		}
+
+		// Block redundant links between switches
+		if (dev instanceof Switch && spanningTree)
+		{ ((Switch)dev).startSpanningTree(); }
+		
 		if (dev instanceof Router) 
 		{
 			// Read static ARP cache
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
+
+			// Read packet filter
+			if (aclFile != null)
+			{ ((Router)dev).loadAcl(aclFile); }
+
+			// Masquerade inside hosts behind an outside interface
+			if (natIface != null)
+			{ ((Router)dev).enableNat(natIface, natCapacity); }
 			
 			// Read static route table
 			if (routeTableFile != null)
 			{ ((Router)dev).loadRouteTable(routeTableFile); }
 
+			// start link-state routing
+			else if (linkState)
+			{ ((Router)dev).startLinkState(); }
+
 			// start RIP
 			else {
 				((Router)dev).startRip();
 			}
+
+			// Detect failed neighbors faster than the routing protocol does
+			if (bfdInterval > 0)
+			{ ((Router)dev).startBfd(bfdInterval); }
 			
 		}
 
+		// Restore learned state from the last checkpoint, then keep saving it
+		if (checkpointFile != null)
+		{
+			Checkpoint checkpoint = new Checkpoint(dev, checkpointFile);
+			if (warmRestart)
+			{ checkpoint.restore(); }
+			checkpoint.start();
+		}
+
+		// Periodically log packet processing latency percentiles
+		if (latencyLogInterval > 0)
+		{ dev.getLatency().startLogging(latencyLogInterval); }
+
+		// Serve counters over HTTP on the loopback address
+		MetricsServer metricsServer = null;
+		if (metricsPort > 0)
+		{
+			metricsServer = MetricsServer.start(dev, metricsPort);
+			if (metricsServer != null)
+			{
+				System.out.println(String.format(
+						"Serving metrics on http://127.0.0.1:%d%s",
+						metricsPort, MetricsServer.PATH));
+			}
+		}
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
+		if (metricsServer != null)
+		{ metricsServer.stop(); }
 		dev.destroy();
 	}
 	
@@ -112,7 +240,12 @@ public class Main
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-r routing_table | -L] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-f acl_file] [-n nat_outside_iface [-N nat_capacity]]");
+		System.out.println("     [-V vlan_file] [-M mac_capacity] [-P mac_port_limit] [-S] [-H]");
+		System.out.println("     [-G lag_file] [-C bcast_pps,mcast_pps,unknown_ucast_pps]");
+		System.out.println("     [-m metrics_port] [-t latency_log_secs]");
+		System.out.println("     [-c checkpoint_file [-w]] [-b bfd_interval_ms]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timer wheel for timers identified by a long key. Time is divided
+ * into ticks, and each timer is placed in the slot for the tick its deadline
+ * falls after; advancing the wheel only examines the slots for the ticks that
+ * passed, so the cost depends on the number of due timers rather than the
+ * number of pending ones. Timers whose deadline is more than one rotation
+ * away stay in their slot until a later pass.
+ * <p>
+ * Timers cannot be cancelled. Owners that extend a deadline leave the old
+ * timer in place and, when it fires, schedule a new one for the extended
+ * deadline; a timer whose key no longer matches anything is ignored. The
+ * wheel is not thread safe; callers must synchronize.
+ * @author Aaron Gember-Jacobson
+ */
+public class TimerWheel
+{
+	/**
+	 * Receives timers as they fire.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called when a timer fires; may schedule new timers.
+		 * @param key key the timer was scheduled with
+		 * @param deadline deadline the timer was scheduled with
+		 */
+		void expired(long key, long deadline);
+	}
+
+	/** Length (in milliseconds) of a tick */
+	private long tick;
+
+	/** Number of slots minus one; the number of slots is a power of two */
+	private int mask;
+
+	/** Keys and deadlines of the timers in each slot, interleaved */
+	private long[][] slots;
+
+	/** Number of timers in each slot */
+	private int[] counts;
+
+	/** Last tick that was processed */
+	private long current;
+
+	/** Number of pending timers */
+	private int size;
+
+	/** Timers that are due, collected before their handlers are called */
+	private long[] due;
+
+	/**
+	 * Create an empty timer wheel.
+	 * @param tick length (in milliseconds) of a tick
+	 * @param slots number of slots; rounded up to a power of two
+	 * @param now current time (in milliseconds since the epoch)
+	 */
+	public TimerWheel(long tick, int slots, long now)
+	{
+		int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.tick = tick;
+		this.mask = size - 1;
+		this.slots = new long[size][];
+		this.counts = new int[size];
+		this.current = now / tick;
+		this.size = 0;
+		this.due = new long[16];
+	}
+
+	/**
+	 * Schedule a timer.
+	 * @param key key identifying the timer
+	 * @param deadline time (in milliseconds since the epoch) the timer fires
+	 */
+	public void schedule(long key, long deadline)
+	{
+		// Place the timer in the first tick that starts after its deadline,
+		// so it is due whenever that slot is processed; timers that are
+		// already due fire on the next advance
+		long when = Math.max(deadline / this.tick + 1, this.current + 1);
+		int slot = (int)(when & this.mask);
+		long[] timers = this.slots[slot];
+		int count = this.counts[slot];
+		if (null == timers)
+		{ timers = this.slots[slot] = new long[8]; }
+		else if (2 * count == timers.length)
+		{ timers = this.slots[slot] = Arrays.copyOf(timers, 2 * timers.length); }
+		timers[2 * count] = key;
+		timers[2 * count + 1] = deadline;
+		this.counts[slot] = count + 1;
+		this.size++;
+	}
+
+	/**
+	 * Fire every timer whose deadline has passed.
+	 * @param now current time (in milliseconds since the epoch)
+	 * @param handler receives the timers that fire
+	 * @return number of timers that fired
+	 */
+	public int advance(long now, Handler handler)
+	{
+		long target = now / this.tick;
+		if (target <= this.current)
+		{ return 0; }
+
+		// Collect due timers from the slots for the ticks that passed, and
+		// compact the timers left behind in each slot
+		int dueCount = 0;
+		long ticks = Math.min(target - this.current, this.mask + 1);
+		for (long t = 1; t <= ticks; t++)
+		{
+			int slot = (int)((this.current + t) & this.mask);
+			long[] timers = this.slots[slot];
+			int count = this.counts[slot];
+			int kept = 0;
+			for (int i = 0; i < count; i++)
+			{
+				long key = timers[2 * i];
+				long deadline = timers[2 * i + 1];
+				if (deadline <= now)
+				{
+					if (2 * dueCount == this.due.length)
+					{ this.due = Arrays.copyOf(this.due, 2 * this.due.length); }
+					this.due[2 * dueCount] = key;
+					this.due[2 * dueCount + 1] = deadline;
+					dueCount++;
+				}
+				else
+				{
+					timers[2 * kept] = key;
+					timers[2 * kept + 1] = deadline;
+					kept++;
+				}
+			}
+			this.counts[slot] = kept;
+		}
+		this.current = target;
+		this.size -= dueCount;
+
+		// Handlers run after the slots are consistent, since they may
+		// schedule new timers
+		for (int i = 0; i < dueCount; i++)
+		{ handler.expired(this.due[2 * i], this.due[2 * i + 1]); }
+		return dueCount;
+	}
+
+	/**
+	 * @return number of pending timers
+	 */
+	public int size()
+	{ return this.size; }
+}
@@ -0,0 +1,26 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a next hop missing from the ARP cache.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.ArpMiss")
+@Label("ARP Miss")
+@Category({ "Virtual Network", "Data Plane" })
+@Description("Next hop address not found in the ARP cache")
+@StackTrace(false)
+public class ArpMissEvent extends Event
+{
+	@Label("Address")
+	public String address;
+
+	@Label("Egress Interface")
+	public String iface;
+}
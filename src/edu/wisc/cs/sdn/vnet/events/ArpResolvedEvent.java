@@ -0,0 +1,26 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an address added to the ARP cache.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.ArpResolved")
+@Label("ARP Resolved")
+@Category({ "Virtual Network", "Control Plane" })
+@Description("IP to MAC mapping added to the ARP cache")
+@StackTrace(false)
+public class ArpResolvedEvent extends Event
+{
+	@Label("Address")
+	public String address;
+
+	@Label("MAC Address")
+	public String mac;
+}
@@ -0,0 +1,30 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event spanning the processing of a packet, from reading
+ * the frame to handing the last response to the server. Only packets that
+ * take longer than the threshold are recorded.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketProcessed")
+@Label("Packet Processed")
+@Category({ "Virtual Network", "Data Plane" })
+@Description("Packet received, processed, and forwarded, answered, or dropped")
+@Threshold("1 ms")
+@StackTrace(false)
+public class PacketProcessedEvent extends Event
+{
+	@Label("Ingress Interface")
+	public String iface;
+
+	@Label("Outcome")
+	public String outcome;
+}
@@ -0,0 +1,31 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a frame read from the server. Disabled by
+ * default, since one is emitted for every packet.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketReceived")
+@Label("Packet Received")
+@Category({ "Virtual Network", "Data Plane" })
+@Description("Frame read from the server")
+@Enabled(false)
+@StackTrace(false)
+public class PacketReceivedEvent extends Event
+{
+	@Label("Interface")
+	public String iface;
+
+	@Label("Length")
+	@DataAmount
+	public int length;
+}
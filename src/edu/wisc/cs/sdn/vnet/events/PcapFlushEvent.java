@@ -0,0 +1,28 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for writing and flushing a packet to the PCAP dump
+ * file. Only writes that take longer than the threshold are recorded.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.PcapFlush")
+@Label("PCAP Flush")
+@Category({ "Virtual Network", "Logging" })
+@Description("Packet written and flushed to the PCAP dump file")
+@Threshold("1 ms")
+@StackTrace(false)
+public class PcapFlushEvent extends Event
+{
+	@Label("Bytes Written")
+	@DataAmount
+	public int bytes;
+}
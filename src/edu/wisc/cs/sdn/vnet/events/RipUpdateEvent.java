@@ -0,0 +1,39 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for applying a RIP response to the routing state.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.RipUpdate")
+@Label("RIP Update Applied")
+@Category({ "Virtual Network", "Control Plane" })
+@Description("RIP response applied to the RIP database and route table")
+@Threshold("0 ms")
+@StackTrace(false)
+public class RipUpdateEvent extends Event
+{
+	@Label("Interface")
+	public String iface;
+
+	@Label("Neighbor")
+	public String neighbor;
+
+	@Label("Entries Received")
+	public int entriesReceived;
+
+	@Label("Entries Changed")
+	public int entriesChanged;
+
+	@Label("Route Table Publish Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long publishTime;
+}
@@ -0,0 +1,28 @@
+package edu.wisc.cs.sdn.vnet.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for a pass that times out stale RIP routes.
+ * @author Aaron Gember-Jacobson
+ */
+@Name("edu.wisc.cs.sdn.vnet.RouteSweep")
+@Label("Route Timeout Sweep")
+@Category({ "Virtual Network", "Control Plane" })
+@Description("Pass over the RIP routes to time out stale entries")
+@Threshold("0 ms")
+@StackTrace(false)
+public class RouteSweepEvent extends Event
+{
+	@Label("Routes Checked")
+	public int routesChecked;
+
+	@Label("Routes Removed")
+	public int routesRemoved;
+}
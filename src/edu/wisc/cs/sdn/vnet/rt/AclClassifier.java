@@ -0,0 +1,276 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An ordered list of packet filter rules compiled into a bit-vector
+ * classifier. Each header field (source IP, destination IP, protocol, source
+ * port, destination port) is split into elementary intervals, and every
+ * interval stores a bit vector of the rules that cover it. Classifying a
+ * packet takes one binary search per field and an AND of the vectors that
+ * stops at the first matching rule. The searches grow with the logarithm of
+ * the number of rules; the AND is still linear, but covers 64 rules per
+ * word, so it is far cheaper than checking rules one at a time.
+ * <p>
+ * Vectors are split into chunks, and identical chunks are stored once per
+ * field, so intervals that differ in only a few rules share most of their
+ * vectors rather than each holding a full copy.
+ * @author Aaron Gember-Jacobson
+ */
+public class AclClassifier
+{
+	private static final int FIELD_SRC_IP = 0;
+	private static final int FIELD_DST_IP = 1;
+	private static final int FIELD_PROTOCOL = 2;
+	private static final int FIELD_SRC_PORT = 3;
+	private static final int FIELD_DST_PORT = 4;
+	private static final int NUM_FIELDS = 5;
+
+	/** Largest value of each field */
+	private static final long[] FIELD_MAX = { 0xffffffffL, 0xffffffffL,
+		0xffL, AclRule.NO_PORT, AclRule.NO_PORT };
+
+	/** Most 64-bit words in a chunk of a bit vector */
+	private static final int CHUNK_WORDS = 16;
+
+	/** Rules in priority order */
+	private AclRule[] rules;
+
+	/** Number of 64-bit words in each bit vector; a multiple of chunkWords */
+	private int words;
+
+	/** Number of 64-bit words in each chunk of a bit vector */
+	private int chunkWords;
+
+	/** Start of each elementary interval, per field */
+	private long[][] starts;
+
+	/** Distinct chunks of the bit vectors, one after another, per field */
+	private long[][] chunks;
+
+	/** Offset in the field's chunks of each chunk of the bit vector of
+	 *  matching rules, for each elementary interval, per field */
+	private int[][][] vectors;
+
+	/**
+	 * Compile an ordered list of rules; earlier rules take precedence.
+	 * @param ruleList rules to compile
+	 */
+	public AclClassifier(List<AclRule> ruleList)
+	{
+		this.rules = ruleList.toArray(new AclRule[ruleList.size()]);
+		int words = Math.max(1, (this.rules.length + 63) / 64);
+		this.chunkWords = Math.min(words, CHUNK_WORDS);
+		this.words = (words + this.chunkWords - 1) / this.chunkWords
+				* this.chunkWords;
+		this.starts = new long[NUM_FIELDS][];
+		this.chunks = new long[NUM_FIELDS][];
+		this.vectors = new int[NUM_FIELDS][][];
+
+		long[] low = new long[this.rules.length];
+		long[] high = new long[this.rules.length];
+		for (int field = 0; field < NUM_FIELDS; field++)
+		{
+			for (int i = 0; i < this.rules.length; i++)
+			{
+				AclRule rule = this.rules[i];
+				switch (field)
+				{
+				case FIELD_SRC_IP:
+					low[i] = rule.getSrcAddress() & 0xffffffffL;
+					high[i] = low[i] | (~rule.getSrcMask() & 0xffffffffL);
+					break;
+				case FIELD_DST_IP:
+					low[i] = rule.getDstAddress() & 0xffffffffL;
+					high[i] = low[i] | (~rule.getDstMask() & 0xffffffffL);
+					break;
+				case FIELD_PROTOCOL:
+					if (AclRule.ANY_PROTOCOL == rule.getProtocol())
+					{
+						low[i] = 0;
+						high[i] = FIELD_MAX[field];
+					}
+					else
+					{ low[i] = high[i] = rule.getProtocol(); }
+					break;
+				case FIELD_SRC_PORT:
+					low[i] = rule.getSrcPortLow();
+					high[i] = rule.getSrcPortHigh();
+					break;
+				case FIELD_DST_PORT:
+					low[i] = rule.getDstPortLow();
+					high[i] = rule.getDstPortHigh();
+					break;
+				}
+			}
+			this.compileField(field, low, high);
+		}
+	}
+
+	/**
+	 * Split a field into elementary intervals and compute the bit vector of
+	 * rules covering each interval, sharing identical chunks.
+	 */
+	private void compileField(int field, long[] low, long[] high)
+	{
+		int n = low.length;
+
+		// Interval boundaries: the start of the domain, the start of every
+		// rule's range, and the value just past the end of every range
+		long[] bounds = new long[2 * n + 1];
+		int count = 0;
+		bounds[count++] = 0;
+		for (int i = 0; i < n; i++)
+		{
+			bounds[count++] = low[i];
+			if (high[i] < FIELD_MAX[field])
+			{ bounds[count++] = high[i] + 1; }
+		}
+		Arrays.sort(bounds, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (0 == unique || bounds[i] != bounds[unique - 1])
+			{ bounds[unique++] = bounds[i]; }
+		}
+		long[] fieldStarts = Arrays.copyOf(bounds, unique);
+
+		// Sweep across the intervals, adding each rule where its range starts
+		// and removing it just past where its range ends
+		long[] add = new long[unique * this.words];
+		long[] remove = new long[unique * this.words];
+		for (int i = 0; i < n; i++)
+		{
+			int first = Arrays.binarySearch(fieldStarts, low[i]);
+			add[first * this.words + (i >>> 6)] |= 1L << (i & 63);
+			if (high[i] < FIELD_MAX[field])
+			{
+				int last = Arrays.binarySearch(fieldStarts, high[i] + 1);
+				remove[last * this.words + (i >>> 6)] |= 1L << (i & 63);
+			}
+		}
+
+		// A chunk that no rule enters or leaves at an interval is the same
+		// as in the previous interval
+		int chunkCount = this.words / this.chunkWords;
+		long[] fieldChunks = new long[this.chunkWords];
+		int used = 0;
+		Map<LongBuffer,Integer> offsets = new HashMap<LongBuffer,Integer>();
+		int[][] fieldVectors = new int[unique][];
+		long[] current = new long[this.words];
+		for (int k = 0; k < unique; k++)
+		{
+			fieldVectors[k] = new int[chunkCount];
+			for (int c = 0; c < chunkCount; c++)
+			{
+				boolean changed = (0 == k);
+				for (int w = c * this.chunkWords; w < (c + 1) * this.chunkWords;
+						w++)
+				{
+					long removed = remove[k * this.words + w];
+					long added = add[k * this.words + w];
+					current[w] = (current[w] & ~removed) | added;
+					changed |= (removed | added) != 0;
+				}
+				if (!changed)
+				{
+					fieldVectors[k][c] = fieldVectors[k - 1][c];
+					continue;
+				}
+
+				long[] chunk = Arrays.copyOfRange(current, c * this.chunkWords,
+						(c + 1) * this.chunkWords);
+				Integer offset = offsets.get(LongBuffer.wrap(chunk));
+				if (null == offset)
+				{
+					if (used + this.chunkWords > fieldChunks.length)
+					{
+						fieldChunks = Arrays.copyOf(fieldChunks,
+								fieldChunks.length * 2);
+					}
+					System.arraycopy(chunk, 0, fieldChunks, used,
+							this.chunkWords);
+					offset = used;
+					offsets.put(LongBuffer.wrap(chunk), offset);
+					used += this.chunkWords;
+				}
+				fieldVectors[k][c] = offset;
+			}
+		}
+
+		this.starts[field] = fieldStarts;
+		this.chunks[field] = Arrays.copyOf(fieldChunks, used);
+		this.vectors[field] = fieldVectors;
+	}
+
+	/**
+	 * Find the bit vector for the interval containing a value.
+	 * @return offset in the field's chunks of each chunk of the vector
+	 */
+	private int[] vectorFor(int field, long value)
+	{
+		long[] fieldStarts = this.starts[field];
+		int lo = 0, hi = fieldStarts.length - 1;
+		while (lo < hi)
+		{
+			int mid = (lo + hi + 1) >>> 1;
+			if (fieldStarts[mid] <= value)
+			{ lo = mid; }
+			else
+			{ hi = mid - 1; }
+		}
+		return this.vectors[field][lo];
+	}
+
+	/**
+	 * Find the highest priority rule matching a packet's header fields.
+	 * @param srcIp source IP address
+	 * @param dstIp destination IP address
+	 * @param protocol IP protocol number
+	 * @param srcPort source port; AclRule.NO_PORT if the packet has no ports
+	 * @param dstPort destination port; AclRule.NO_PORT if the packet has no ports
+	 * @return the first matching rule, null if no rule matches
+	 */
+	public AclRule classify(int srcIp, int dstIp, int protocol, int srcPort,
+			int dstPort)
+	{
+		if (0 == this.rules.length)
+		{ return null; }
+
+		int[] src = this.vectorFor(FIELD_SRC_IP, srcIp & 0xffffffffL);
+		int[] dst = this.vectorFor(FIELD_DST_IP, dstIp & 0xffffffffL);
+		int[] proto = this.vectorFor(FIELD_PROTOCOL, protocol & 0xff);
+		int[] sport = this.vectorFor(FIELD_SRC_PORT, srcPort);
+		int[] dport = this.vectorFor(FIELD_DST_PORT, dstPort);
+		long[] srcChunks = this.chunks[FIELD_SRC_IP];
+		long[] dstChunks = this.chunks[FIELD_DST_IP];
+		long[] protoChunks = this.chunks[FIELD_PROTOCOL];
+		long[] sportChunks = this.chunks[FIELD_SRC_PORT];
+		long[] dportChunks = this.chunks[FIELD_DST_PORT];
+		for (int c = 0; c < src.length; c++)
+		{
+			for (int w = 0; w < this.chunkWords; w++)
+			{
+				long match = srcChunks[src[c] + w] & dstChunks[dst[c] + w]
+						& protoChunks[proto[c] + w] & sportChunks[sport[c] + w]
+						& dportChunks[dport[c] + w];
+				if (match != 0)
+				{
+					return this.rules[((c * this.chunkWords + w) << 6)
+							+ Long.numberOfTrailingZeros(match)];
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return rules in priority order
+	 */
+	public AclRule[] getRules()
+	{ return this.rules; }
+}
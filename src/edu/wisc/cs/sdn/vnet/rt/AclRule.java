@@ -0,0 +1,153 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A stateless packet filter rule.
+ * @author Aaron Gember-Jacobson
+ */
+public class AclRule
+{
+	/** Value used for the protocol field to match any protocol */
+	public static final int ANY_PROTOCOL = -1;
+
+	/** Port value used for packets that do not carry TCP or UDP ports */
+	public static final int NO_PORT = 0x10000;
+
+	/** True if matching packets should be permitted, false if dropped */
+	private boolean permit;
+
+	/** Name of the ingress interface the rule applies to; null for all */
+	private String ifaceName;
+
+	/** Source IP prefix and mask */
+	private int srcAddress;
+	private int srcMask;
+
+	/** Destination IP prefix and mask */
+	private int dstAddress;
+	private int dstMask;
+
+	/** IP protocol number; ANY_PROTOCOL to match any protocol */
+	private int protocol;
+
+	/** Inclusive range of source ports */
+	private int srcPortLow;
+	private int srcPortHigh;
+
+	/** Inclusive range of destination ports */
+	private int dstPortLow;
+	private int dstPortHigh;
+
+	/** Number of packets that matched the rule */
+	private LongAdder hits;
+
+	/** Text of the rule, as it appeared in the ACL file */
+	private String text;
+
+	/**
+	 * Create a packet filter rule.
+	 * @param permit true if matching packets should be permitted
+	 * @param ifaceName ingress interface; null for all interfaces
+	 * @param srcAddress source IP prefix
+	 * @param srcMask source IP mask
+	 * @param dstAddress destination IP prefix
+	 * @param dstMask destination IP mask
+	 * @param protocol IP protocol number, or ANY_PROTOCOL
+	 * @param srcPortLow lowest matching source port
+	 * @param srcPortHigh highest matching source port
+	 * @param dstPortLow lowest matching destination port
+	 * @param dstPortHigh highest matching destination port
+	 * @param text text of the rule
+	 */
+	public AclRule(boolean permit, String ifaceName, int srcAddress,
+			int srcMask, int dstAddress, int dstMask, int protocol,
+			int srcPortLow, int srcPortHigh, int dstPortLow, int dstPortHigh,
+			String text)
+	{
+		this.permit = permit;
+		this.ifaceName = ifaceName;
+		this.srcAddress = srcAddress & srcMask;
+		this.srcMask = srcMask;
+		this.dstAddress = dstAddress & dstMask;
+		this.dstMask = dstMask;
+		this.protocol = protocol;
+		this.srcPortLow = srcPortLow;
+		this.srcPortHigh = srcPortHigh;
+		this.dstPortLow = dstPortLow;
+		this.dstPortHigh = dstPortHigh;
+		this.hits = new LongAdder();
+		this.text = text;
+	}
+
+	/**
+	 * @return true if matching packets should be permitted, false if dropped
+	 */
+	public boolean isPermit()
+	{ return this.permit; }
+
+	/**
+	 * @return name of the ingress interface the rule applies to; null for all
+	 */
+	public String getIfaceName()
+	{ return this.ifaceName; }
+
+	public int getSrcAddress()
+	{ return this.srcAddress; }
+
+	public int getSrcMask()
+	{ return this.srcMask; }
+
+	public int getDstAddress()
+	{ return this.dstAddress; }
+
+	public int getDstMask()
+	{ return this.dstMask; }
+
+	/**
+	 * @return IP protocol number; ANY_PROTOCOL to match any protocol
+	 */
+	public int getProtocol()
+	{ return this.protocol; }
+
+	public int getSrcPortLow()
+	{ return this.srcPortLow; }
+
+	public int getSrcPortHigh()
+	{ return this.srcPortHigh; }
+
+	public int getDstPortLow()
+	{ return this.dstPortLow; }
+
+	public int getDstPortHigh()
+	{ return this.dstPortHigh; }
+
+	/**
+	 * Record that a packet matched the rule.
+	 */
+	public void hit()
+	{ this.hits.increment(); }
+
+	/**
+	 * @return number of packets that matched the rule
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	public String toString()
+	{
+		if (this.text != null)
+		{ return this.text; }
+		return String.format("%s %s %s/%s %s/%s %d %d-%d %d-%d",
+				(this.permit ? "permit" : "deny"),
+				(null == this.ifaceName ? "*" : this.ifaceName),
+				IPv4.fromIPv4Address(this.srcAddress),
+				IPv4.fromIPv4Address(this.srcMask),
+				IPv4.fromIPv4Address(this.dstAddress),
+				IPv4.fromIPv4Address(this.dstMask),
+				this.protocol, this.srcPortLow, this.srcPortHigh,
+				this.dstPortLow, this.dstPortHigh);
+	}
+}
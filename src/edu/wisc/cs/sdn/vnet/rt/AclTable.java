@@ -0,0 +1,371 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Stateless packet filter applied to packets arriving on a router's
+ * interfaces. Rules are loaded from a file and compiled into one classifier
+ * per interface; reloading compiles a new set of classifiers and swaps them
+ * in with a single write, so packets never see a partially loaded rule list.
+ * @author Aaron Gember-Jacobson
+ */
+public class AclTable implements Runnable
+{
+	/** How often (in milliseconds) to check the ACL file for changes */
+	public static final int RELOAD_CHECK_INTERVAL = 5 * 1000;
+
+	/** Compiled classifiers for the currently loaded rules */
+	private volatile Compiled compiled;
+
+	/** Name of the file containing the rules */
+	private String filename;
+
+	/** Router the ACL is associated with */
+	private Router router;
+
+	/** Time (in milliseconds since the epoch) the loaded file was modified */
+	private long lastModified;
+
+	/** Thread for reloading the rules when the file changes */
+	private Thread reloadThread;
+
+	/**
+	 * Rules compiled for each interface.
+	 */
+	private static class Compiled
+	{
+		/** All rules, in file order */
+		List<AclRule> rules;
+
+		/** Maps interface names to classifiers for that interface */
+		Map<String,AclClassifier> byIface;
+
+		/** Classifier for interfaces without interface-specific rules */
+		AclClassifier wildcard;
+	}
+
+	/**
+	 * Initializes an empty ACL that permits all packets.
+	 */
+	public AclTable()
+	{
+		Compiled empty = new Compiled();
+		empty.rules = new LinkedList<AclRule>();
+		empty.byIface = new HashMap<String,AclClassifier>();
+		empty.wildcard = new AclClassifier(empty.rules);
+		this.compiled = empty;
+	}
+
+	/**
+	 * Check whether a packet arriving on an interface is permitted.
+	 * @param ipPacket the IP packet
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet is permitted, false if it should be dropped
+	 */
+	public boolean permits(IPv4 ipPacket, Iface inIface)
+	{
+		Compiled current = this.compiled;
+		AclClassifier classifier = current.byIface.get(inIface.getName());
+		if (null == classifier)
+		{ classifier = current.wildcard; }
+
+		int srcPort = AclRule.NO_PORT;
+		int dstPort = AclRule.NO_PORT;
+		if (ipPacket.getPayload() instanceof TCP)
+		{
+			TCP tcpPacket = (TCP)ipPacket.getPayload();
+			srcPort = tcpPacket.getSourcePort() & 0xffff;
+			dstPort = tcpPacket.getDestinationPort() & 0xffff;
+		}
+		else if (ipPacket.getPayload() instanceof UDP)
+		{
+			UDP udpPacket = (UDP)ipPacket.getPayload();
+			srcPort = udpPacket.getSourcePort() & 0xffff;
+			dstPort = udpPacket.getDestinationPort() & 0xffff;
+		}
+
+		AclRule rule = classifier.classify(ipPacket.getSourceAddress(),
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(),
+				srcPort, dstPort);
+		if (null == rule)
+		{ return true; }
+		rule.hit();
+		return rule.isPermit();
+	}
+
+	/**
+	 * Populate the ACL from a file, and reload it whenever the file changes.
+	 * @param filename name of the file containing the rules
+	 * @param router the ACL is associated with
+	 * @return true if the rules were successfully loaded, otherwise false
+	 */
+	public boolean load(String filename, Router router)
+	{
+		this.filename = filename;
+		this.router = router;
+		if (!this.reload())
+		{ return false; }
+
+		this.reloadThread = new Thread(this);
+		this.reloadThread.setDaemon(true);
+		this.reloadThread.start();
+		return true;
+	}
+
+	/**
+	 * Read and compile the rules from the ACL file, and swap them in.
+	 * @return true if the rules were successfully loaded, otherwise false
+	 */
+	public boolean reload()
+	{
+		File file = new File(this.filename);
+		long modified = file.lastModified();
+
+		List<AclRule> rules = this.read(this.filename);
+		if (null == rules)
+		{ return false; }
+
+		// Compile a classifier for each interface that has its own rules;
+		// every other interface shares the classifier of wildcard rules
+		Compiled next = new Compiled();
+		next.rules = Collections.unmodifiableList(rules);
+		next.byIface = new HashMap<String,AclClassifier>();
+		List<AclRule> wildcardRules = new ArrayList<AclRule>();
+		for (AclRule rule : rules)
+		{
+			if (null == rule.getIfaceName())
+			{ wildcardRules.add(rule); }
+		}
+		next.wildcard = new AclClassifier(wildcardRules);
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			List<AclRule> ifaceRules = new ArrayList<AclRule>();
+			boolean specific = false;
+			for (AclRule rule : rules)
+			{
+				if (null == rule.getIfaceName())
+				{ ifaceRules.add(rule); }
+				else if (rule.getIfaceName().equals(iface.getName()))
+				{
+					ifaceRules.add(rule);
+					specific = true;
+				}
+			}
+			if (specific)
+			{ next.byIface.put(iface.getName(), new AclClassifier(ifaceRules)); }
+		}
+
+		this.compiled = next;
+		this.lastModified = modified;
+		return true;
+	}
+
+	/**
+	 * Parse rules from a file. Each line has the form
+	 * <pre>
+	 * permit|deny iface|* src/len|* dst/len|* proto|* [sport|* [dport|*]]
+	 * </pre>
+	 * where ports are a single port or a range lo-hi. Blank lines and lines
+	 * starting with # are ignored.
+	 * @param filename name of the file containing the rules
+	 * @return list of rules in file order, null if the file is invalid
+	 */
+	private List<AclRule> read(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		List<AclRule> rules = new ArrayList<AclRule>();
+		while (true)
+		{
+			// Read a rule from the file
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+
+			line = line.trim();
+			if (0 == line.length() || line.startsWith("#"))
+			{ continue; }
+
+			AclRule rule = this.parse(line);
+			if (null == rule)
+			{
+				System.err.println("Invalid entry in ACL file: " + line);
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+			rules.add(rule);
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return rules;
+	}
+
+	/**
+	 * Parse a single rule.
+	 * @return the rule, null if the line is invalid
+	 */
+	private AclRule parse(String line)
+	{
+		String[] fields = line.split("\\s+");
+		if (fields.length < 5 || fields.length > 7)
+		{ return null; }
+
+		boolean permit;
+		if (fields[0].equals("permit"))
+		{ permit = true; }
+		else if (fields[0].equals("deny"))
+		{ permit = false; }
+		else
+		{ return null; }
+
+		String ifaceName = (fields[1].equals("*") ? null : fields[1]);
+
+		try
+		{
+			int[] src = parsePrefix(fields[2]);
+			int[] dst = parsePrefix(fields[3]);
+
+			int protocol;
+			if (fields[4].equals("*"))
+			{ protocol = AclRule.ANY_PROTOCOL; }
+			else if (fields[4].equals("tcp"))
+			{ protocol = IPv4.PROTOCOL_TCP; }
+			else if (fields[4].equals("udp"))
+			{ protocol = IPv4.PROTOCOL_UDP; }
+			else if (fields[4].equals("icmp"))
+			{ protocol = IPv4.PROTOCOL_ICMP; }
+			else
+			{ protocol = Integer.parseInt(fields[4]) & 0xff; }
+
+			int[] srcPorts = parsePorts(fields.length > 5 ? fields[5] : "*");
+			int[] dstPorts = parsePorts(fields.length > 6 ? fields[6] : "*");
+			if (null == src || null == dst || null == srcPorts
+					|| null == dstPorts)
+			{ return null; }
+
+			return new AclRule(permit, ifaceName, src[0], src[1], dst[0],
+					dst[1], protocol, srcPorts[0], srcPorts[1], dstPorts[0],
+					dstPorts[1], line);
+		}
+		catch (IllegalArgumentException e)
+		{ return null; }
+	}
+
+	/**
+	 * Parse an address prefix of the form a.b.c.d/len, or * for any address.
+	 * @return the address and mask, null if the prefix is invalid
+	 */
+	private static int[] parsePrefix(String prefix)
+	{
+		if (prefix.equals("*"))
+		{ return new int[] { 0, 0 }; }
+		String[] parts = prefix.split("/");
+		int address = IPv4.toIPv4Address(parts[0]);
+		int length = (parts.length > 1 ? Integer.parseInt(parts[1]) : 32);
+		if (length < 0 || length > 32)
+		{ return null; }
+		int mask = (0 == length ? 0 : 0xffffffff << (32 - length));
+		return new int[] { address, mask };
+	}
+
+	/**
+	 * Parse a port or port range of the form lo-hi, or * for any port. A
+	 * wildcard also matches packets that have no ports.
+	 * @return the lowest and highest port, null if the range is invalid
+	 */
+	private static int[] parsePorts(String ports)
+	{
+		if (ports.equals("*"))
+		{ return new int[] { 0, AclRule.NO_PORT }; }
+		String[] parts = ports.split("-");
+		int low = Integer.parseInt(parts[0]);
+		int high = (parts.length > 1 ? Integer.parseInt(parts[1]) : low);
+		if (low < 0 || high > 0xffff || low > high)
+		{ return null; }
+		return new int[] { low, high };
+	}
+
+	/**
+	 * Every few seconds: reload the rules if the ACL file changed.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{ Thread.sleep(RELOAD_CHECK_INTERVAL); }
+			catch (InterruptedException e)
+			{ break; }
+
+			long modified = new File(this.filename).lastModified();
+			if (modified != 0 && modified != this.lastModified)
+			{
+				if (this.reload())
+				{ System.out.println("Reloaded ACL from " + this.filename); }
+				else
+				{
+					// Keep using the old rules until the file is fixed
+					this.lastModified = modified;
+					System.err.println("Error reloading ACL from "
+							+ this.filename + ", keeping previous rules");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return all loaded rules, in file order
+	 */
+	public List<AclRule> getRules()
+	{ return this.compiled.rules; }
+
+	public String toString()
+	{
+		List<AclRule> rules = this.compiled.rules;
+		if (0 == rules.size())
+		{ return " WARNING: ACL empty"; }
+
+		String result = "Hits\tRule\n";
+		for (AclRule rule : rules)
+		{ result += rule.getHits() + "\t" + rule.toString() + "\n"; }
+		return result;
+	}
+}
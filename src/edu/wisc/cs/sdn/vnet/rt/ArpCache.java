@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
@@ -12,6 +13,8 @@ import java.util.regex.Pattern;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.events.ArpResolvedEvent;
+
 /**
  * A cache of MAC address to IP address mappings.
  * @author Aaron Gember-Jacobson
@@ -33,7 +36,17 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		this.entries.put(ip, new ArpEntry(mac, ip));
+
+		ArpResolvedEvent event = new ArpResolvedEvent();
+		if (event.isEnabled())
+		{
+			event.address = IPv4.fromIPv4Address(ip);
+			event.mac = mac.toString();
+			event.commit();
+		}
+	}
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -43,6 +56,12 @@ public class ArpCache {
 	public ArpEntry lookup(int ip)
 	{ return this.entries.get(ip); }
 
+	/**
+	 * @return all entries in the cache
+	 */
+	public Collection<ArpEntry> getEntries()
+	{ return this.entries.values(); }
+
 	/**
 	 * Populate the ARP cache from a file.
 	 * @param filename name of the file containing the static route table
@@ -0,0 +1,273 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.BFD;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Detects failed neighbors with BFD hellos (RFC 5880, RFC 5881), so routes
+ * through them are withdrawn within a few hello intervals instead of when
+ * the routing protocol times them out. Every interface periodically
+ * broadcasts a discovery packet; a session is created for each neighbor that
+ * answers, and sessions come up with BFD's three-way handshake. Once up, a
+ * session goes down when the neighbor says so or when nothing arrives from
+ * it within the detection time, and the router then withdraws every route
+ * through the neighbor.
+ * <p>
+ * A single periodic task on the router's control-plane thread sends the
+ * packets that are due and checks detection times for every session, so the
+ * cost is one task run per interval regardless of the number of sessions.
+ * @author Aaron Gember-Jacobson
+ */
+public class BfdMonitor
+{
+	/** Detection time multiplier */
+	public static final byte DETECT_MULT = 3;
+
+	/** How often (in milliseconds) to broadcast discovery packets */
+	public static final int DISCOVERY_INTERVAL = 1000;
+
+	/** First UDP source port for sessions (RFC 5881 section 4) */
+	private static final int FIRST_SOURCE_PORT = 49152;
+
+	/** Router being monitored for */
+	private Router router;
+
+	/** Control-plane thread all work runs on */
+	private ScheduledExecutorService executor;
+
+	/** Desired interval (in milliseconds) between packets */
+	private int interval;
+
+	/** Sessions, keyed by neighbor IP address */
+	private Map<Integer,BfdSession> sessions;
+
+	/** Discriminator for the next session */
+	private int nextDiscriminator;
+
+	/** Time (in milliseconds since the epoch) of the last discovery */
+	private long lastDiscovery;
+
+	/** Source of transmit jitter */
+	private Random random;
+
+	/**
+	 * Create a monitor for a router.
+	 * @param router router to withdraw routes from when neighbors fail
+	 * @param executor control-plane thread all work runs on
+	 * @param interval desired interval (in milliseconds) between packets
+	 */
+	public BfdMonitor(Router router, ScheduledExecutorService executor,
+			int interval)
+	{
+		this.router = router;
+		this.executor = executor;
+		this.interval = interval;
+		this.sessions = new HashMap<Integer,BfdSession>();
+		this.random = new Random();
+		this.nextDiscriminator =
+				(this.random.nextInt(Integer.MAX_VALUE - 1) + 1) << 1;
+	}
+
+	/**
+	 * Start sending packets and checking detection times.
+	 */
+	public void start()
+	{
+		this.executor.scheduleAtFixedRate(new Runnable() {
+			public void run()
+			{
+				// An exception would silently cancel the periodic task
+				try
+				{ tick(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}, 0, this.interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue a received packet for the control-plane thread; called on the
+	 * packet thread.
+	 * @param bfd the packet
+	 * @param srcMac source MAC address of the packet
+	 * @param srcIp source IP address of the packet
+	 * @param inIface interface the packet was received on
+	 */
+	public void receive(final BFD bfd, final byte[] srcMac, final int srcIp,
+			final Iface inIface)
+	{
+		try
+		{
+			this.executor.execute(new Runnable() {
+				public void run()
+				{ handlePacket(bfd, srcMac, srcIp, inIface); }
+			});
+		}
+		catch (RejectedExecutionException e)
+		{ /* Control plane is shutting down */ }
+	}
+
+	/**
+	 * Update the neighbor's session from a packet, creating the session if
+	 * needed (RFC 5880 section 6.8.6). Discovery packets only create
+	 * sessions; they never change an existing one.
+	 */
+	private void handlePacket(BFD bfd, byte[] srcMac, int srcIp, Iface inIface)
+	{
+		if (bfd.getVersion() != BFD.VERSION || 0 == bfd.getDetectMult()
+				|| 0 == bfd.getMyDiscriminator())
+		{ return; }
+
+		BfdSession session = this.sessions.get(srcIp);
+		if (discoveryDiscriminator(srcIp) == bfd.getMyDiscriminator())
+		{
+			if (session != null && session.getInterface() == inIface)
+			{ return; }
+		}
+		else if (discoveryDiscriminator(inIface.getIpAddress())
+				== bfd.getYourDiscriminator())
+		{
+			// Answers to this router's discovery packets do not know the
+			// session's discriminator yet
+		}
+		else if (bfd.getYourDiscriminator() != 0)
+		{
+			if (null == session || session.getLocalDiscriminator()
+					!= bfd.getYourDiscriminator())
+			{ return; }
+		}
+		else if (bfd.getState() != BFD.STATE_DOWN
+				&& bfd.getState() != BFD.STATE_ADMIN_DOWN)
+		{ return; }
+
+		if (null == session || session.getInterface() != inIface)
+		{
+			// Session discriminators are even, so they never match a
+			// discovery discriminator
+			int discriminator = this.nextDiscriminator;
+			this.nextDiscriminator += 2;
+			if (0 == this.nextDiscriminator)
+			{ this.nextDiscriminator = 2; }
+			session = new BfdSession(discriminator, inIface, srcMac, srcIp,
+					(short)(FIRST_SOURCE_PORT + ((discriminator >>> 1) & 0x3fff)));
+			this.sessions.put(srcIp, session);
+		}
+
+		boolean wasUp = session.isUp();
+		long now = System.currentTimeMillis();
+		if (!session.receive(bfd, now))
+		{ return; }
+
+		if (session.isUp())
+		{
+			System.out.println("BFD session with "
+					+ IPv4.fromIPv4Address(srcIp) + " is up");
+		}
+		else if (wasUp)
+		{ this.neighborDown(session); }
+
+		// Answer state changes right away, so the handshake completes
+		// without waiting for the next interval
+		this.send(session, now);
+	}
+
+	/**
+	 * Every interval: send the packets that are due, and take down sessions
+	 * that missed their detection time.
+	 */
+	private void tick()
+	{
+		long now = System.currentTimeMillis();
+		for (BfdSession session : this.sessions.values())
+		{
+			boolean wasUp = session.isUp();
+			if (session.checkDetection(this.interval, now) && wasUp)
+			{ this.neighborDown(session); }
+			if (session.isTransmitDue(now))
+			{ this.send(session, now); }
+		}
+
+		if (now - this.lastDiscovery >= DISCOVERY_INTERVAL)
+		{
+			this.lastDiscovery = now;
+			for (Iface iface : this.router.getInterfaces().values())
+			{ this.sendDiscovery(iface); }
+		}
+	}
+
+	private void send(BfdSession session, long now)
+	{
+		byte[] frame = session.transmit(DETECT_MULT, this.interval,
+				this.interval, this.random.nextDouble() * 0.25, now);
+		this.router.sendFrame(frame, frame.length, session.getInterface());
+	}
+
+	/**
+	 * Broadcast a packet that is answered by every neighbor on the link that
+	 * runs BFD.
+	 */
+	private void sendDiscovery(Iface iface)
+	{
+		Ethernet ether = new Ethernet();
+		IPv4 ip = new IPv4();
+		UDP udp = new UDP();
+		BFD bfd = new BFD();
+
+		ether.setDestinationMACAddress(RipEncoder.BROADCAST_MAC);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setPayload(ip);
+
+		ip.setDestinationAddress(iface.getIpAddress() | ~iface.getSubnetMask());
+		ip.setSourceAddress(iface.getIpAddress());
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setTtl((byte)255);
+		ip.setPayload(udp);
+
+		udp.setDestinationPort(UDP.BFD_PORT);
+		udp.setSourcePort((short)FIRST_SOURCE_PORT);
+		udp.setPayload(bfd);
+
+		bfd.setState(BFD.STATE_DOWN);
+		bfd.setDetectMult(DETECT_MULT);
+		bfd.setMyDiscriminator(discoveryDiscriminator(iface.getIpAddress()));
+		bfd.setDesiredMinTxInterval(BfdSession.SLOW_INTERVAL * 1000);
+		bfd.setRequiredMinRxInterval(this.interval * 1000);
+
+		this.router.sendPacket(ether, iface);
+	}
+
+	/**
+	 * @param address an interface's IP address
+	 * @return the odd discriminator that identifies discovery packets sent
+	 *         from the address
+	 */
+	private static int discoveryDiscriminator(int address)
+	{ return address | 1; }
+
+	private void neighborDown(BfdSession session)
+	{
+		System.out.println("BFD session with "
+				+ IPv4.fromIPv4Address(session.getAddress()) + " is down");
+		this.router.neighborDown(session.getAddress());
+	}
+
+	public String toString()
+	{
+		String result = "Neighbor\tIface\tState\n";
+		for (BfdSession session : this.sessions.values())
+		{ result += session.toString() + "\n"; }
+		return result;
+	}
+}
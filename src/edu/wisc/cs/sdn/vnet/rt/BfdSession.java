@@ -0,0 +1,246 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.BFD;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A BFD session with one neighbor on one interface (RFC 5880). The session
+ * tracks its own state and the intervals the neighbor asked for, and keeps
+ * the frame it sends pre-built: only the BFD fields are rewritten before each
+ * transmission, so sending costs no allocation. The UDP checksum is left
+ * empty, which IPv4 allows.
+ * @author Aaron Gember-Jacobson
+ */
+public class BfdSession
+{
+	/** Offset of the BFD packet in the frame */
+	private static final int BFD_OFFSET = 14 + 20 + 8;
+
+	/** Offset of the UDP checksum in the frame */
+	private static final int UDP_CHECKSUM_OFFSET = 14 + 20 + 6;
+
+	/** Shortest interval (in milliseconds) between packets while the
+	 *  session is not up (RFC 5880 section 6.8.3) */
+	public static final int SLOW_INTERVAL = 1000;
+
+	/** Neighbor's IP address */
+	private int address;
+
+	/** Interface the neighbor is reached on */
+	private Iface iface;
+
+	/** Discriminator identifying the session locally */
+	private int localDiscriminator;
+
+	/** Discriminator identifying the session at the neighbor; 0 if unknown */
+	private int remoteDiscriminator;
+
+	/** Session state */
+	private byte state;
+
+	/** Diagnostic code for the last time the session went down */
+	private byte diagnostic;
+
+	/** Neighbor's detection time multiplier */
+	private int remoteDetectMult;
+
+	/** Neighbor's desired transmit interval (in milliseconds) */
+	private int remoteDesiredMinTx;
+
+	/** Neighbor's required receive interval (in milliseconds) */
+	private int remoteRequiredMinRx;
+
+	/** Time (in milliseconds since the epoch) a packet was last received */
+	private long lastReceived;
+
+	/** Time (in milliseconds since the epoch) the next packet is due */
+	private long nextTransmit;
+
+	/** Frame sent to the neighbor; only the BFD fields change */
+	private byte[] frame;
+
+	/** Buffer for rewriting the frame */
+	private ByteBuffer buffer;
+
+	/**
+	 * Create a session that is down.
+	 * @param localDiscriminator discriminator identifying the session
+	 *        locally; must not be 0
+	 * @param iface interface the neighbor is reached on
+	 * @param mac neighbor's MAC address
+	 * @param address neighbor's IP address
+	 * @param sourcePort UDP source port for the session (RFC 5881 section 4)
+	 */
+	public BfdSession(int localDiscriminator, Iface iface, byte[] mac,
+			int address, short sourcePort)
+	{
+		this.localDiscriminator = localDiscriminator;
+		this.iface = iface;
+		this.address = address;
+		this.state = BFD.STATE_DOWN;
+		this.diagnostic = BFD.DIAG_NONE;
+
+		Ethernet ether = new Ethernet();
+		IPv4 ip = new IPv4();
+		UDP udp = new UDP();
+		BFD bfd = new BFD();
+		ether.setDestinationMACAddress(mac);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setPayload(ip);
+		ip.setDestinationAddress(address);
+		ip.setSourceAddress(iface.getIpAddress());
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setTtl((byte)255);
+		ip.setPayload(udp);
+		udp.setDestinationPort(UDP.BFD_PORT);
+		udp.setSourcePort(sourcePort);
+		udp.setPayload(bfd);
+		this.frame = ether.serialize();
+		this.buffer = ByteBuffer.wrap(this.frame);
+	}
+
+	/**
+	 * @return neighbor's IP address
+	 */
+	public int getAddress()
+	{ return this.address; }
+
+	/**
+	 * @return interface the neighbor is reached on
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return discriminator identifying the session locally
+	 */
+	public int getLocalDiscriminator()
+	{ return this.localDiscriminator; }
+
+	/**
+	 * @return session state
+	 */
+	public byte getState()
+	{ return this.state; }
+
+	/**
+	 * @return true if the session is up
+	 */
+	public boolean isUp()
+	{ return BFD.STATE_UP == this.state; }
+
+	/**
+	 * Update the session from a packet received from the neighbor
+	 * (RFC 5880 section 6.8.6).
+	 * @param bfd the packet
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return true if the session state changed
+	 */
+	public boolean receive(BFD bfd, long now)
+	{
+		this.remoteDiscriminator = bfd.getMyDiscriminator();
+		this.remoteDetectMult = bfd.getDetectMult();
+		this.remoteDesiredMinTx = bfd.getDesiredMinTxInterval() / 1000;
+		this.remoteRequiredMinRx = bfd.getRequiredMinRxInterval() / 1000;
+		this.lastReceived = now;
+
+		byte previous = this.state;
+		byte remote = bfd.getState();
+		if (BFD.STATE_ADMIN_DOWN == remote)
+		{
+			if (this.state != BFD.STATE_DOWN)
+			{ this.down(BFD.DIAG_NEIGHBOR_DOWN); }
+		}
+		else if (BFD.STATE_DOWN == this.state)
+		{
+			if (BFD.STATE_DOWN == remote)
+			{ this.state = BFD.STATE_INIT; }
+			else if (BFD.STATE_INIT == remote)
+			{ this.state = BFD.STATE_UP; }
+		}
+		else if (BFD.STATE_INIT == this.state)
+		{
+			if (BFD.STATE_INIT == remote || BFD.STATE_UP == remote)
+			{ this.state = BFD.STATE_UP; }
+		}
+		else if (BFD.STATE_DOWN == remote)
+		{ this.down(BFD.DIAG_NEIGHBOR_DOWN); }
+		return this.state != previous;
+	}
+
+	/**
+	 * Take the session down if no packet arrived within the detection time.
+	 * @param localRequiredMinRx shortest interval (in milliseconds) packets
+	 *        can be received at
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return true if the session went down
+	 */
+	public boolean checkDetection(int localRequiredMinRx, long now)
+	{
+		if (BFD.STATE_DOWN == this.state || 0 == this.remoteDetectMult)
+		{ return false; }
+		long detectionTime = (long)this.remoteDetectMult
+				* Math.max(localRequiredMinRx, this.remoteDesiredMinTx);
+		if (now - this.lastReceived <= detectionTime)
+		{ return false; }
+		this.down(BFD.DIAG_DETECTION_TIMEOUT);
+		return true;
+	}
+
+	private void down(byte diagnostic)
+	{
+		this.state = BFD.STATE_DOWN;
+		this.diagnostic = diagnostic;
+		this.remoteDiscriminator = 0;
+	}
+
+	/**
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return true if the next packet is due
+	 */
+	public boolean isTransmitDue(long now)
+	{ return now >= this.nextTransmit; }
+
+	/**
+	 * Prepare the frame for the next packet and schedule the one after it,
+	 * reduced by up to 25% of the interval as jitter (RFC 5880 section
+	 * 6.8.7).
+	 * @param detectMult local detection time multiplier
+	 * @param desiredMinTx local desired transmit interval (in milliseconds)
+	 * @param requiredMinRx local required receive interval (in milliseconds)
+	 * @param jitter fraction of the interval to subtract, from 0 to 0.25
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return the frame to send
+	 */
+	public byte[] transmit(byte detectMult, int desiredMinTx, int requiredMinRx,
+			double jitter, long now)
+	{
+		// Advertise the slow rate until the session is up
+		int advertisedTx = (this.isUp() ? desiredMinTx
+				: Math.max(desiredMinTx, SLOW_INTERVAL));
+		ByteBuffer bb = this.buffer;
+		bb.position(BFD_OFFSET);
+		BFD.serialize(bb, this.diagnostic, this.state, detectMult,
+				this.localDiscriminator, this.remoteDiscriminator,
+				advertisedTx * 1000, requiredMinRx * 1000);
+		bb.putShort(UDP_CHECKSUM_OFFSET, (short)0);
+
+		int interval = Math.max(advertisedTx, this.remoteRequiredMinRx);
+		this.nextTransmit = now + interval - (long)(interval * jitter);
+		return this.frame;
+	}
+
+	public String toString()
+	{
+		String[] states = { "AdminDown", "Down", "Init", "Up" };
+		return String.format("%s\t%s\t%s", IPv4.fromIPv4Address(this.address),
+				this.iface.getName(), states[this.state]);
+	}
+}
@@ -0,0 +1,199 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Route flap dampening (RFC 2439). Each prefix accumulates a penalty every
+ * time its route is withdrawn or moves to a different next hop, and the
+ * penalty decays exponentially with a fixed half-life. A prefix whose
+ * penalty rises above the suppress limit is suppressed -- its route is
+ * neither used nor advertised -- until the penalty decays below the reuse
+ * limit, or until it has been suppressed for the longest allowed time. The
+ * penalty is capped so a suppressed prefix always becomes reusable within
+ * that time.
+ * <p>
+ * The time constants are scaled down from the RFC's suggested values to
+ * match RIP's 30-second route timeout. Only flapping prefixes are tracked,
+ * and a prefix is forgotten once its penalty decays below half the reuse
+ * limit. The dampener is not thread safe; RIP uses it only on the
+ * control-plane thread, and the statistics may be read from any thread.
+ * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
+ */
+public class FlapDampener
+{
+	/** Penalty for a withdrawn route */
+	public static final double WITHDRAW_PENALTY = 1000;
+
+	/** Penalty for a route that moved to a different next hop */
+	public static final double CHANGE_PENALTY = 500;
+
+	/** Penalty above which a prefix is suppressed */
+	public static final double SUPPRESS_LIMIT = 2000;
+
+	/** Penalty below which a suppressed prefix is used again */
+	public static final double REUSE_LIMIT = 750;
+
+	/** Time (in milliseconds) for a penalty to decay by half */
+	public static final long HALF_LIFE = 60 * 1000;
+
+	/** Longest time (in milliseconds) a prefix stays suppressed */
+	public static final long MAX_SUPPRESS_TIME = 4 * HALF_LIFE;
+
+	/** Highest penalty; decays to the reuse limit in the longest suppress
+	 *  time */
+	public static final double MAX_PENALTY = REUSE_LIMIT
+			* Math.pow(2, (double)MAX_SUPPRESS_TIME / HALF_LIFE);
+
+	/**
+	 * Dampening state for a prefix.
+	 */
+	private static class Entry
+	{
+		/** Penalty as of the last update */
+		double penalty;
+
+		/** Time (in milliseconds since the epoch) of the last update */
+		long updated;
+
+		/** Whether the prefix is suppressed */
+		boolean suppressed;
+
+		/** Time (in milliseconds since the epoch) the prefix was suppressed */
+		long suppressedAt;
+	}
+
+	/** Dampening state for flapping prefixes, keyed by RipDatabase.key */
+	private Map<Long,Entry> entries;
+
+	/** Number of flaps recorded */
+	private volatile long flaps;
+
+	/** Number of times a prefix was suppressed */
+	private volatile long suppressions;
+
+	/** Number of times a suppressed prefix was reused */
+	private volatile long reuses;
+
+	/** Number of prefixes currently suppressed */
+	private volatile int suppressed;
+
+	/**
+	 * Create a dampener that tracks no prefixes.
+	 */
+	public FlapDampener()
+	{ this.entries = new HashMap<Long,Entry>(); }
+
+	/**
+	 * Decay an entry's penalty to the current time.
+	 */
+	private static void decay(Entry entry, long now)
+	{
+		if (now > entry.updated)
+		{
+			entry.penalty *= Math.pow(0.5,
+					(double)(now - entry.updated) / HALF_LIFE);
+			entry.updated = now;
+		}
+	}
+
+	/**
+	 * Add a penalty for a flap of a prefix.
+	 * @param key the prefix's key
+	 * @param penalty penalty for the flap
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return true if the prefix is suppressed
+	 */
+	public boolean flap(long key, double penalty, long now)
+	{
+		Entry entry = this.entries.get(key);
+		if (null == entry)
+		{
+			entry = new Entry();
+			entry.updated = now;
+			this.entries.put(key, entry);
+		}
+		decay(entry, now);
+		entry.penalty = Math.min(entry.penalty + penalty, MAX_PENALTY);
+		this.flaps++;
+
+		if (!entry.suppressed && entry.penalty > SUPPRESS_LIMIT)
+		{
+			entry.suppressed = true;
+			entry.suppressedAt = now;
+			this.suppressions++;
+			this.suppressed++;
+		}
+		return entry.suppressed;
+	}
+
+	/**
+	 * @param key a prefix's key
+	 * @return true if the prefix is suppressed
+	 */
+	public boolean isSuppressed(long key)
+	{
+		Entry entry = this.entries.get(key);
+		return (entry != null && entry.suppressed);
+	}
+
+	/**
+	 * Reuse suppressed prefixes whose penalty decayed below the reuse limit,
+	 * or that were suppressed for the longest allowed time, and forget
+	 * prefixes that stopped flapping.
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return keys of the prefixes that are no longer suppressed
+	 */
+	public List<Long> reuse(long now)
+	{
+		List<Long> reused = new ArrayList<Long>();
+		Iterator<Map.Entry<Long,Entry>> iter = this.entries.entrySet().iterator();
+		while (iter.hasNext())
+		{
+			Map.Entry<Long,Entry> mapEntry = iter.next();
+			Entry entry = mapEntry.getValue();
+			decay(entry, now);
+			if (entry.suppressed)
+			{
+				if (entry.penalty < REUSE_LIMIT
+						|| now - entry.suppressedAt >= MAX_SUPPRESS_TIME)
+				{
+					entry.suppressed = false;
+					this.reuses++;
+					this.suppressed--;
+					reused.add(mapEntry.getKey());
+				}
+			}
+			else if (entry.penalty < REUSE_LIMIT / 2)
+			{ iter.remove(); }
+		}
+		return reused;
+	}
+
+	/**
+	 * @return number of flaps recorded
+	 */
+	public long getFlaps()
+	{ return this.flaps; }
+
+	/**
+	 * @return number of times a prefix was suppressed
+	 */
+	public long getSuppressions()
+	{ return this.suppressions; }
+
+	/**
+	 * @return number of times a suppressed prefix was reused
+	 */
+	public long getReuses()
+	{ return this.reuses; }
+
+	/**
+	 * @return number of prefixes currently suppressed
+	 */
+	public int getSuppressed()
+	{ return this.suppressed; }
+}
@@ -0,0 +1,670 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.LinkState;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Link-state routing for a router, as an alternative to RIP. Routers discover
+ * neighbors with periodic hellos, and each router floods an LSA listing its
+ * neighbors and directly connected prefixes. Every router keeps the newest
+ * LSA from each router in its link-state database, computes shortest paths
+ * to all routers with Dijkstra's algorithm (SPF), and installs a route to
+ * each prefix through the first hop on the shortest path to the router that
+ * advertises it.
+ * <p>
+ * SPF is incremental: a full Dijkstra run is only needed when an LSA's
+ * adjacencies change. When only an LSA's prefixes change, the shortest-path
+ * tree is reused and only routes to the affected prefixes are recomputed; an
+ * LSA that is merely refreshed causes no recomputation at all.
+ * <p>
+ * Like RIP, all protocol work runs on the router's control-plane thread,
+ * which is the only thread that uses the link-state database, and route
+ * changes are published to the route table in one batch per task.
+ * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
+ */
+public class LinkStateRouting
+{
+	/** How often (in milliseconds) to send hellos */
+	public static final int HELLO_INTERVAL = 1000;
+
+	/** How long (in milliseconds) a neighbor lasts without a hello */
+	public static final int DEAD_INTERVAL = 4 * HELLO_INTERVAL;
+
+	/** How often (in milliseconds) a router re-floods its own LSA */
+	public static final int REFRESH_INTERVAL = 30 * 1000;
+
+	/** How long (in milliseconds) an LSA lasts without being refreshed */
+	public static final int MAX_AGE = 3 * REFRESH_INTERVAL;
+
+	/** Cost of every link */
+	public static final int LINK_COST = 1;
+
+	/** Multicast address of link-state routers (224.0.0.5) */
+	public static final int ALL_ROUTERS = IPv4.toIPv4Address("224.0.0.5");
+
+	/**
+	 * A router heard from on one of this router's links.
+	 */
+	private static class Neighbor
+	{
+		/** Neighbor's router ID */
+		int routerId;
+
+		/** Neighbor's address on the link; the gateway for routes through it */
+		int address;
+
+		/** Interface the neighbor is reached on */
+		Iface iface;
+
+		/** Time (in milliseconds since the epoch) of the last hello */
+		long lastHeard;
+	}
+
+	/**
+	 * An LSA in the link-state database.
+	 */
+	private static class Lsa
+	{
+		/** The advertisement */
+		LinkState lsa;
+
+		/** Time (in milliseconds since the epoch) the LSA expires */
+		long expires;
+	}
+
+	/**
+	 * Shortest path to a router, from the last SPF run.
+	 */
+	private static class Path
+	{
+		/** Total cost of the path */
+		int distance;
+
+		/** First hop on the path */
+		Neighbor firstHop;
+	}
+
+	/** Router running the protocol */
+	private Router router;
+
+	/** Route table changes are published to */
+	private RouteTable routeTable;
+
+	/** Control-plane thread all protocol work runs on */
+	private ScheduledExecutorService executor;
+
+	/** ID of this router; its highest interface address */
+	private int routerId;
+
+	/** Sequence number of this router's most recent LSA */
+	private int sequence;
+
+	/** Time (in milliseconds since the epoch) this router's LSA was last
+	 *  flooded */
+	private long lastOriginated;
+
+	/** Neighbors, keyed by their address on the link */
+	private Map<Integer,Neighbor> neighbors;
+
+	/** Link-state database, keyed by originating router ID */
+	private Map<Integer,Lsa> lsdb;
+
+	/** Shortest paths to every reachable router, keyed by router ID */
+	private Map<Integer,Path> paths;
+
+	/** Learned routes in the route table, keyed by prefix */
+	private Map<Long,RouteEntry> installed;
+
+	/** Prefixes of directly connected networks */
+	private Set<Long> connected;
+
+	/** Number of full and partial SPF runs */
+	private long fullRuns;
+	private long partialRuns;
+
+	/**
+	 * Create link-state routing for a router.
+	 * @param router router running the protocol
+	 * @param executor control-plane thread all protocol work runs on
+	 */
+	public LinkStateRouting(Router router, ScheduledExecutorService executor)
+	{
+		this.router = router;
+		this.routeTable = router.getRouteTable();
+		this.executor = executor;
+		this.neighbors = new HashMap<Integer,Neighbor>();
+		this.lsdb = new HashMap<Integer,Lsa>();
+		this.paths = new HashMap<Integer,Path>();
+		this.installed = new HashMap<Long,RouteEntry>();
+		this.connected = new HashSet<Long>();
+
+		for (Iface iface : router.getInterfaces().values())
+		{
+			if (Integer.compareUnsigned(iface.getIpAddress(), this.routerId) > 0)
+			{ this.routerId = iface.getIpAddress(); }
+		}
+
+		// Sequence numbers start from the clock, so LSAs sent after a restart
+		// replace the ones other routers still hold from before it
+		this.sequence = (int)(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Add routes for directly connected networks, flood this router's LSA,
+	 * and start sending hellos.
+	 */
+	public void start()
+	{
+		this.executor.execute(new Runnable() {
+			public void run()
+			{ initialize(); }
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				// An exception would silently cancel the periodic task
+				try
+				{ tick(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}, HELLO_INTERVAL, HELLO_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue a received hello or LSA for the control-plane thread; called on
+	 * the packet thread.
+	 * @param packet the message
+	 * @param srcIp source IP address of the message
+	 * @param inIface interface the message was received on
+	 */
+	public void receive(final LinkState packet, final int srcIp,
+			final Iface inIface)
+	{
+		try
+		{
+			this.executor.execute(new Runnable() {
+				public void run()
+				{
+					if (packet.getType() == LinkState.TYPE_HELLO)
+					{ handleHello(packet, srcIp, inIface); }
+					else if (packet.getType() == LinkState.TYPE_LSA)
+					{ handleLsa(packet, inIface); }
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{ /* Control plane is shutting down */ }
+	}
+
+	/**
+	 * Drop a neighbor that failed, without waiting for its hellos to stop;
+	 * must be called on the control-plane thread.
+	 * @param address neighbor's address on the link
+	 */
+	public void neighborDown(int address)
+	{
+		Neighbor neighbor = this.neighbors.remove(address);
+		if (null == neighbor)
+		{ return; }
+		System.out.println("Neighbor " + IPv4.fromIPv4Address(neighbor.routerId)
+				+ " on " + neighbor.iface.getName() + " is down");
+		this.originate();
+	}
+
+	/**
+	 * @return number of full SPF runs
+	 */
+	public long getFullRuns()
+	{ return this.fullRuns; }
+
+	/**
+	 * @return number of partial route recomputations that reused the
+	 *         shortest-path tree
+	 */
+	public long getPartialRuns()
+	{ return this.partialRuns; }
+
+	private void initialize()
+	{
+		RouteTable.Batch batch = new RouteTable.Batch();
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			int mask = iface.getSubnetMask();
+			int ip = iface.getIpAddress() & mask;
+			batch.put(ip, 0, mask, iface);
+			this.connected.add(RipDatabase.key(ip, mask));
+		}
+		this.routeTable.apply(batch);
+		System.out.println(this.routeTable);
+
+		this.sendHellos();
+		this.originate();
+	}
+
+	/**
+	 * Every hello interval: send hellos, drop neighbors and LSAs that were
+	 * not refreshed, and re-flood this router's LSA when it is due.
+	 */
+	private void tick()
+	{
+		long now = System.currentTimeMillis();
+		this.sendHellos();
+
+		boolean neighborsChanged = false;
+		Iterator<Neighbor> neighborIter = this.neighbors.values().iterator();
+		while (neighborIter.hasNext())
+		{
+			Neighbor neighbor = neighborIter.next();
+			if (now - neighbor.lastHeard > DEAD_INTERVAL)
+			{
+				neighborIter.remove();
+				neighborsChanged = true;
+				System.out.println("Neighbor "
+						+ IPv4.fromIPv4Address(neighbor.routerId) + " on "
+						+ neighbor.iface.getName() + " is down");
+			}
+		}
+
+		boolean lsdbChanged = false;
+		Iterator<Lsa> lsaIter = this.lsdb.values().iterator();
+		while (lsaIter.hasNext())
+		{
+			Lsa entry = lsaIter.next();
+			if (entry.lsa.getRouterId() != this.routerId && entry.expires < now)
+			{
+				lsaIter.remove();
+				lsdbChanged = true;
+			}
+		}
+
+		// Originating an LSA also runs SPF
+		if (neighborsChanged || now - this.lastOriginated >= REFRESH_INTERVAL)
+		{ this.originate(); }
+		else if (lsdbChanged)
+		{ this.runSpf(); }
+	}
+
+	/**
+	 * Record a hello; a new neighbor is added to this router's LSA and sent
+	 * the whole link-state database.
+	 */
+	private void handleHello(LinkState hello, int srcIp, Iface inIface)
+	{
+		Neighbor neighbor = this.neighbors.get(srcIp);
+		if (neighbor != null && neighbor.routerId == hello.getRouterId()
+				&& neighbor.iface == inIface)
+		{
+			neighbor.lastHeard = System.currentTimeMillis();
+			return;
+		}
+
+		neighbor = new Neighbor();
+		neighbor.routerId = hello.getRouterId();
+		neighbor.address = srcIp;
+		neighbor.iface = inIface;
+		neighbor.lastHeard = System.currentTimeMillis();
+		this.neighbors.put(srcIp, neighbor);
+		System.out.println("Neighbor " + IPv4.fromIPv4Address(neighbor.routerId)
+				+ " on " + inIface.getName() + " is up");
+
+		for (Lsa entry : this.lsdb.values())
+		{ this.send(entry.lsa, inIface); }
+		this.originate();
+	}
+
+	/**
+	 * Store and flood an LSA that is newer than the one in the database, and
+	 * recompute routes as far as the change requires.
+	 */
+	private void handleLsa(LinkState lsa, Iface inIface)
+	{
+		int origin = lsa.getRouterId();
+		if (origin == this.routerId)
+		{
+			// An LSA from before this router restarted; replace it
+			if (lsa.getSequence() - this.sequence >= 0)
+			{
+				this.sequence = lsa.getSequence();
+				this.originate();
+			}
+			return;
+		}
+
+		// Older and duplicate LSAs are not flooded again, which ends flooding
+		Lsa entry = this.lsdb.get(origin);
+		if (entry != null && lsa.getSequence() - entry.lsa.getSequence() <= 0)
+		{ return; }
+
+		LinkState previous = (entry != null ? entry.lsa : null);
+		if (null == entry)
+		{
+			entry = new Lsa();
+			this.lsdb.put(origin, entry);
+		}
+		entry.lsa = lsa;
+		entry.expires = System.currentTimeMillis() + MAX_AGE;
+		this.flood(lsa, inIface);
+
+		if (null == previous || !previous.sameLinks(lsa))
+		{ this.runSpf(); }
+		else if (!previous.samePrefixes(lsa))
+		{ this.updatePrefixes(previous, lsa); }
+	}
+
+	/**
+	 * Build, store, and flood a new LSA for this router, and recompute
+	 * routes.
+	 */
+	private void originate()
+	{
+		// Adjacencies and prefixes are sorted, so equal LSAs compare equal
+		Map<Integer,Integer> links = new HashMap<Integer,Integer>();
+		for (Neighbor neighbor : this.neighbors.values())
+		{ links.put(neighbor.routerId, LINK_COST); }
+		int[] neighborIds = new int[links.size()];
+		int i = 0;
+		for (int id : links.keySet())
+		{ neighborIds[i++] = id; }
+		Arrays.sort(neighborIds);
+		int[] costs = new int[neighborIds.length];
+		for (i = 0; i < neighborIds.length; i++)
+		{ costs[i] = links.get(neighborIds[i]); }
+
+		long[] prefixes = new long[this.connected.size()];
+		i = 0;
+		for (long key : this.connected)
+		{ prefixes[i++] = key; }
+		Arrays.sort(prefixes);
+		int[] addresses = new int[prefixes.length];
+		int[] masks = new int[prefixes.length];
+		for (i = 0; i < prefixes.length; i++)
+		{
+			addresses[i] = (int)(prefixes[i] >>> 32);
+			masks[i] = (int)prefixes[i];
+		}
+
+		LinkState lsa = new LinkState();
+		lsa.setType(LinkState.TYPE_LSA);
+		lsa.setRouterId(this.routerId);
+		lsa.setSequence(++this.sequence);
+		lsa.setLinks(neighborIds, costs);
+		lsa.setPrefixes(addresses, masks);
+
+		Lsa entry = this.lsdb.get(this.routerId);
+		LinkState previous = (entry != null ? entry.lsa : null);
+		if (null == entry)
+		{
+			entry = new Lsa();
+			this.lsdb.put(this.routerId, entry);
+		}
+		entry.lsa = lsa;
+		entry.expires = Long.MAX_VALUE;
+		this.lastOriginated = System.currentTimeMillis();
+		this.flood(lsa, null);
+
+		if (null == previous || !previous.sameLinks(lsa))
+		{ this.runSpf(); }
+	}
+
+	/**
+	 * Compute shortest paths to every router with Dijkstra's algorithm, then
+	 * recompute all routes. A link is only used if the routers at both ends
+	 * list each other.
+	 */
+	private void runSpf()
+	{
+		this.fullRuns++;
+		Map<Integer,Path> paths = new HashMap<Integer,Path>();
+		Path root = new Path();
+		paths.put(this.routerId, root);
+
+		// Queue entries hold a distance in the upper 32 bits and a router ID
+		// in the lower 32 bits, so they order by distance
+		PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		queue.add((long)this.routerId & 0xffffffffL);
+		Set<Integer> done = new HashSet<Integer>();
+		while (!queue.isEmpty())
+		{
+			long head = queue.poll();
+			int id = (int)head;
+			if (!done.add(id))
+			{ continue; }
+			Path path = paths.get(id);
+			Lsa entry = this.lsdb.get(id);
+			if (null == entry)
+			{ continue; }
+
+			int[] neighborIds = entry.lsa.getNeighbors();
+			int[] costs = entry.lsa.getCosts();
+			for (int i = 0; i < neighborIds.length; i++)
+			{
+				int next = neighborIds[i];
+				if (done.contains(next) || !this.listsNeighbor(next, id))
+				{ continue; }
+				int distance = path.distance + costs[i];
+				Path nextPath = paths.get(next);
+				if (nextPath != null && nextPath.distance <= distance)
+				{ continue; }
+
+				Neighbor firstHop = path.firstHop;
+				if (id == this.routerId)
+				{
+					firstHop = this.findNeighbor(next);
+					if (null == firstHop)
+					{ continue; }
+				}
+				if (null == nextPath)
+				{
+					nextPath = new Path();
+					paths.put(next, nextPath);
+				}
+				nextPath.distance = distance;
+				nextPath.firstHop = firstHop;
+				queue.add(((long)distance << 32) | (next & 0xffffffffL));
+			}
+		}
+		this.paths = paths;
+		this.updateRoutes(null);
+	}
+
+	/**
+	 * Recompute routes to the prefixes an LSA added or withdrew, reusing the
+	 * shortest-path tree from the last SPF run.
+	 * @param previous the LSA that was replaced
+	 * @param lsa the new LSA
+	 */
+	private void updatePrefixes(LinkState previous, LinkState lsa)
+	{
+		this.partialRuns++;
+		Set<Long> affected = new HashSet<Long>();
+		for (LinkState changed : new LinkState[] { previous, lsa })
+		{
+			int[] addresses = changed.getAddresses();
+			int[] masks = changed.getMasks();
+			for (int i = 0; i < addresses.length; i++)
+			{ affected.add(RipDatabase.key(addresses[i], masks[i])); }
+		}
+		this.updateRoutes(affected);
+	}
+
+	/**
+	 * Route each prefix through the first hop towards the nearest router
+	 * that advertises it, and publish the routes that changed.
+	 * @param affected prefixes to recompute; null to recompute all
+	 */
+	private void updateRoutes(Set<Long> affected)
+	{
+		Map<Long,RouteEntry> best = new HashMap<Long,RouteEntry>();
+		Map<Long,Integer> bestDistance = new HashMap<Long,Integer>();
+		for (Map.Entry<Integer,Path> reachable : this.paths.entrySet())
+		{
+			Path path = reachable.getValue();
+			Lsa entry = this.lsdb.get(reachable.getKey());
+			if (null == path.firstHop || null == entry)
+			{ continue; }
+			int[] addresses = entry.lsa.getAddresses();
+			int[] masks = entry.lsa.getMasks();
+			for (int i = 0; i < addresses.length; i++)
+			{
+				long key = RipDatabase.key(addresses[i], masks[i]);
+				if (this.connected.contains(key)
+						|| (affected != null && !affected.contains(key)))
+				{ continue; }
+				Integer distance = bestDistance.get(key);
+				if (distance != null && distance <= path.distance)
+				{ continue; }
+				bestDistance.put(key, path.distance);
+				best.put(key, new RouteEntry(addresses[i] & masks[i],
+						path.firstHop.address, masks[i], path.firstHop.iface));
+			}
+		}
+
+		RouteTable.Batch batch = new RouteTable.Batch();
+		List<Long> withdrawn = new ArrayList<Long>();
+		for (Map.Entry<Long,RouteEntry> current : this.installed.entrySet())
+		{
+			long key = current.getKey();
+			if ((null == affected || affected.contains(key))
+					&& !best.containsKey(key))
+			{
+				RouteEntry route = current.getValue();
+				batch.remove(route.getDestinationAddress(),
+						route.getMaskAddress());
+				withdrawn.add(key);
+			}
+		}
+		for (long key : withdrawn)
+		{ this.installed.remove(key); }
+		for (Map.Entry<Long,RouteEntry> update : best.entrySet())
+		{
+			RouteEntry route = update.getValue();
+			RouteEntry current = this.installed.get(update.getKey());
+			if (current != null
+					&& current.getGatewayAddress() == route.getGatewayAddress()
+					&& current.getInterface() == route.getInterface())
+			{ continue; }
+			batch.put(route.getDestinationAddress(), route.getGatewayAddress(),
+					route.getMaskAddress(), route.getInterface());
+			this.installed.put(update.getKey(), route);
+		}
+
+		if (!batch.isEmpty())
+		{
+			this.routeTable.apply(batch);
+			System.out.println(this.routeTable);
+		}
+	}
+
+	/**
+	 * @param id a router ID
+	 * @param neighborId another router ID
+	 * @return true if the router's LSA lists the other router as a neighbor
+	 */
+	private boolean listsNeighbor(int id, int neighborId)
+	{
+		Lsa entry = this.lsdb.get(id);
+		if (null == entry)
+		{ return false; }
+		for (int neighbor : entry.lsa.getNeighbors())
+		{
+			if (neighbor == neighborId)
+			{ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * @param id a router ID
+	 * @return a neighbor with the ID; null if none
+	 */
+	private Neighbor findNeighbor(int id)
+	{
+		for (Neighbor neighbor : this.neighbors.values())
+		{
+			if (neighbor.routerId == id)
+			{ return neighbor; }
+		}
+		return null;
+	}
+
+	private void sendHellos()
+	{
+		LinkState hello = new LinkState();
+		hello.setType(LinkState.TYPE_HELLO);
+		hello.setRouterId(this.routerId);
+		for (Iface iface : this.router.getInterfaces().values())
+		{ this.send(hello, iface); }
+	}
+
+	/**
+	 * Send an LSA out every interface except the one it was received on.
+	 * @param lsa the LSA
+	 * @param inIface interface the LSA was received on; null if originated
+	 *        by this router
+	 */
+	private void flood(LinkState lsa, Iface inIface)
+	{
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			if (iface != inIface)
+			{ this.send(lsa, iface); }
+		}
+	}
+
+	private void send(LinkState message, Iface iface)
+	{
+		Ethernet ether = new Ethernet();
+		IPv4 ip = new IPv4();
+		UDP udp = new UDP();
+
+		ether.setDestinationMACAddress(RipEncoder.BROADCAST_MAC);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setPayload(ip);
+
+		ip.setDestinationAddress(ALL_ROUTERS);
+		ip.setSourceAddress(iface.getIpAddress());
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setTtl((byte)64);
+		ip.setPayload(udp);
+
+		udp.setDestinationPort(UDP.LINK_STATE_PORT);
+		udp.setSourcePort(UDP.LINK_STATE_PORT);
+		udp.setPayload(message);
+
+		this.router.sendPacket(ether, iface);
+	}
+
+	public String toString()
+	{
+		String result = "Router\t\tSeq\t\tDistance\tNeighbors\n";
+		for (Lsa entry : this.lsdb.values())
+		{
+			LinkState lsa = entry.lsa;
+			Path path = this.paths.get(lsa.getRouterId());
+			result += String.format("%s\t%d\t%s\t\t%d\n",
+					IPv4.fromIPv4Address(lsa.getRouterId()), lsa.getSequence(),
+					(path != null ? String.valueOf(path.distance) : "-"),
+					lsa.getNeighbors().length);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,561 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Connection table for source NAT. Maps an inside (protocol, address, port)
+ * to a port on the outside address, and an outside (protocol, port) back to
+ * the inside address and port.
+ * <p>
+ * Both directions are kept in open-addressing tables of primitive keys, so
+ * lookups take no locks and allocate nothing. Mappings are only created by
+ * the thread that processes packets, and idle mappings are removed by the
+ * timeout thread; both hold the table's lock while changing it. A removed
+ * mapping's slot is filled by shifting later mappings in its probe sequence
+ * back, so no tombstones are left behind and a lookup for an unknown port
+ * stops at the first empty slot. A lookup that misses is repeated under the
+ * lock, since a mapping being shifted may be briefly out of reach.
+ * <p>
+ * Every mapping takes an outside port of its own on the single outside
+ * address, so there are at most 64512 mappings (ports 1024 to 65535) per
+ * protocol; the default table size holds that many for all three.
+ * @author Aaron Gember-Jacobson
+ */
+public class NatTable implements Runnable
+{
+	/** Default number of slots in each table; three quarters of the slots
+	 *  cover every outside port for TCP, UDP, and ICMP */
+	public static final int DEFAULT_CAPACITY = 1 << 18;
+
+	/** Idle timeouts (in seconds) for each protocol */
+	public static final int TCP_TIMEOUT = 300;
+	public static final int UDP_TIMEOUT = 120;
+	public static final int ICMP_TIMEOUT = 60;
+
+	/** Time (in seconds) to sweep the entire table for idle mappings */
+	public static final int SWEEP_PERIOD = 10;
+
+	/** Range of outside ports (or ICMP identifiers) handed out */
+	public static final int FIRST_PORT = 1024;
+	public static final int LAST_PORT = 65535;
+
+	private static final long EMPTY = 0;
+	private static final long LIVE = 1L << 56;
+
+	/** Address used on the outside of the NAT */
+	private int outsideAddress;
+
+	/** Inside (protocol, address, port) to outside port */
+	private Table outbound;
+
+	/** Outside (protocol, port) to slot of the mapping in the outbound table */
+	private Table inbound;
+
+	/** Time (in seconds since the table was created) each outbound slot was
+	 *  last used */
+	private AtomicIntegerArray lastUsed;
+
+	/** Outside ports in use for TCP, UDP, and ICMP, one bit per port */
+	private AtomicLongArray[] portsInUse;
+
+	/** Next port to try for TCP, UDP, and ICMP */
+	private int[] nextPort;
+
+	/** Number of live mappings */
+	private AtomicInteger size;
+
+	/** Number of mappings that could not be created */
+	private AtomicInteger failures;
+
+	/** Time (in milliseconds since the epoch) the table was created */
+	private long startTime;
+
+	/** Next outbound slot to check for idle mappings */
+	private int sweepPosition;
+
+	/** Thread for timing out idle mappings */
+	private Thread timeoutThread;
+
+	/**
+	 * Open-addressing hash table from a non-zero long key to a long value.
+	 */
+	private static class Table
+	{
+		AtomicLongArray keys;
+		AtomicLongArray values;
+		int mask;
+
+		Table(int capacity)
+		{
+			this.keys = new AtomicLongArray(capacity);
+			this.values = new AtomicLongArray(capacity);
+			this.mask = capacity - 1;
+		}
+
+		static int hash(long key)
+		{
+			key ^= (key >>> 33);
+			key *= 0xff51afd7ed558ccdL;
+			key ^= (key >>> 33);
+			key *= 0xc4ceb9fe1a85ec53L;
+			key ^= (key >>> 33);
+			return (int)key;
+		}
+
+		/**
+		 * @return slot containing the key, -1 if the key is not present
+		 */
+		int find(long key)
+		{
+			int slot = hash(key) & this.mask;
+			for (int probes = 0; probes <= this.mask; probes++)
+			{
+				long current = this.keys.get(slot);
+				if (current == key)
+				{ return slot; }
+				if (current == EMPTY)
+				{ return -1; }
+				slot = (slot + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Add a key that is not present. Called with the NAT table's lock
+		 * held.
+		 * @return slot containing the key, -1 if the table is full
+		 */
+		int add(long key, long value)
+		{
+			int slot = hash(key) & this.mask;
+			for (int probes = 0; probes <= this.mask; probes++)
+			{
+				long current = this.keys.get(slot);
+				if (current == EMPTY)
+				{
+					// Publish the value before the key so readers that see
+					// the key also see the value
+					this.values.set(slot, value);
+					this.keys.set(slot, key);
+					return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Remove the key in a slot, shifting later keys in its probe
+		 * sequence back so no tombstone is needed. Called with the NAT
+		 * table's lock held.
+		 */
+		void remove(int slot)
+		{
+			int hole = slot;
+			int next = (slot + 1) & this.mask;
+			long current;
+			while ((current = this.keys.get(next)) != EMPTY)
+			{
+				// Move a key into the hole if the hole lies between its home
+				// slot and where it is now
+				int home = hash(current) & this.mask;
+				if (((next - home) & this.mask) >= ((next - hole) & this.mask))
+				{
+					this.values.set(hole, this.values.get(next));
+					this.keys.set(hole, current);
+					this.moved(next, hole);
+					hole = next;
+				}
+				next = (next + 1) & this.mask;
+			}
+			this.keys.set(hole, EMPTY);
+		}
+
+		/**
+		 * Called after a key is shifted to a different slot, while it is
+		 * still in the old slot too.
+		 */
+		void moved(int from, int to)
+		{ }
+	}
+
+	/**
+	 * Creates an empty NAT connection table.
+	 * @param outsideAddress address used on the outside of the NAT
+	 * @param capacity number of slots in each table; rounded up to a power
+	 *        of two, of which three quarters can hold mappings
+	 */
+	public NatTable(int outsideAddress, int capacity)
+	{
+		int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.outsideAddress = outsideAddress;
+		this.outbound = new Table(slots) {
+			void moved(int from, int to)
+			{
+				// Carry the mapping's idle time along, and point its inbound
+				// entry at its new slot
+				lastUsed.set(to, lastUsed.get(from));
+				long key = this.keys.get(to);
+				int inSlot = inbound.find(inboundKey((byte)(key >>> 48),
+						(int)this.values.get(to)));
+				if (inSlot >= 0)
+				{ inbound.values.set(inSlot, to); }
+			}
+		};
+		this.inbound = new Table(slots);
+		this.lastUsed = new AtomicIntegerArray(slots);
+		this.portsInUse = new AtomicLongArray[3];
+		this.nextPort = new int[3];
+		for (int i = 0; i < 3; i++)
+		{
+			this.portsInUse[i] = new AtomicLongArray(65536 / 64);
+			this.nextPort[i] = FIRST_PORT;
+		}
+		this.size = new AtomicInteger();
+		this.failures = new AtomicInteger();
+		this.startTime = System.currentTimeMillis();
+		this.sweepPosition = 0;
+		this.timeoutThread = new Thread(this);
+		this.timeoutThread.setDaemon(true);
+		this.timeoutThread.start();
+	}
+
+	/**
+	 * @return address used on the outside of the NAT
+	 */
+	public int getOutsideAddress()
+	{ return this.outsideAddress; }
+
+	private static int protocolIndex(byte protocol)
+	{
+		switch (protocol)
+		{
+		case IPv4.PROTOCOL_TCP: return 0;
+		case IPv4.PROTOCOL_UDP: return 1;
+		case IPv4.PROTOCOL_ICMP: return 2;
+		default: return -1;
+		}
+	}
+
+	private static long outboundKey(byte protocol, int address, int port)
+	{
+		return LIVE | ((protocol & 0xffL) << 48)
+				| ((address & 0xffffffffL) << 16) | (port & 0xffff);
+	}
+
+	private static long inboundKey(byte protocol, int port)
+	{ return LIVE | ((protocol & 0xffL) << 16) | (port & 0xffff); }
+
+	private int now()
+	{ return (int)((System.currentTimeMillis() - this.startTime) / 1000); }
+
+	private void touch(int slot)
+	{
+		int now = this.now();
+		if (this.lastUsed.get(slot) != now)
+		{ this.lastUsed.lazySet(slot, now); }
+	}
+
+	/**
+	 * Translate the source of an outgoing packet, creating a mapping if one
+	 * does not exist. Only called by the thread that processes packets.
+	 * @param protocol IP protocol number
+	 * @param insideAddress source address of the packet
+	 * @param insidePort source port (or ICMP identifier) of the packet
+	 * @return outside port (or ICMP identifier) to use, -1 if the protocol is
+	 *         not supported or the table is full
+	 */
+	public int translateOutbound(byte protocol, int insideAddress,
+			int insidePort)
+	{
+		int index = protocolIndex(protocol);
+		if (index < 0)
+		{ return -1; }
+
+		long key = outboundKey(protocol, insideAddress, insidePort);
+		int slot = this.outbound.find(key);
+		if (slot >= 0)
+		{
+			this.touch(slot);
+			return (int)this.outbound.values.get(slot);
+		}
+		return this.create(index, protocol, key);
+	}
+
+	/**
+	 * Create a mapping for an inside (protocol, address, port), unless one
+	 * was out of reach when the caller looked.
+	 * @return outside port (or ICMP identifier) to use, -1 if the table is
+	 *         full
+	 */
+	private synchronized int create(int index, byte protocol, long key)
+	{
+		int slot = this.outbound.find(key);
+		if (slot >= 0)
+		{
+			this.touch(slot);
+			return (int)this.outbound.values.get(slot);
+		}
+
+		// Leave a quarter of the slots free so probe sequences stay short
+		if (this.size.get() >= (this.outbound.mask + 1) / 4 * 3)
+		{
+			this.failures.incrementAndGet();
+			return -1;
+		}
+
+		int outsidePort = this.allocatePort(index);
+		if (outsidePort < 0)
+		{
+			this.failures.incrementAndGet();
+			return -1;
+		}
+
+		slot = this.outbound.add(key, outsidePort);
+		if (slot < 0)
+		{
+			this.freePort(index, outsidePort);
+			this.failures.incrementAndGet();
+			return -1;
+		}
+		this.lastUsed.set(slot, this.now());
+		if (this.inbound.add(inboundKey(protocol, outsidePort), slot) < 0)
+		{
+			this.outbound.remove(slot);
+			this.freePort(index, outsidePort);
+			this.failures.incrementAndGet();
+			return -1;
+		}
+		this.size.incrementAndGet();
+		return outsidePort;
+	}
+
+	/**
+	 * Translate the destination of an incoming packet.
+	 * @param protocol IP protocol number
+	 * @param outsidePort destination port (or ICMP identifier) of the packet
+	 * @return inside address in the upper 32 bits and inside port in the
+	 *         lower 16 bits, -1 if no mapping exists
+	 */
+	public long translateInbound(byte protocol, int outsidePort)
+	{
+		if (protocolIndex(protocol) < 0)
+		{ return -1; }
+
+		long inside = this.lookupInbound(protocol, outsidePort);
+		if (inside < 0)
+		{
+			synchronized (this)
+			{ inside = this.lookupInbound(protocol, outsidePort); }
+		}
+		return inside;
+	}
+
+	/**
+	 * @return inside address in the upper 32 bits and inside port in the
+	 *         lower 16 bits, -1 if no mapping was found
+	 */
+	private long lookupInbound(byte protocol, int outsidePort)
+	{
+		int inSlot = this.inbound.find(inboundKey(protocol, outsidePort));
+		if (inSlot < 0)
+		{ return -1; }
+		int slot = (int)this.inbound.values.get(inSlot);
+
+		// The mapping may have been removed or shifted since the inbound
+		// entry was read, so make sure the slot still refers to this port
+		long key = this.outbound.keys.get(slot);
+		if (key == EMPTY || (byte)(key >>> 48) != protocol
+				|| this.outbound.values.get(slot) != (outsidePort & 0xffff))
+		{ return -1; }
+
+		this.touch(slot);
+		int insideAddress = (int)(key >>> 16);
+		int insidePort = (int)(key & 0xffff);
+		return ((insideAddress & 0xffffffffL) << 32) | insidePort;
+	}
+
+	/**
+	 * Find and claim an unused outside port for a protocol.
+	 * @return the port, -1 if all ports are in use
+	 */
+	private int allocatePort(int index)
+	{
+		AtomicLongArray bits = this.portsInUse[index];
+		int range = LAST_PORT - FIRST_PORT + 1;
+		int port = this.nextPort[index];
+		for (int tries = 0; tries < range; tries++)
+		{
+			int word = port >>> 6;
+			long bit = 1L << (port & 63);
+			long current = bits.get(word);
+			if ((current & bit) == 0
+					&& bits.compareAndSet(word, current, current | bit))
+			{
+				this.nextPort[index] = (port == LAST_PORT ? FIRST_PORT : port + 1);
+				return port;
+			}
+			port = (port == LAST_PORT ? FIRST_PORT : port + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Release an outside port for a protocol.
+	 */
+	private void freePort(int index, int port)
+	{
+		AtomicLongArray bits = this.portsInUse[index];
+		int word = port >>> 6;
+		long bit = 1L << (port & 63);
+		while (true)
+		{
+			long current = bits.get(word);
+			if (bits.compareAndSet(word, current, current & ~bit))
+			{ break; }
+		}
+	}
+
+	private static int timeoutFor(byte protocol)
+	{
+		switch (protocol)
+		{
+		case IPv4.PROTOCOL_TCP: return TCP_TIMEOUT;
+		case IPv4.PROTOCOL_UDP: return UDP_TIMEOUT;
+		default: return ICMP_TIMEOUT;
+		}
+	}
+
+	/**
+	 * Remove idle mappings from a range of outbound slots.
+	 */
+	private void sweep(int first, int count)
+	{
+		int now = this.now();
+		for (int i = 0; i < count; i++)
+		{
+			// A removal may shift another mapping into the slot, so check
+			// the slot again
+			int slot = (first + i) & this.outbound.mask;
+			while (this.expire(slot, now))
+			{ }
+		}
+	}
+
+	/**
+	 * Remove the mapping in an outbound slot if it is idle.
+	 * @return true if a mapping was removed
+	 */
+	private synchronized boolean expire(int slot, int now)
+	{
+		long key = this.outbound.keys.get(slot);
+		if (key == EMPTY)
+		{ return false; }
+
+		byte protocol = (byte)(key >>> 48);
+		if (now - this.lastUsed.get(slot) <= timeoutFor(protocol))
+		{ return false; }
+
+		// Remove the inbound entry before the port can be reused
+		int outsidePort = (int)this.outbound.values.get(slot);
+		int inSlot = this.inbound.find(inboundKey(protocol, outsidePort));
+		if (inSlot >= 0)
+		{ this.inbound.remove(inSlot); }
+		this.outbound.remove(slot);
+		this.freePort(protocolIndex(protocol), outsidePort);
+		this.size.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Every second: timeout idle mappings in a slice of the table, so the
+	 * whole table is checked once every SWEEP_PERIOD seconds.
+	 */
+	public void run()
+	{
+		int slots = this.outbound.mask + 1;
+		int perTick = (slots + SWEEP_PERIOD - 1) / SWEEP_PERIOD;
+		while (true)
+		{
+			try
+			{ Thread.sleep(1000); }
+			catch (InterruptedException e)
+			{ break; }
+
+			this.sweep(this.sweepPosition, perTick);
+			this.sweepPosition = (this.sweepPosition + perTick)
+					& this.outbound.mask;
+		}
+	}
+
+	/**
+	 * @return number of live mappings
+	 */
+	public int size()
+	{ return this.size.get(); }
+
+	/**
+	 * @return number of slots in the table
+	 */
+	public int capacity()
+	{ return this.outbound.mask + 1; }
+
+	/**
+	 * @return fraction of the table's slots that hold live mappings
+	 */
+	public double utilization()
+	{ return (double)this.size() / this.capacity(); }
+
+	/**
+	 * @return number of mappings that could not be created because the
+	 *         table or the port range was full
+	 */
+	public int getFailures()
+	{ return this.failures.get(); }
+
+	/**
+	 * Adjust a 16-bit ones-complement checksum after one 16-bit word of the
+	 * covered data changes (RFC 1624, eqn. 3).
+	 * @param checksum the current checksum
+	 * @param oldWord the old value of the word
+	 * @param newWord the new value of the word
+	 * @return the updated checksum
+	 */
+	public static short adjustChecksum(short checksum, int oldWord,
+			int newWord)
+	{
+		int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+				+ (newWord & 0xffff);
+		sum = (sum >>> 16) + (sum & 0xffff);
+		sum = (sum >>> 16) + (sum & 0xffff);
+		return (short)(~sum & 0xffff);
+	}
+
+	/**
+	 * Adjust a 16-bit ones-complement checksum after a 32-bit address in the
+	 * covered data changes.
+	 * @param checksum the current checksum
+	 * @param oldAddress the old address
+	 * @param newAddress the new address
+	 * @return the updated checksum
+	 */
+	public static short adjustChecksum32(short checksum, int oldAddress,
+			int newAddress)
+	{
+		checksum = adjustChecksum(checksum, oldAddress >>> 16,
+				newAddress >>> 16);
+		return adjustChecksum(checksum, oldAddress & 0xffff,
+				newAddress & 0xffff);
+	}
+
+	public String toString()
+	{
+		return String.format("NAT %s: %d/%d mappings (%.1f%%), %d failures",
+				IPv4.fromIPv4Address(this.outsideAddress), this.size(),
+				this.capacity(), this.utilization() * 100, this.getFailures());
+	}
+}
@@ -0,0 +1,308 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+
+/**
+ * Routes learned or originated by RIP, indexed by (address, mask). The pair
+ * is packed into a long and kept in an open-addressing table, so finding the
+ * route for an advertised prefix takes constant time. Route deadlines are
+ * tracked in a timer wheel, so finding the routes that expired touches only
+ * the routes that are due. Not thread safe; only the control-plane thread
+ * may use the database.
+ * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
+ */
+public class RipDatabase
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Resolution (in milliseconds) of route deadlines */
+	public static final int TIMER_TICK = 250;
+
+	/** Number of timer wheel slots; one rotation spans about two minutes */
+	private static final int TIMER_SLOTS = 512;
+
+	/** Keys of the routes in each slot */
+	private long[] keys;
+
+	/** Route in each slot; null if the slot is empty */
+	private RipRoute[] routes;
+
+	/** Number of routes */
+	private int size;
+
+	/** Routes changed since they were last advertised */
+	private List<RipRoute> changed;
+
+	/** Expiry timers for routes, keyed by route key */
+	private TimerWheel timers;
+
+	/** Routes found to be expired while advancing the timers */
+	private List<RipRoute> expired;
+
+	/**
+	 * Initializes an empty RIP database.
+	 */
+	public RipDatabase()
+	{
+		this.keys = new long[INITIAL_CAPACITY];
+		this.routes = new RipRoute[INITIAL_CAPACITY];
+		this.size = 0;
+		this.changed = new ArrayList<RipRoute>();
+		this.timers = new TimerWheel(TIMER_TICK, TIMER_SLOTS,
+				System.currentTimeMillis());
+		this.expired = new ArrayList<RipRoute>();
+	}
+
+	/**
+	 * Pack an (address, mask) pair into a key.
+	 * @param address network address
+	 * @param mask subnet mask
+	 * @return the key
+	 */
+	public static long key(int address, int mask)
+	{ return ((long)(address & mask) << 32) | (mask & 0xffffffffL); }
+
+	private static int hash(long key)
+	{
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	/**
+	 * @return slot containing the key, or the empty slot where it belongs
+	 */
+	private int slotFor(long key)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.routes[slot] != null && this.keys[slot] != key)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	/**
+	 * Find the route for a key.
+	 * @param key key identifying the route's (address, mask) pair
+	 * @return the route, null if none exists
+	 */
+	public RipRoute get(long key)
+	{ return this.routes[this.slotFor(key)]; }
+
+	/**
+	 * Find the route for a prefix.
+	 * @param address network address
+	 * @param mask subnet mask
+	 * @return the route, null if none exists
+	 */
+	public RipRoute get(int address, int mask)
+	{ return this.routes[this.slotFor(key(address, mask))]; }
+
+	/**
+	 * Add a route, replacing any route for the same prefix.
+	 * @param route the route to add
+	 */
+	public void put(RipRoute route)
+	{
+		long key = route.getKey();
+		int slot = this.slotFor(key);
+		if (null == this.routes[slot])
+		{
+			this.size++;
+			if (this.size * 2 > this.keys.length)
+			{
+				this.resize();
+				slot = this.slotFor(key);
+			}
+		}
+		this.keys[slot] = key;
+		this.routes[slot] = route;
+		this.schedule(route);
+	}
+
+	/**
+	 * Change when a route times out.
+	 * @param route the route
+	 * @param deadline time (in milliseconds since the epoch) the route times
+	 *        out
+	 */
+	public void setDeadline(RipRoute route, long deadline)
+	{
+		route.setDeadline(deadline);
+		this.schedule(route);
+	}
+
+	/**
+	 * Make sure a timer is pending for a route's deadline. Extending a
+	 * deadline leaves the earlier timer in place; it is rescheduled when it
+	 * fires.
+	 */
+	private void schedule(RipRoute route)
+	{
+		if (route.getDeadline() < route.getTimer())
+		{
+			this.timers.schedule(route.getKey(), route.getDeadline());
+			route.setTimer(route.getDeadline());
+		}
+	}
+
+	/**
+	 * Find the routes whose deadline passed. Only routes with a due timer
+	 * are examined. A route is reported once per deadline; setting a new
+	 * deadline reports it again when that deadline passes.
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return routes whose deadline passed
+	 */
+	public List<RipRoute> expire(final long now)
+	{
+		this.expired.clear();
+		this.timers.advance(now, new TimerWheel.Handler() {
+			public void expired(long key, long deadline)
+			{
+				// Ignore timers for deleted routes and superseded timers
+				RipRoute route = get(key);
+				if (null == route || route.getTimer() != deadline)
+				{ return; }
+				route.setTimer(RipRoute.NEVER);
+				if (route.getDeadline() > now)
+				{ schedule(route); }
+				else
+				{ expired.add(route); }
+			}
+		});
+		return new ArrayList<RipRoute>(this.expired);
+	}
+
+	/**
+	 * Remove the route for a prefix.
+	 * @param address network address
+	 * @param mask subnet mask
+	 * @return the removed route, null if none existed
+	 */
+	public RipRoute remove(int address, int mask)
+	{
+		int slot = this.slotFor(key(address, mask));
+		RipRoute removed = this.routes[slot];
+		if (null == removed)
+		{ return null; }
+
+		// Shift later entries of the probe sequence back into the hole
+		int tableMask = this.keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & tableMask;
+		while (this.routes[next] != null)
+		{
+			int home = hash(this.keys[next]) & tableMask;
+			if (((next - home) & tableMask) >= ((next - hole) & tableMask))
+			{
+				this.keys[hole] = this.keys[next];
+				this.routes[hole] = this.routes[next];
+				hole = next;
+			}
+			next = (next + 1) & tableMask;
+		}
+		this.routes[hole] = null;
+		this.size--;
+		return removed;
+	}
+
+	private void resize()
+	{
+		long[] oldKeys = this.keys;
+		RipRoute[] oldRoutes = this.routes;
+		this.keys = new long[oldKeys.length * 2];
+		this.routes = new RipRoute[oldRoutes.length * 2];
+		for (int i = 0; i < oldRoutes.length; i++)
+		{
+			if (oldRoutes[i] != null)
+			{
+				int slot = this.slotFor(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.routes[slot] = oldRoutes[i];
+			}
+		}
+	}
+
+	/**
+	 * Record that a route changed and must be included in the next triggered
+	 * update.
+	 * @param route the route that changed
+	 */
+	public void markChanged(RipRoute route)
+	{
+		if (!route.isChanged())
+		{
+			route.setChanged(true);
+			this.changed.add(route);
+		}
+	}
+
+	/**
+	 * @return true if any route changed since routes were last advertised
+	 */
+	public boolean hasChanges()
+	{ return !this.changed.isEmpty(); }
+
+	/**
+	 * Collect the routes that changed since they were last advertised, and
+	 * consider them advertised.
+	 * @return routes that changed and are still in the database
+	 */
+	public List<RipRoute> takeChanged()
+	{
+		List<RipRoute> result = new ArrayList<RipRoute>(this.changed.size());
+		for (RipRoute route : this.changed)
+		{
+			route.setChanged(false);
+			if (this.get(route.getAddress(), route.getMask()) == route)
+			{ result.add(route); }
+		}
+		this.changed.clear();
+		return result;
+	}
+
+	/**
+	 * Consider all routes advertised.
+	 */
+	public void clearChanged()
+	{
+		for (RipRoute route : this.changed)
+		{ route.setChanged(false); }
+		this.changed.clear();
+	}
+
+	/**
+	 * @return number of routes
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return a copy of the list of routes
+	 */
+	public List<RipRoute> values()
+	{
+		List<RipRoute> result = new ArrayList<RipRoute>(this.size);
+		for (RipRoute route : this.routes)
+		{
+			if (route != null)
+			{ result.add(route); }
+		}
+		return result;
+	}
+
+	public String toString()
+	{
+		if (0 == this.size)
+		{ return " WARNING: RIP database empty"; }
+
+		String result = "Destination\tMask\t\tNext hop\tMetric\tIface\n";
+		for (RipRoute route : this.values())
+		{ result += route.toString()+"\n"; }
+		return result;
+	}
+}
@@ -0,0 +1,284 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Encodes RIP messages directly into byte buffers. A list of routes is split
+ * into messages of at most 25 entries (RFC 2453 section 3.6), and each
+ * message's RIP payload is encoded once, along with its contribution to the
+ * UDP checksum. Sending a message out an interface then only writes the
+ * Ethernet, IP and UDP headers in front of the shared payload. Split horizon
+ * with poisoned reverse is applied when sending: a message containing routes
+ * learned on the outgoing interface is copied with those routes' metrics set
+ * to infinity, while all other messages are sent unchanged. Encoders reuse
+ * their buffers between updates and are not thread safe.
+ * @author Aaron Gember-Jacobson
+ */
+public class RipEncoder
+{
+	/** Broadcast MAC address used for unsolicited responses */
+	public static final byte[] BROADCAST_MAC = { (byte)0xff, (byte)0xff,
+		(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff };
+
+	/** Multicast address of RIPv2 routers (224.0.0.9) */
+	public static final int RIP_MULTICAST = IPv4.toIPv4Address("224.0.0.9");
+
+	private static final int ETHERNET_LENGTH = 14;
+	private static final int IP_LENGTH = 20;
+	private static final int UDP_LENGTH = 8;
+	private static final int HEADERS_LENGTH = ETHERNET_LENGTH + IP_LENGTH
+			+ UDP_LENGTH;
+	private static final int MAX_PAYLOAD_LENGTH = RIPv2.HEADER_LENGTH
+			+ RIPv2.MAX_ENTRIES * RIPv2Entry.LENGTH;
+
+	/**
+	 * The RIP payload of a single message.
+	 */
+	public static class Chunk
+	{
+		/** Encoded RIP header and entries */
+		private byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+
+		/** Length of the encoded payload */
+		private int length;
+
+		/** One's complement sum of the payload's 16-bit words */
+		private int sum;
+
+		/** Number of entries in the payload */
+		private int entries;
+
+		/** Interface each entry's route was learned on; null for directly
+		 *  connected networks */
+		private Iface[] learnedOn = new Iface[RIPv2.MAX_ENTRIES];
+
+		/**
+		 * @return length of the encoded payload
+		 */
+		public int getLength()
+		{ return this.length; }
+	}
+
+	/** Chunks encoded by the most recent call to encode; reused */
+	private List<Chunk> chunks;
+
+	/** Number of chunks in use */
+	private int count;
+
+	/** Buffer frames are assembled in before sending */
+	private byte[] frame;
+
+	/** Copy of a chunk with poisoned reverse applied for one interface */
+	private Chunk poisoned;
+
+	/**
+	 * Create an encoder with empty buffers.
+	 */
+	public RipEncoder()
+	{
+		this.chunks = new ArrayList<Chunk>();
+		this.count = 0;
+		this.frame = new byte[HEADERS_LENGTH + MAX_PAYLOAD_LENGTH];
+		this.poisoned = new Chunk();
+	}
+
+	/**
+	 * Encode a list of routes into RIP messages of at most 25 entries,
+	 * replacing any previously encoded messages.
+	 * @param command RIP command
+	 * @param routes routes to encode
+	 * @return number of messages
+	 */
+	public int encode(byte command, List<RipRoute> routes)
+	{
+		this.count = 0;
+		ByteBuffer bb = null;
+		Chunk chunk = null;
+		int entries = RIPv2.MAX_ENTRIES;
+		for (RipRoute route : routes)
+		{
+			if (RIPv2.MAX_ENTRIES == entries)
+			{
+				if (chunk != null)
+				{ this.finish(chunk, bb); }
+				chunk = this.nextChunk();
+				bb = ByteBuffer.wrap(chunk.payload);
+				bb.put(command);
+				bb.put(RIPv2.VERSION);
+				bb.putShort((short)0);
+				entries = 0;
+			}
+			RIPv2Entry.serialize(bb, RIPv2Entry.ADDRESS_FAMILY_IPv4, (short)0,
+					route.getAddress(), route.getMask(), 0,
+					route.getAdvertisedMetric());
+			chunk.learnedOn[entries] = (route.isConnected() ? null
+					: route.getInterface());
+			entries++;
+			chunk.entries = entries;
+		}
+		if (chunk != null)
+		{ this.finish(chunk, bb); }
+		return this.count;
+	}
+
+	private Chunk nextChunk()
+	{
+		if (this.count == this.chunks.size())
+		{ this.chunks.add(new Chunk()); }
+		return this.chunks.get(this.count++);
+	}
+
+	private void finish(Chunk chunk, ByteBuffer bb)
+	{
+		chunk.length = bb.position();
+		chunk.sum = sum(chunk.payload, 0, chunk.length, 0);
+	}
+
+	/**
+	 * @return messages encoded by the most recent call to encode
+	 */
+	public List<Chunk> getChunks()
+	{ return this.chunks.subList(0, this.count); }
+
+	/**
+	 * Send every encoded message out an interface.
+	 * @param device device to send from
+	 * @param iface interface to send on
+	 * @param dstMac destination MAC address
+	 * @param dstIp destination IP address
+	 * @return true if all messages were sent, otherwise false
+	 */
+	public boolean send(Device device, Iface iface, byte[] dstMac, int dstIp)
+	{
+		boolean sent = true;
+		for (int i = 0; i < this.count; i++)
+		{ sent &= this.send(device, iface, dstMac, dstIp, this.chunks.get(i)); }
+		return sent;
+	}
+
+	/**
+	 * Apply poisoned reverse to a message for an interface.
+	 * @param chunk the message's payload
+	 * @param iface interface the message will be sent on
+	 * @return the payload unchanged if none of its routes were learned on the
+	 *         interface, otherwise a copy with those routes poisoned
+	 */
+	private Chunk poisonReverse(Chunk chunk, Iface iface)
+	{
+		boolean affected = false;
+		for (int i = 0; i < chunk.entries && !affected; i++)
+		{ affected = (chunk.learnedOn[i] == iface); }
+		if (!affected)
+		{ return chunk; }
+
+		System.arraycopy(chunk.payload, 0, this.poisoned.payload, 0,
+				chunk.length);
+		ByteBuffer bb = ByteBuffer.wrap(this.poisoned.payload);
+		for (int i = 0; i < chunk.entries; i++)
+		{
+			if (chunk.learnedOn[i] == iface)
+			{
+				bb.putInt(RIPv2.HEADER_LENGTH + i * RIPv2Entry.LENGTH
+						+ RIPv2Entry.LENGTH - 4, RIPv2.INFINITY);
+			}
+		}
+		this.poisoned.length = chunk.length;
+		this.poisoned.entries = chunk.entries;
+		this.poisoned.sum = sum(this.poisoned.payload, 0, chunk.length, 0);
+		return this.poisoned;
+	}
+
+	/**
+	 * Send one encoded message out an interface.
+	 * @param device device to send from
+	 * @param iface interface to send on
+	 * @param dstMac destination MAC address
+	 * @param dstIp destination IP address
+	 * @param chunk the message's payload
+	 * @return true if the message was sent, otherwise false
+	 */
+	public boolean send(Device device, Iface iface, byte[] dstMac, int dstIp,
+			Chunk chunk)
+	{
+		chunk = this.poisonReverse(chunk, iface);
+		int srcIp = iface.getIpAddress();
+		int udpLength = UDP_LENGTH + chunk.length;
+		int ipLength = IP_LENGTH + udpLength;
+		ByteBuffer bb = ByteBuffer.wrap(this.frame);
+
+		// Ethernet header
+		bb.put(dstMac);
+		bb.put(iface.getMacAddress().toBytes());
+		bb.putShort(Ethernet.TYPE_IPv4);
+
+		// IP header
+		int ipStart = bb.position();
+		bb.put((byte)0x45);
+		bb.put((byte)0);
+		bb.putShort((short)ipLength);
+		bb.putShort((short)0);
+		bb.putShort((short)0);
+		bb.put((byte)64);
+		bb.put(IPv4.PROTOCOL_UDP);
+		bb.putShort((short)0);
+		bb.putInt(srcIp);
+		bb.putInt(dstIp);
+		int ipSum = sum(this.frame, ipStart, IP_LENGTH, 0);
+		bb.putShort(ipStart + 10, (short)~ipSum);
+
+		// UDP header, with the checksum built from the pseudo header, the UDP
+		// header, and the payload's precomputed sum
+		int udpStart = bb.position();
+		bb.putShort(UDP.RIP_PORT);
+		bb.putShort(UDP.RIP_PORT);
+		bb.putShort((short)udpLength);
+		bb.putShort((short)0);
+		int udpSum = (srcIp >>> 16) + (srcIp & 0xffff) + (dstIp >>> 16)
+				+ (dstIp & 0xffff) + IPv4.PROTOCOL_UDP + udpLength;
+		udpSum = sum(this.frame, udpStart, UDP_LENGTH, udpSum);
+		udpSum = fold(udpSum + chunk.sum);
+		short udpChecksum = (short)~udpSum;
+		if (0 == udpChecksum)
+		{ udpChecksum = (short)0xffff; }
+		bb.putShort(udpStart + 6, udpChecksum);
+
+		bb.put(chunk.payload, 0, chunk.length);
+		return device.sendFrame(this.frame, bb.position(), iface);
+	}
+
+	/**
+	 * Add the 16-bit words of a region of a buffer to a one's complement sum.
+	 * @param buf the buffer
+	 * @param offset start of the region
+	 * @param length length of the region; must be even
+	 * @param initial sum to add to
+	 * @return the folded sum
+	 */
+	private static int sum(byte[] buf, int offset, int length, int initial)
+	{
+		long sum = initial;
+		for (int i = offset; i < offset + length; i += 2)
+		{ sum += ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff); }
+		while ((sum >>> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >>> 16); }
+		return (int)sum;
+	}
+
+	private static int fold(int sum)
+	{
+		while ((sum >>> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >>> 16); }
+		return sum;
+	}
+}
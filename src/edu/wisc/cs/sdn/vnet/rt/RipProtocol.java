@@ -0,0 +1,626 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.events.RipUpdateEvent;
+import edu.wisc.cs.sdn.vnet.events.RouteSweepEvent;
+
+/**
+ * RIPv2 (RFC 2453) for a router. All protocol work -- handling requests and
+ * responses, periodic and triggered updates, and route expiry -- runs as
+ * tasks on the router's single control-plane thread, which is the only
+ * thread that reads or writes the RIP database. The packet thread hands
+ * received messages over through the executor's queue, and route changes
+ * are published to the route table in one batch per task.
+ * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
+ */
+public class RipProtocol
+{
+	/** How long (in milliseconds) a learned route lasts without an update */
+	public static final int ROUTE_TIMEOUT = 30 * 1000;
+
+	/** How long (in milliseconds) an unreachable route is still advertised
+	 *  before it is deleted */
+	public static final int GC_TIMEOUT = 20 * 1000;
+
+	/** How often (in milliseconds) to send a full update */
+	public static final int UPDATE_INTERVAL = 10 * 1000;
+
+	/** Shortest and longest hold-down (in milliseconds) between triggered
+	 *  updates */
+	public static final int TRIGGER_MIN_DELAY = 1 * 1000;
+	public static final int TRIGGER_MAX_DELAY = 5 * 1000;
+
+	/** Router running the protocol */
+	private Router router;
+
+	/** Route table changes are published to */
+	private RouteTable routeTable;
+
+	/** Control-plane thread all protocol work runs on */
+	private ScheduledExecutorService executor;
+
+	/** RIP database; accessed only on the control-plane thread */
+	private RipDatabase ripDb;
+
+	/** Encoder for all outgoing responses */
+	private RipEncoder encoder;
+
+	/** Source of random triggered update hold-downs */
+	private Random random;
+
+	/** Time (in milliseconds since the epoch) before which no triggered
+	 *  update may be sent */
+	private long triggerHoldDown;
+
+	/** Whether a triggered update is scheduled */
+	private boolean triggerScheduled;
+
+	/** Flap dampening for learned prefixes */
+	private FlapDampener dampener;
+
+	/**
+	 * Create RIP for a router.
+	 * @param router router running the protocol
+	 * @param executor control-plane thread all protocol work runs on
+	 */
+	public RipProtocol(Router router, ScheduledExecutorService executor)
+	{
+		this.router = router;
+		this.routeTable = router.getRouteTable();
+		this.executor = executor;
+		this.ripDb = new RipDatabase();
+		this.encoder = new RipEncoder();
+		this.random = new Random();
+		this.dampener = new FlapDampener();
+	}
+
+	/**
+	 * Add routes for directly connected networks, request the neighbors'
+	 * tables, and start periodic updates and route expiry.
+	 */
+	public void start()
+	{
+		this.executor.execute(new Runnable() {
+			public void run()
+			{ initialize(); }
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				// An exception would silently cancel the periodic task
+				try
+				{ sendPeriodicUpdate(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				// An exception would silently cancel the periodic task
+				try
+				{ expireRoutes(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}, RipDatabase.TIMER_TICK, RipDatabase.TIMER_TICK,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue a received RIP message for the control-plane thread; called on
+	 * the packet thread.
+	 * @param ripPacket the RIP message
+	 * @param srcMac source MAC address of the message
+	 * @param srcIp source IP address of the message
+	 * @param inIface interface the message was received on
+	 */
+	public void receive(final RIPv2 ripPacket, final byte[] srcMac,
+			final int srcIp, final Iface inIface)
+	{
+		try
+		{
+			this.executor.execute(new Runnable() {
+				public void run()
+				{
+					if (ripPacket.getCommand() == RIPv2.COMMAND_REQUEST)
+					{ handleRequest(srcMac, srcIp, inIface); }
+					else if (ripPacket.getCommand() == RIPv2.COMMAND_RESPONSE)
+					{ handleResponse(ripPacket, srcIp, inIface); }
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{ /* Control plane is shutting down */ }
+	}
+
+	/**
+	 * Run a task on the control-plane thread, where it may safely read the
+	 * RIP database.
+	 * @param task the task
+	 */
+	public void execute(Runnable task)
+	{ this.executor.execute(task); }
+
+	/**
+	 * @return flap dampening for learned prefixes; only its statistics may be
+	 *         read off the control-plane thread
+	 */
+	public FlapDampener getDampener()
+	{ return this.dampener; }
+
+	/**
+	 * @return RIP database; may only be used on the control-plane thread
+	 */
+	public RipDatabase getDatabase()
+	{ return this.ripDb; }
+
+	/**
+	 * Save the learned routes that are still reachable: each route's prefix,
+	 * next hop, metric, interface, and the time (in milliseconds) left before
+	 * it times out. The routes are read on the control-plane thread; the
+	 * calling thread waits for them.
+	 * @param out stream to write to
+	 */
+	public void writeState(DataOutputStream out) throws IOException
+	{
+		byte[] state;
+		try
+		{
+			state = this.executor.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException
+				{
+					long now = System.currentTimeMillis();
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream routesOut = new DataOutputStream(bytes);
+					List<RipRoute> routes = new ArrayList<RipRoute>();
+					for (RipRoute route : ripDb.values())
+					{
+						if (!route.isConnected() && route.isReachable())
+						{ routes.add(route); }
+					}
+					routesOut.writeInt(routes.size());
+					for (RipRoute route : routes)
+					{
+						routesOut.writeInt(route.getAddress());
+						routesOut.writeInt(route.getMask());
+						routesOut.writeInt(route.getNextHop());
+						routesOut.writeByte(route.getMetric());
+						routesOut.writeUTF(route.getInterface().getName());
+						routesOut.writeInt((int)Math.max(0,
+								route.getDeadline() - now));
+					}
+					routesOut.flush();
+					return bytes.toByteArray();
+				}
+			}).get();
+		}
+		catch (RejectedExecutionException e)
+		{ throw new IOException("control plane is shut down"); }
+		catch (InterruptedException e)
+		{ throw new IOException("interrupted while saving RIP routes"); }
+		catch (ExecutionException e)
+		{ throw new IOException(e.getCause().toString()); }
+		out.write(state);
+	}
+
+	/**
+	 * Restore learned routes saved by writeState, so they are forwarded on
+	 * right away while neighbors' responses revalidate them. Each route's
+	 * timeout is shortened by the checkpoint's age, and routes that would
+	 * already have timed out are skipped. Restored routes are not advertised
+	 * as changes; they are included in the next periodic update.
+	 * @param in stream to read from
+	 * @param age time (in milliseconds) since the checkpoint was written
+	 */
+	public void readState(DataInputStream in, long age) throws IOException
+	{
+		final long now = System.currentTimeMillis();
+		final List<RipRoute> routes = new ArrayList<RipRoute>();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			int address = in.readInt();
+			int mask = in.readInt();
+			int nextHop = in.readInt();
+			int metric = in.readUnsignedByte();
+			Iface iface = this.router.getInterface(in.readUTF());
+			long remaining = in.readInt() - age;
+			if (null == iface || remaining <= 0 || metric >= RIPv2.INFINITY)
+			{ continue; }
+			routes.add(new RipRoute(address, mask, metric, nextHop, iface,
+					now + remaining));
+		}
+
+		// Runs after initialize, so directly connected networks take
+		// precedence over restored routes
+		this.executor.execute(new Runnable() {
+			public void run()
+			{
+				RouteTable.Batch batch = new RouteTable.Batch();
+				for (RipRoute route : routes)
+				{
+					if (ripDb.get(route.getAddress(), route.getMask()) != null)
+					{ continue; }
+					ripDb.put(route);
+					batch.put(route.getAddress(), route.getNextHop(),
+							route.getMask(), route.getInterface());
+				}
+				routeTable.apply(batch);
+				System.out.println(String.format("Restored %d RIP routes",
+						batch.size()));
+				System.out.println(routeTable);
+			}
+		});
+	}
+
+	private void initialize()
+	{
+		RouteTable.Batch batch = new RouteTable.Batch();
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			int mask = iface.getSubnetMask();
+			int ip = iface.getIpAddress() & mask;
+			batch.put(ip, 0, mask, iface);
+
+			// directly connected networks never time out
+			this.ripDb.put(new RipRoute(ip, mask, 1, 0, iface, RipRoute.NEVER));
+		}
+		this.routeTable.apply(batch);
+		System.out.println(this.routeTable);
+
+		// a single entry with address family 0 and an infinite metric
+		// requests the neighbor's whole table (RFC 2453 section 3.9.1)
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			Ethernet ether = new Ethernet();
+			IPv4 ip = new IPv4();
+			UDP udp = new UDP();
+			RIPv2 ripPacket = new RIPv2();
+
+			ether.setDestinationMACAddress(RipEncoder.BROADCAST_MAC);
+			ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+			ether.setEtherType(Ethernet.TYPE_IPv4);
+			ether.setPayload(ip);
+
+			ip.setDestinationAddress(RipEncoder.RIP_MULTICAST);
+			ip.setSourceAddress(iface.getIpAddress());
+			ip.setProtocol(IPv4.PROTOCOL_UDP);
+			ip.setTtl((byte)64);
+			ip.setPayload(udp);
+
+			udp.setDestinationPort(UDP.RIP_PORT);
+			udp.setSourcePort(UDP.RIP_PORT);
+			udp.setPayload(ripPacket);
+
+			RIPv2Entry wholeTable = new RIPv2Entry(0, 0, RIPv2.INFINITY);
+			wholeTable.setAddressFamily((short)0);
+			ripPacket.addEntry(wholeTable);
+			ripPacket.setCommand(RIPv2.COMMAND_REQUEST);
+
+			this.router.sendPacket(ether, iface);
+		}
+	}
+
+	/**
+	 * Reply directly to the requester with the whole table.
+	 */
+	private void handleRequest(byte[] srcMac, int srcIp, Iface inIface)
+	{
+		this.encoder.encode(RIPv2.COMMAND_RESPONSE, this.ripDb.values());
+		this.encoder.send(this.router, inIface, srcMac, srcIp);
+	}
+
+	/**
+	 * Apply a neighbor's response to the RIP database, and publish the
+	 * resulting route changes as one batch.
+	 */
+	private void handleResponse(RIPv2 ripPacket, int neighbor, Iface inIface)
+	{
+		RipUpdateEvent updateEvent = new RipUpdateEvent();
+		updateEvent.begin();
+		int changed = 0;
+		long now = System.currentTimeMillis();
+		RouteTable.Batch batch = new RouteTable.Batch();
+
+		// each advertised prefix takes a single lookup in the RIP database
+		for (RIPv2Entry entry : ripPacket.getEntries())
+		{
+			if (entry.getAddressFamily() != RIPv2Entry.ADDRESS_FAMILY_IPv4
+					|| entry.getMetric() < 1 || entry.getMetric() > RIPv2.INFINITY)
+			{ continue; }
+			int mask = entry.getSubnetMask();
+			int address = entry.getAddress() & mask;
+			int metric = Math.min(entry.getMetric() + 1, RIPv2.INFINITY);
+			RipRoute route = this.ripDb.get(address, mask);
+
+			if (null == route)
+			{
+				// new destination; unreachable destinations are not learned
+				if (RIPv2.INFINITY == metric)
+				{ continue; }
+				route = new RipRoute(address, mask, metric, neighbor, inIface,
+						now + ROUTE_TIMEOUT);
+				route.setSuppressed(this.dampener.isSuppressed(route.getKey()));
+				this.ripDb.put(route);
+				this.ripDb.markChanged(route);
+				this.install(route, batch);
+				changed++;
+			}
+			else if (route.isConnected())
+			{
+				// directly connected networks are never replaced
+				continue;
+			}
+			else if (route.getNextHop() == neighbor
+					&& route.getInterface() == inIface)
+			{
+				// the current next hop's metric is accepted, even if worse
+				if (metric == route.getMetric())
+				{
+					if (route.isReachable())
+					{ this.ripDb.setDeadline(route, now + ROUTE_TIMEOUT); }
+				}
+				else if (RIPv2.INFINITY == metric)
+				{
+					// next hop lost the route; poison it and start garbage
+					// collection
+					this.poisonRoute(route, now, batch);
+					changed++;
+				}
+				else
+				{
+					boolean wasReachable = route.isReachable();
+					route.setMetric(metric);
+					if (!wasReachable)
+					{ this.install(route, batch); }
+					this.ripDb.setDeadline(route, now + ROUTE_TIMEOUT);
+					this.ripDb.markChanged(route);
+					changed++;
+				}
+			}
+			else if (metric < route.getMetric())
+			{
+				// shorter path through a different neighbor; moving a
+				// reachable route counts as a flap
+				if (route.isReachable() && this.dampener.flap(route.getKey(),
+						FlapDampener.CHANGE_PENALTY, now) && !route.isSuppressed())
+				{
+					route.setSuppressed(true);
+					batch.remove(address, mask);
+				}
+				route.setMetric(metric);
+				route.setNextHop(neighbor);
+				route.setInterface(inIface);
+				this.install(route, batch);
+				this.ripDb.setDeadline(route, now + ROUTE_TIMEOUT);
+				this.ripDb.markChanged(route);
+				changed++;
+			}
+		}
+
+		long publishStart = System.nanoTime();
+		this.routeTable.apply(batch);
+		long publishEnd = System.nanoTime();
+		this.scheduleTriggeredUpdate();
+
+		updateEvent.end();
+		if (updateEvent.shouldCommit())
+		{
+			updateEvent.iface = inIface.getName();
+			updateEvent.neighbor = IPv4.fromIPv4Address(neighbor);
+			updateEvent.entriesReceived = ripPacket.getEntries().size();
+			updateEvent.entriesChanged = changed;
+			updateEvent.publishTime = publishEnd - publishStart;
+			updateEvent.commit();
+		}
+
+		if (!batch.isEmpty())
+		{
+			System.out.println(this.routeTable);
+			System.out.println(this.ripDb);
+		}
+	}
+
+	/**
+	 * Poison every route through a neighbor that failed, and send a
+	 * triggered update; must be called on the control-plane thread.
+	 * @param gateway neighbor's IP address
+	 */
+	public void neighborDown(int gateway)
+	{
+		long now = System.currentTimeMillis();
+		RouteTable.Batch batch = new RouteTable.Batch();
+		for (RipRoute route : this.ripDb.values())
+		{
+			if (!route.isConnected() && route.isReachable()
+					&& route.getNextHop() == gateway)
+			{ this.poisonRoute(route, now, batch); }
+		}
+		if (batch.isEmpty())
+		{ return; }
+
+		this.routeTable.apply(batch);
+		this.scheduleTriggeredUpdate();
+		System.out.println(String.format("Withdrew %d routes through %s",
+				batch.size(), IPv4.fromIPv4Address(gateway)));
+		System.out.println(this.routeTable);
+	}
+
+	/**
+	 * Mark a learned route unreachable: remove it from the routing table,
+	 * advertise it with an infinite metric, and delete it once the garbage
+	 * collection timer expires.
+	 * @param route the route to poison
+	 * @param now current time (in milliseconds since the epoch)
+	 * @param batch route table changes to add the removal to
+	 */
+	private void poisonRoute(RipRoute route, long now, RouteTable.Batch batch)
+	{
+		batch.remove(route.getAddress(), route.getMask());
+		route.setMetric(RIPv2.INFINITY);
+		this.ripDb.setDeadline(route, now + GC_TIMEOUT);
+		this.ripDb.markChanged(route);
+		if (this.dampener.flap(route.getKey(), FlapDampener.WITHDRAW_PENALTY,
+				now))
+		{ route.setSuppressed(true); }
+	}
+
+	/**
+	 * Add a learned route to the routing table, unless flap dampening
+	 * suppressed it.
+	 * @param route the route
+	 * @param batch route table changes to add the route to
+	 */
+	private void install(RipRoute route, RouteTable.Batch batch)
+	{
+		if (!route.isSuppressed())
+		{
+			batch.put(route.getAddress(), route.getNextHop(), route.getMask(),
+					route.getInterface());
+		}
+	}
+
+	/**
+	 * Poison routes that timed out, delete routes whose garbage
+	 * collection timer expired, and reuse routes that are no longer
+	 * suppressed. Only routes whose timers are due are examined.
+	 */
+	private void expireRoutes()
+	{
+		RouteSweepEvent sweepEvent = new RouteSweepEvent();
+		sweepEvent.begin();
+		long now = System.currentTimeMillis();
+		List<RipRoute> expired = this.ripDb.expire(now);
+		List<Long> reused = this.dampener.reuse(now);
+		int removed = 0;
+		if (!expired.isEmpty() || !reused.isEmpty())
+		{
+			RouteTable.Batch batch = new RouteTable.Batch();
+			for (long key : reused)
+			{
+				RipRoute route = this.ripDb.get(key);
+				if (null == route || !route.isSuppressed())
+				{ continue; }
+				route.setSuppressed(false);
+				if (route.isReachable())
+				{
+					this.install(route, batch);
+					this.ripDb.markChanged(route);
+					System.out.println("reused "
+							+ IPv4.fromIPv4Address(route.getAddress()));
+				}
+			}
+			for (RipRoute route : expired)
+			{
+				if (route.isReachable())
+				{
+					// keep advertising it as unreachable until garbage
+					// collected
+					this.poisonRoute(route, now, batch);
+					System.out.println("timed out "
+							+ IPv4.fromIPv4Address(route.getAddress()));
+				}
+				else
+				{
+					this.ripDb.remove(route.getAddress(), route.getMask());
+					removed++;
+					System.out.println("removed "
+							+ IPv4.fromIPv4Address(route.getAddress()));
+				}
+			}
+			this.routeTable.apply(batch);
+			this.scheduleTriggeredUpdate();
+		}
+
+		sweepEvent.end();
+		if (sweepEvent.shouldCommit())
+		{
+			sweepEvent.routesChecked = expired.size();
+			sweepEvent.routesRemoved = removed;
+			sweepEvent.commit();
+		}
+	}
+
+	/**
+	 * Schedule a triggered update if routes changed and none is scheduled.
+	 * The first update after a quiet period is sent right away; later ones
+	 * wait out a random 1-5 second hold-down so bursts of changes are
+	 * coalesced (RFC 2453 section 3.10.1).
+	 */
+	private void scheduleTriggeredUpdate()
+	{
+		if (this.triggerScheduled || !this.ripDb.hasChanges())
+		{ return; }
+		long delay = Math.max(0,
+				this.triggerHoldDown - System.currentTimeMillis());
+		this.executor.schedule(new Runnable() {
+			public void run()
+			{ sendTriggeredUpdate(); }
+		}, delay, TimeUnit.MILLISECONDS);
+		this.triggerScheduled = true;
+	}
+
+	/**
+	 * Send the routes that changed since they were last advertised.
+	 */
+	private void sendTriggeredUpdate()
+	{
+		this.triggerScheduled = false;
+
+		// A full update sent in the meantime covers the changes
+		if (!this.ripDb.hasChanges())
+		{ return; }
+
+		this.sendResponses(this.ripDb.takeChanged());
+		this.triggerHoldDown = System.currentTimeMillis() + TRIGGER_MIN_DELAY
+				+ this.random.nextInt(TRIGGER_MAX_DELAY - TRIGGER_MIN_DELAY + 1);
+	}
+
+	/**
+	 * Send every route; this also covers any pending triggered update.
+	 */
+	private void sendPeriodicUpdate()
+	{
+		this.ripDb.clearChanged();
+		this.sendResponses(this.ripDb.values());
+	}
+
+	/**
+	 * Send unsolicited responses out all interfaces; every interface shares
+	 * the same encoded payloads, except where poisoned reverse applies.
+	 * @param routes routes to advertise
+	 */
+	private void sendResponses(List<RipRoute> routes)
+	{
+		if (0 == this.encoder.encode(RIPv2.COMMAND_RESPONSE, routes))
+		{ return; }
+		for (Iface iface : this.router.getInterfaces().values())
+		{
+			this.encoder.send(this.router, iface, RipEncoder.BROADCAST_MAC,
+					RipEncoder.RIP_MULTICAST);
+		}
+	}
+
+	public String toString()
+	{ return this.ripDb.toString(); }
+}
@@ -0,0 +1,171 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A route in a router's RIP database.
+ * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
+ */
+public class RipRoute
+{
+	/** Deadline for routes that never time out */
+	public static final long NEVER = Long.MAX_VALUE;
+
+	/** Destination network address */
+	private int address;
+
+	/** Subnet mask */
+	private int mask;
+
+	/** Hop count to the destination */
+	private int metric;
+
+	/** Next hop IP address; 0 for directly connected networks */
+	private int nextHop;
+
+	/** Router interface the route was learned on */
+	private Iface iface;
+
+	/** Time (in milliseconds since the epoch) the route times out */
+	private long deadline;
+
+	/** Whether the route changed since it was last advertised */
+	private boolean changed;
+
+	/** Whether flap dampening suppressed the route; suppressed routes are
+	 *  neither installed nor advertised as reachable */
+	private boolean suppressed;
+
+	/** Deadline of the route's pending expiry timer; NEVER if none */
+	private long timer;
+
+	/**
+	 * Create a RIP route.
+	 * @param address destination network address
+	 * @param mask subnet mask
+	 * @param metric hop count to the destination
+	 * @param nextHop next hop IP address; 0 for directly connected networks
+	 * @param iface router interface the route was learned on
+	 * @param deadline time (in milliseconds since the epoch) the route times
+	 *        out
+	 */
+	public RipRoute(int address, int mask, int metric, int nextHop,
+			Iface iface, long deadline)
+	{
+		this.address = address & mask;
+		this.mask = mask;
+		this.metric = metric;
+		this.nextHop = nextHop;
+		this.iface = iface;
+		this.deadline = deadline;
+		this.timer = NEVER;
+	}
+
+	/**
+	 * @return destination network address
+	 */
+	public int getAddress()
+	{ return this.address; }
+
+	/**
+	 * @return subnet mask
+	 */
+	public int getMask()
+	{ return this.mask; }
+
+	/**
+	 * @return hop count to the destination
+	 */
+	public int getMetric()
+	{ return this.metric; }
+
+	public void setMetric(int metric)
+	{ this.metric = metric; }
+
+	/**
+	 * @return next hop IP address; 0 for directly connected networks
+	 */
+	public int getNextHop()
+	{ return this.nextHop; }
+
+	public void setNextHop(int nextHop)
+	{ this.nextHop = nextHop; }
+
+	/**
+	 * @return router interface the route was learned on
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	public void setInterface(Iface iface)
+	{ this.iface = iface; }
+
+	/**
+	 * @return time (in milliseconds since the epoch) the route times out
+	 */
+	public long getDeadline()
+	{ return this.deadline; }
+
+	void setDeadline(long deadline)
+	{ this.deadline = deadline; }
+
+	long getTimer()
+	{ return this.timer; }
+
+	void setTimer(long timer)
+	{ this.timer = timer; }
+
+	/**
+	 * @return true if the route changed since it was last advertised
+	 */
+	public boolean isChanged()
+	{ return this.changed; }
+
+	void setChanged(boolean changed)
+	{ this.changed = changed; }
+
+	/**
+	 * @return true if flap dampening suppressed the route
+	 */
+	public boolean isSuppressed()
+	{ return this.suppressed; }
+
+	void setSuppressed(boolean suppressed)
+	{ this.suppressed = suppressed; }
+
+	/**
+	 * @return metric to advertise; infinity if the route is suppressed
+	 */
+	public int getAdvertisedMetric()
+	{ return (this.suppressed ? RIPv2.INFINITY : this.metric); }
+
+	/**
+	 * @return true if the destination is reachable (metric below infinity)
+	 */
+	public boolean isReachable()
+	{ return this.metric < RIPv2.INFINITY; }
+
+	/**
+	 * @return true if the route is for a directly connected network
+	 */
+	public boolean isConnected()
+	{ return 0 == this.nextHop; }
+
+	/**
+	 * @return key identifying the route's (address, mask) pair
+	 */
+	public long getKey()
+	{ return RipDatabase.key(this.address, this.mask); }
+
+	public String toString()
+	{
+		return String.format("%s \t%s \t%s \t%d \t%s",
+				IPv4.fromIPv4Address(this.address),
+				IPv4.fromIPv4Address(this.mask),
+				IPv4.fromIPv4Address(this.nextHop), this.metric,
+				this.iface.getName());
+	}
+}
@@ -4,8 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,19 +16,70 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups read the current array of entries
+ * without locking; every change copies the array and publishes the copy, so
+ * entries are never modified once published. Changes made together should
+ * be applied as a single batch, so the array is copied once.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Entries in the route table; replaced, never modified, on change */
+	private volatile RouteEntry[] entries; 
+
+	/**
+	 * A set of changes to apply to a route table at once. Changes are keyed
+	 * by (destination, mask); a later change to the same prefix replaces an
+	 * earlier one.
+	 */
+	public static class Batch
+	{
+		/** New entry for each changed prefix; null to remove the prefix */
+		private Map<Long,RouteEntry> changes;
+
+		public Batch()
+		{ this.changes = new LinkedHashMap<Long,RouteEntry>(); }
+
+		/**
+		 * Add or replace the entry for a prefix.
+		 * @param dstIp destination IP
+		 * @param gwIp gateway IP
+		 * @param maskIp subnet mask
+		 * @param iface router interface out which to send packets to reach
+		 *        the destination or gateway
+		 */
+		public void put(int dstIp, int gwIp, int maskIp, Iface iface)
+		{
+			this.changes.put(RipDatabase.key(dstIp, maskIp),
+					new RouteEntry(dstIp, gwIp, maskIp, iface));
+		}
+
+		/**
+		 * Remove the entry for a prefix.
+		 * @param dstIp destination IP
+		 * @param maskIp subnet mask
+		 */
+		public void remove(int dstIp, int maskIp)
+		{ this.changes.put(RipDatabase.key(dstIp, maskIp), null); }
+
+		/**
+		 * @return true if the batch contains no changes
+		 */
+		public boolean isEmpty()
+		{ return this.changes.isEmpty(); }
+
+		/**
+		 * @return number of changed prefixes
+		 */
+		public int size()
+		{ return this.changes.size(); }
+	}
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this.entries = new RouteEntry[0]; }
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,26 +88,23 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+		/*****************************************************************/
+		/* TODO: Find the route entry with the longest prefix match      */
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
-			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
+		RouteEntry bestMatch = null;
+		for (RouteEntry entry : this.entries)
+		{
+			int maskedDst = ip & entry.getMaskAddress();
+			int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
+			if (maskedDst == entrySubnet) {
+				if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
+				{ bestMatch = entry; }
 			}
+		}
 
-			return bestMatch;
+		return bestMatch;
 
-			/*****************************************************************/
-		}
+		/*****************************************************************/
 	}
 
 	/**
@@ -156,13 +206,14 @@ public class RouteTable
 	 * @param iface router interface out which to send packets to reach the 
 	 *        destination or gateway
 	 */
-	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	public synchronized void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
-		{ 
-			this.entries.add(entry);
-		}
+		RouteEntry[] current = this.entries;
+		RouteEntry[] next = new RouteEntry[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = entry;
+		this.entries = next;
 	}
 
 	/**
@@ -171,14 +222,16 @@ public class RouteTable
 	 * @param maskIp subnet mask of the entry to remove
 	 * @return true if a matching entry was found and removed, otherwise false
 	 */
-	public boolean remove(int dstIp, int maskIp)
+	public synchronized boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
-		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
-		}
+		RouteEntry[] current = this.entries;
+		int index = this.find(dstIp, maskIp);
+		if (index < 0) { return false; }
+		RouteEntry[] next = new RouteEntry[current.length - 1];
+		System.arraycopy(current, 0, next, 0, index);
+		System.arraycopy(current, index + 1, next, index,
+				current.length - index - 1);
+		this.entries = next;
 		return true;
 	}
 
@@ -190,49 +243,78 @@ public class RouteTable
 	 * @param iface new router interface for matching entry
 	 * @return true if a matching entry was found and updated, otherwise false
 	 */
-	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
+	public synchronized boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		int index = this.find(dstIp, maskIp);
+		if (index < 0) { return false; }
+		RouteEntry[] next = this.entries.clone();
+		next[index] = new RouteEntry(dstIp, gwIp, maskIp, iface);
+		this.entries = next;
+		return true;
+	}
+
+	/**
+	 * Apply a batch of changes, publishing the result with a single write.
+	 * @param batch changes to apply
+	 */
+	public synchronized void apply(Batch batch)
+	{
+		if (batch.isEmpty())
+		{ return; }
+
+		Map<Long,RouteEntry> pending = new LinkedHashMap<Long,RouteEntry>(
+				batch.changes);
+		RouteEntry[] current = this.entries;
+		List<RouteEntry> next = new ArrayList<RouteEntry>(
+				current.length + pending.size());
+		for (RouteEntry entry : current)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			Long key = RipDatabase.key(entry.getDestinationAddress(),
+					entry.getMaskAddress());
+			if (!pending.containsKey(key))
+			{ next.add(entry); }
+			else
+			{
+				RouteEntry replacement = pending.remove(key);
+				if (replacement != null)
+				{ next.add(replacement); }
+			}
 		}
-		return true;
+		for (RouteEntry entry : pending.values())
+		{
+			if (entry != null)
+			{ next.add(entry); }
+		}
+		this.entries = next.toArray(new RouteEntry[next.size()]);
 	}
 
 	/**
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
 	 * @param maskIp subnet mask of the entry to find
-	 * @return a matching entry if one was found, otherwise null
+	 * @return index of a matching entry if one was found, otherwise -1
 	 */
-	private RouteEntry find(int dstIp, int maskIp)
+	private int find(int dstIp, int maskIp)
 	{
-		synchronized(this.entries)
+		RouteEntry[] current = this.entries;
+		for (int i = 0; i < current.length; i++)
 		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
+			if ((current[i].getDestinationAddress() == dstIp)
+				&& (current[i].getMaskAddress() == maskIp)) 
+			{ return i; }
 		}
-		return null;
+		return -1;
 	}
 
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
-
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		RouteEntry[] current = this.entries;
+		if (0 == current.length)
+		{ return " WARNING: route table empty"; }
+
+		String result = "Destination\tGateway\t\tMask\t\tIface\n";
+		for (RouteEntry entry : current)
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
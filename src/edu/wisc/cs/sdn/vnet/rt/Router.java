@@ -1,44 +1,62 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.events.ArpMissEvent;
+import edu.wisc.cs.sdn.vnet.stats.DropReason;
+import edu.wisc.cs.sdn.vnet.stats.MetricsServer;
+import edu.wisc.cs.sdn.vnet.stats.Outcome;
 
+import net.floodlightcontroller.packet.BFD;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.LinkState;
+import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.RIPv2;
-import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
-public class Router extends Device implements Runnable
+public class Router extends Device
 {	
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
-	/** thread to send unsolicited response messages */
-	private Thread ripResponseSender;
+	/** RIP, if the router learns routes with RIP; null otherwise */
+	private RipProtocol rip;
 
-	private Thread timeout;
+	/** Link-state routing, if the router learns routes with it; null
+	 *  otherwise */
+	private LinkStateRouting linkState;
 
-	/** RIP Table for the router */
-	private Map<RIPv2Entry, Long> ripTable;
+	/** BFD liveness detection for neighbors; null if disabled */
+	private BfdMonitor bfd;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Packet filter applied to packets received by the router */
+	private AclTable aclTable;
+
+	/** Source NAT connection table; null if NAT is disabled */
+	private NatTable natTable;
+
+	/** Interface on the outside of the NAT; null if NAT is disabled */
+	private Iface natIface;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -47,11 +65,8 @@ public class Router extends Device implements Runnable
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
-		this.ripResponseSender = new Thread(this);
-		this.ripTable = new HashMap<RIPv2Entry, Long>();
-		this.timeout = new Thread(new ThreadTimeOut(ripTable, routeTable));
 		this.arpCache = new ArpCache();
-
+		this.aclTable = new AclTable();
 	}
 
 	/**
@@ -98,72 +113,242 @@ public class Router extends Device implements Runnable
 		System.out.println("----------------------------------");
 	}
 
-	public void printRip(Map<RIPv2Entry, Long> ripTable) {
-		for (Map.Entry<RIPv2Entry, Long> entry : ripTable.entrySet()) {
-			System.out.println("address = " + entry.getKey().getAddress() + " subnet mask = " + entry.getKey().getSubnetMask() + " metric = " + entry.getKey().getMetric());
+	/**
+	 * Load a packet filter from a file; the filter is reloaded whenever the
+	 * file changes.
+	 * @param aclFile the name of the file containing the packet filter rules
+	 */
+	public void loadAcl(String aclFile)
+	{
+		if (!aclTable.load(aclFile, this))
+		{
+			System.err.println("Error setting up ACL from file "
+					+ aclFile);
+			System.exit(1);
 		}
+
+		System.out.println("Loaded ACL");
+		System.out.println("----------------------------------");
+		System.out.print(this.aclTable.toString());
+		System.out.println("----------------------------------");
 	}
 
-	public void startRip() {
-		synchronized(ripTable) {
-			synchronized(routeTable){
-		// initalize routeTable and ripTable
-		for (Iface curIFace: interfaces.values()) {
-			// create router entry
-			int ip = curIFace.getIpAddress();
-			int mask = curIFace.getSubnetMask();
-			routeTable.insert(ip, 0, mask, curIFace);
-
-			// create ripTable entry
-			RIPv2Entry entry = new RIPv2Entry(ip, mask, 1);
-			ripTable.put(entry, System.currentTimeMillis());
+	/**
+	 * @return packet filter for the router
+	 */
+	public AclTable getAclTable()
+	{ return this.aclTable; }
+
+	/**
+	 * Masquerade packets forwarded out an interface behind the interface's
+	 * address.
+	 * @param ifaceName the name of the interface on the outside of the NAT
+	 * @param capacity number of slots in the NAT connection table
+	 */
+	public void enableNat(String ifaceName, int capacity)
+	{
+		Iface iface = this.getInterface(ifaceName);
+		if (null == iface)
+		{
+			System.err.println("Error setting up NAT, invalid interface "
+					+ ifaceName);
+			System.exit(1);
 		}
+
+		this.natTable = new NatTable(iface.getIpAddress(), capacity);
+		this.natIface = iface;
+		System.out.println("Enabled NAT on " + ifaceName + " ("
+				+ IPv4.fromIPv4Address(iface.getIpAddress()) + ")");
 	}
-}
 
-		System.out.println(routeTable);
+	/**
+	 * @return source NAT connection table; null if NAT is disabled
+	 */
+	public NatTable getNatTable()
+	{ return this.natTable; }
 
-		// send out rip requests to all neighbors
-		for (Iface curIface: interfaces.values()) {
-			// create all packet headers
-			Ethernet ether = new Ethernet();
-			IPv4 ip = new IPv4();
-			UDP udp = new UDP();
-			RIPv2 ripPacket = new RIPv2();
-			
-			// set ether headers
-			byte[] broadcast = {(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF}; //DestMac set to all ones
-			ether.setDestinationMACAddress(broadcast);
-			ether.setSourceMACAddress(curIface.getMacAddress().toBytes());
-			ether.setEtherType(Ethernet.TYPE_IPv4);
-			ether.setPayload(ip);
+	@Override
+	public void appendMetrics(StringBuilder sb)
+	{
+		super.appendMetrics(sb);
 
-			// set ip headers
-			ip.setDestinationAddress(-536870903); //int version of 224.0.0.9 Special multi cast for RIP
-			ip.setSourceAddress(curIface.getIpAddress());
-			ip.setProtocol(IPv4.PROTOCOL_UDP);
-			ip.setTtl((byte)64);
-			ip.setPayload(udp);
+		String[] device = new String[] { "device", this.getHost() };
+		if (this.natTable != null)
+		{
+			MetricsServer.header(sb, "vnet_nat_mappings", "gauge",
+					"Live NAT mappings");
+			MetricsServer.sample(sb, "vnet_nat_mappings", device,
+					this.natTable.size());
+			MetricsServer.header(sb, "vnet_nat_capacity", "gauge",
+					"Slots in the NAT connection table");
+			MetricsServer.sample(sb, "vnet_nat_capacity", device,
+					this.natTable.capacity());
+			MetricsServer.header(sb, "vnet_nat_failures_total", "counter",
+					"NAT mappings that could not be created");
+			MetricsServer.sample(sb, "vnet_nat_failures_total", device,
+					this.natTable.getFailures());
+		}
 
-			//set udp headers
-			udp.setDestinationPort(UDP.RIP_PORT);
-			udp.setSourcePort(UDP.RIP_PORT);
-			udp.setPayload(ripPacket);
+		if (this.rip != null)
+		{
+			FlapDampener dampener = this.rip.getDampener();
+			MetricsServer.header(sb, "vnet_rip_flaps_total", "counter",
+					"Withdrawals and next hop changes of learned routes");
+			MetricsServer.sample(sb, "vnet_rip_flaps_total", device,
+					dampener.getFlaps());
+			MetricsServer.header(sb, "vnet_rip_suppressions_total", "counter",
+					"Routes suppressed by flap dampening");
+			MetricsServer.sample(sb, "vnet_rip_suppressions_total", device,
+					dampener.getSuppressions());
+			MetricsServer.header(sb, "vnet_rip_reuses_total", "counter",
+					"Suppressed routes used again");
+			MetricsServer.sample(sb, "vnet_rip_reuses_total", device,
+					dampener.getReuses());
+			MetricsServer.header(sb, "vnet_rip_suppressed_routes", "gauge",
+					"Routes currently suppressed by flap dampening");
+			MetricsServer.sample(sb, "vnet_rip_suppressed_routes", device,
+					dampener.getSuppressed());
+		}
 
-			//set rip packet
-			ripPacket.setEntries(new LinkedList<RIPv2Entry>(ripTable.keySet()));
-			ripPacket.setCommand(RIPv2.COMMAND_REQUEST);
+		if (this.linkState != null)
+		{
+			MetricsServer.header(sb, "vnet_spf_runs_total", "counter",
+					"Link-state route computations, by kind");
+			MetricsServer.sample(sb, "vnet_spf_runs_total", new String[] {
+					"device", this.getHost(), "kind", "full" },
+					this.linkState.getFullRuns());
+			MetricsServer.sample(sb, "vnet_spf_runs_total", new String[] {
+					"device", this.getHost(), "kind", "partial" },
+					this.linkState.getPartialRuns());
+		}
 
-			// send the packet
-			this.sendPacket(ether, curIface);
+		List<AclRule> rules = this.aclTable.getRules();
+		if (rules.size() > 0)
+		{
+			MetricsServer.header(sb, "vnet_acl_hits_total", "counter",
+					"Packets matching each packet filter rule");
+			for (int i = 0; i < rules.size(); i++)
+			{
+				MetricsServer.sample(sb, "vnet_acl_hits_total", new String[] {
+						"device", this.getHost(), "rule", String.valueOf(i),
+						"text", rules.get(i).toString() },
+						rules.get(i).getHits());
+			}
+		}
+	}
 
+	/**
+	 * @return RIP for the router; null if RIP is not running
+	 */
+	public RipProtocol getRip()
+	{ return this.rip; }
+
+	/**
+	 * Start learning routes with RIP.
+	 */
+	public void startRip()
+	{
+		this.rip = new RipProtocol(this, this.getControlPlane());
+		this.rip.start();
+	}
 
+	/**
+	 * @return link-state routing for the router; null if it is not running
+	 */
+	public LinkStateRouting getLinkState()
+	{ return this.linkState; }
+
+	/**
+	 * Start learning routes with link-state routing.
+	 */
+	public void startLinkState()
+	{
+		this.linkState = new LinkStateRouting(this, this.getControlPlane());
+		this.linkState.start();
+	}
+
+	/**
+	 * Detect failed neighbors with BFD hellos.
+	 * @param interval desired interval (in milliseconds) between hellos
+	 */
+	public void startBfd(int interval)
+	{
+		this.bfd = new BfdMonitor(this, this.getControlPlane(), interval);
+		this.bfd.start();
+		System.out.println("Started BFD with a " + interval + " ms interval");
+	}
+
+	/**
+	 * Withdraw every route through a neighbor that failed; must be called on
+	 * the control-plane thread.
+	 * @param gateway neighbor's IP address
+	 */
+	public void neighborDown(int gateway)
+	{
+		if (this.rip != null)
+		{ this.rip.neighborDown(gateway); }
+		if (this.linkState != null)
+		{ this.linkState.neighborDown(gateway); }
+	}
+
+	/**
+	 * Save the routes learned by RIP, if it is running, and the ARP cache.
+	 * The RIP routes are written as a length-prefixed section, so a
+	 * checkpoint can be restored whether or not RIP is running.
+	 * @param out stream to write to
+	 */
+	@Override
+	public void writeState(DataOutputStream out) throws IOException
+	{
+		ByteArrayOutputStream ripBytes = new ByteArrayOutputStream();
+		if (this.rip != null)
+		{
+			DataOutputStream ripOut = new DataOutputStream(ripBytes);
+			this.rip.writeState(ripOut);
+			ripOut.flush();
+		}
+		out.writeInt(ripBytes.size());
+		ripBytes.writeTo(out);
+
+		List<ArpEntry> arpEntries =
+				new ArrayList<ArpEntry>(this.arpCache.getEntries());
+		out.writeInt(arpEntries.size());
+		for (ArpEntry entry : arpEntries)
+		{
+			out.writeInt(entry.getIp());
+			out.write(entry.getMac().toBytes());
 		}
-		ripResponseSender.start();
-		timeout.start();
 	}
 
+	/**
+	 * Restore the routes learned by RIP, if it is running, and the ARP cache.
+	 * ARP entries never expire, so they are restored as they were saved.
+	 * @param in stream to read from
+	 * @param age time (in milliseconds) since the checkpoint was written
+	 */
+	@Override
+	public void readState(DataInputStream in, long age) throws IOException
+	{
+		byte[] ripState = new byte[in.readInt()];
+		in.readFully(ripState);
+		if (this.rip != null && ripState.length > 0)
+		{
+			this.rip.readState(new DataInputStream(
+					new ByteArrayInputStream(ripState)), age);
+		}
 
+		int count = in.readInt();
+		byte[] mac = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+		for (int i = 0; i < count; i++)
+		{
+			int ip = in.readInt();
+			in.readFully(mac);
+			if (null == this.arpCache.lookup(ip))
+			{ this.arpCache.insert(MACAddress.valueOf(mac), ip); }
+		}
+		System.out.println(String.format("Restored %d ARP cache entries",
+				count));
+	}
 
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
@@ -184,6 +369,9 @@ public class Router extends Device implements Runnable
 			this.handleIpPacket(etherPacket, inIface);
 			break;
 		// Ignore all other packet types, for now
+		default:
+			this.drop(DropReason.UNSUPPORTED, inIface);
+			break;
 		}
 
 		/********************************************************************/
@@ -206,12 +394,24 @@ public class Router extends Device implements Runnable
 		ipPacket.deserialize(serialized, 0, serialized.length);
 		short calcCksum = ipPacket.getChecksum();
 		if (origCksum != calcCksum)
-		{ return; }
+		{
+			this.drop(DropReason.BAD_CHECKSUM, inIface);
+			return;
+		}
+
+		// Apply the packet filter for the ingress interface
+		if (!this.aclTable.permits(ipPacket, inIface))
+		{
+			this.drop(DropReason.ACL_DENIED, inIface);
+			return;
+		}
 
 		// Check TTL
 		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
 		if (0 == ipPacket.getTtl())
 		{ 
+			this.drop(DropReason.TTL_EXPIRED, inIface);
+
 			// set up pack headers
 			Ethernet ether = new Ethernet();
 			IPv4 ip = new IPv4();
@@ -268,6 +468,7 @@ public class Router extends Device implements Runnable
 			}
 			data.setData(partialPayload);
 			
+			this.setOutcome(Outcome.ICMP);
 			this.sendPacket(ether, inIface);
 			return; 
 		}
@@ -275,6 +476,84 @@ public class Router extends Device implements Runnable
 		// Reset checksum now that TTL is decremented
 		ipPacket.resetChecksum();
 
+		// Translate packets for inside hosts arriving on the outside of the NAT
+		if (this.natTable != null && inIface == this.natIface
+				&& ipPacket.getDestinationAddress() == inIface.getIpAddress()
+				&& this.translateInbound(ipPacket))
+		{
+			this.forwardIpPacket(etherPacket, inIface);
+			return;
+		}
+
+		//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+		//                                                        RIP Code
+		// RIP messages are handled before local delivery, since responses to
+		// requests are addressed to the router's interface
+		if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
+			UDP udpPacket = (UDP)ipPacket.getPayload();
+
+			// check for correct port (520)
+			if (udpPacket.getDestinationPort() == UDP.RIP_PORT && udpPacket.getSourcePort() == UDP.RIP_PORT) {
+				RIPv2 ripPacket = (RIPv2)udpPacket.getPayload();
+
+				// hand the message to the control plane; routers without RIP
+				// ignore it
+				if (this.rip != null) {
+					this.rip.receive(ripPacket, etherPacket.getSourceMACAddress(),
+							ipPacket.getSourceAddress(), inIface);
+				}
+
+				this.setOutcome(Outcome.RIP);
+				return;
+			}
+
+			// link-state hellos and LSAs are handled the same way, but are
+			// only decoded when sent to this router; others are forwarded
+			// untouched
+			if (udpPacket.getDestinationPort() == UDP.LINK_STATE_PORT
+					&& udpPacket.getSourcePort() == UDP.LINK_STATE_PORT
+					&& (ipPacket.getDestinationAddress()
+							== LinkStateRouting.ALL_ROUTERS
+						|| this.isAddressedTo(ipPacket.getDestinationAddress(),
+							inIface))) {
+				if (this.linkState != null) {
+					Data raw = (Data)udpPacket.getPayload();
+					LinkState message = new LinkState();
+					message.deserialize(raw.getBuffer(), raw.getOffset(),
+							raw.getLength());
+					this.linkState.receive(message,
+							ipPacket.getSourceAddress(), inIface);
+				}
+
+				this.setOutcome(Outcome.LINK_STATE);
+				return;
+			}
+
+			// BFD packets are sent from ephemeral ports (RFC 5881 section 4),
+			// so only packets addressed to this router, or broadcast on the
+			// link for discovery, are intercepted and decoded; the rest are
+			// forwarded untouched. Packets not sent with a TTL of 255 (now
+			// decremented) may come from beyond the link and are discarded
+			// (RFC 5881 section 5)
+			if (udpPacket.getDestinationPort() == UDP.BFD_PORT
+					&& this.isAddressedTo(ipPacket.getDestinationAddress(),
+							inIface)) {
+				if (this.bfd != null && ipPacket.getTtl() == (byte)254) {
+					Data raw = (Data)udpPacket.getPayload();
+					BFD bfdPacket = new BFD();
+					bfdPacket.deserialize(raw.getBuffer(), raw.getOffset(),
+							raw.getLength());
+					this.bfd.receive(bfdPacket,
+							etherPacket.getSourceMACAddress(),
+							ipPacket.getSourceAddress(), inIface);
+				}
+
+				this.setOutcome(Outcome.BFD);
+				return;
+			}
+		}
+		//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values())
 		{
@@ -341,6 +620,7 @@ public class Router extends Device implements Runnable
 					}
 					data.setData(partialPayload);
 	
+					this.setOutcome(Outcome.ICMP);
 					this.sendPacket(ether, inIface);
 					return;
 				} 
@@ -400,6 +680,7 @@ public class Router extends Device implements Runnable
 					byte[] fullPayload = baos.toByteArray();
 					data.setData(fullPayload);
 					
+					this.setOutcome(Outcome.ICMP);
 					this.sendPacket(ether, inIface);
 					return;
 				}
@@ -408,134 +689,6 @@ public class Router extends Device implements Runnable
 			}
 		}
 
-				//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-		//                                                        RIP Code
-		if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
-			UDP udpPacket = (UDP)ipPacket.getPayload();
-
-			// check for correct port (520)
-			if (udpPacket.getDestinationPort() == UDP.RIP_PORT && udpPacket.getSourcePort() == UDP.RIP_PORT) {
-				RIPv2 ripPacket = (RIPv2)udpPacket.getPayload();
-
-				// handle request command
-				if (ripPacket.getCommand() == RIPv2.COMMAND_REQUEST) {
-					// create all packet headers
-					Ethernet ether = new Ethernet();
-					IPv4 ip = new IPv4();
-					UDP udp = new UDP();
-					RIPv2 ripPacketNew = new RIPv2();
-					
-					// IPv4 ethPayload = (IPv4)etherPacket.getPayload();
-
-					// int macSRC = ipPacket.getSourceAddress();
-
-					// // Find matching route table entry 
-					// RouteEntry prev = this.routeTable.lookup(macSRC);
-					
-					// int nextHop = prev.getGatewayAddress();
-					// if (0 == nextHop)
-					// { nextHop = macSRC; }
-
-					// // Set destination MAC address in Ethernet header
-					// ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-					// ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
-
-
-					// set ether headers
-					ether.setDestinationMACAddress(etherPacket.getSourceMACAddress()); // set to source mac of recieved packet. Ask Zach does this need to be done like it as above with Arp Cache
-					ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
-					ether.setEtherType(Ethernet.TYPE_IPv4);
-					ether.setPayload(ip);
-
-					// set ip headers
-					ip.setDestinationAddress(ipPacket.getSourceAddress());
-					ip.setSourceAddress(inIface.getIpAddress());
-					ip.setProtocol(IPv4.PROTOCOL_UDP);
-					ip.setTtl((byte)64);
-					ip.setPayload(udp);
-
-					//set udp headers
-					udp.setDestinationPort(UDP.RIP_PORT);
-					udp.setSourcePort(UDP.RIP_PORT);
-					udp.setPayload(ripPacket);
-
-					//set rip packet
-					ripPacketNew.setEntries(new LinkedList<RIPv2Entry>(ripTable.keySet()));
-					ripPacketNew.setCommand(RIPv2.COMMAND_RESPONSE);
-
-					// send the packet
-					this.sendPacket(ether, inIface);
-
-				}
-				else if (ripPacket.getCommand() == RIPv2.COMMAND_RESPONSE) {
-					synchronized(ripTable){
-						synchronized(routeTable){
-					// potentially update routeTable and ripTable based on new information from ripPacket
-					for (RIPv2Entry entry : ripPacket.getEntries()) {
-						// add to route table and rip table if doesn't exist
-						// System.out.println("----------------entry" + entry.getAddress());
-						// System.out.println("----------------iface" + inIface.getIpAddress());
-						if (routeTable.lookup(entry.getAddress()) == null && entry.getAddress() != inIface.getIpAddress()) { //should this be "entry.getAddress() & entry.getMask()"
-							routeTable.insert(entry.getAddress(), ipPacket.getSourceAddress(), entry.getSubnetMask(), inIface); // go over with zach
-							RIPv2Entry newRip = new RIPv2Entry(entry.getAddress(), entry.getSubnetMask(), entry.getMetric() + 1);
-							ripTable.put(newRip, System.currentTimeMillis());
-						}
-					}
-
-					// Iterator<Map.Entry<RIPv2Entry, Long>> iter = ripTable.entrySet().iterator();
-					// while (iter.hasNext()) {
-					// 	Map.Entry<RIPv2Entry, Long> entry = iter.next();
-
-					// 	if (System.currentTimeMillis() - entry.getValue() > 30000) {
-					// 		routeTable.remove(entry.getKey().getAddress(), entry.getKey().getSubnetMask());
-					// 		iter.remove();
-					// 		System.out.println("removed " + entry.getKey().getAddress());
-					// 		System.out.println(routeTable);
-							
-					// 	}
-					// }
-
-					// check recived packets rip to see if need to update any entries
-					for (RIPv2Entry potentiallyBetterRIPEntry : ripPacket.getEntries()) {
-						// for (RIPv2Entry currentRipEntry : ripTable.keySet()) {
-						Iterator<RIPv2Entry> iter = ripTable.keySet().iterator();
-						ArrayList<RIPv2Entry> toAdd = new ArrayList<RIPv2Entry>();
-						while (iter.hasNext()) {
-							RIPv2Entry currentRipEntry = iter.next();
-
-							if (potentiallyBetterRIPEntry.getAddress() == currentRipEntry.getAddress()
-								&& potentiallyBetterRIPEntry.getSubnetMask() == currentRipEntry.getSubnetMask()) {
-								// update time
-								ripTable.replace(currentRipEntry, System.currentTimeMillis());
-								if (potentiallyBetterRIPEntry.getMetric() < currentRipEntry.getMetric() - 1) {
-									// update current rip table and routing table
-									
-									// ripTable.remove(currentRipEntry);
-									RIPv2Entry newRip = new RIPv2Entry(potentiallyBetterRIPEntry.getAddress(), potentiallyBetterRIPEntry.getSubnetMask(), potentiallyBetterRIPEntry.getMetric() + 1);
-									// ripTable.put(newRip, System.currentTimeMillis());
-									toAdd.add(newRip);
-									routeTable.remove(currentRipEntry.getAddress(), currentRipEntry.getSubnetMask());
-									routeTable.insert(currentRipEntry.getAddress(), ipPacket.getSourceAddress(), currentRipEntry.getSubnetMask(), inIface);
-									iter.remove();
-								}
-							}
-						}
-						for (RIPv2Entry newRip : toAdd) {
-							ripTable.put(newRip, System.currentTimeMillis());
-						}
-					}
-				}
-			}
-
-					System.out.println(routeTable);
-					printRip((ripTable));
-				}
-
-				return;
-			}
-		}
-		//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
 	}
@@ -557,6 +710,8 @@ public class Router extends Device implements Runnable
 		// If no entry matched, do nothing
 		if (null == bestMatch)
 		{ 
+			this.drop(DropReason.NO_ROUTE, inIface);
+
 			// set up pack headers
 			Ethernet ether = new Ethernet();
 			IPv4 ip = new IPv4();
@@ -613,6 +768,7 @@ public class Router extends Device implements Runnable
 			}
 			data.setData(partialPayload);
 
+			this.setOutcome(Outcome.ICMP);
 			this.sendPacket(ether, inIface);
 			return;
 		}
@@ -620,7 +776,19 @@ public class Router extends Device implements Runnable
 		// Make sure we don't sent a packet back out the interface it came in
 		Iface outIface = bestMatch.getInterface();
 		if (outIface == inIface)
-		{ return; }
+		{
+			this.drop(DropReason.SAME_INTERFACE, inIface);
+			return;
+		}
+
+		// Masquerade packets leaving through the outside of the NAT
+		if (this.natTable != null && outIface == this.natIface
+				&& inIface != this.natIface
+				&& !this.translateOutbound(ipPacket))
+		{
+			this.drop(DropReason.NAT_FAILED, inIface);
+			return;
+		}
 
 		// Set source MAC address in Ethernet header
 		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
@@ -634,6 +802,16 @@ public class Router extends Device implements Runnable
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
 		{ 
+			this.drop(DropReason.ARP_MISS, inIface);
+
+			ArpMissEvent missEvent = new ArpMissEvent();
+			if (missEvent.isEnabled())
+			{
+				missEvent.address = IPv4.fromIPv4Address(nextHop);
+				missEvent.iface = outIface.getName();
+				missEvent.commit();
+			}
+
 			// set up pack headers
 			Ethernet ether = new Ethernet();
 			IPv4 ip = new IPv4();
@@ -690,106 +868,179 @@ public class Router extends Device implements Runnable
 			}
 			data.setData(partialPayload);
 
+			this.setOutcome(Outcome.ICMP);
 			this.sendPacket(ether, inIface);
 			return; 
 		}
 
 		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
 
+		this.setOutcome(Outcome.FORWARDED);
 		this.sendPacket(etherPacket, outIface);
 	}
 
-	@Override
-	public void run() {
-		while (true)
+	/**
+	 * @param address destination IP address of a packet
+	 * @param inIface interface the packet was received on
+	 * @return true if the address is assigned to one of the router's
+	 *         interfaces, or is the broadcast address of the receiving
+	 *         interface's subnet
+	 */
+	private boolean isAddressedTo(int address, Iface inIface)
+	{
+		if (address == (inIface.getIpAddress() | ~inIface.getSubnetMask()))
+		{ return true; }
+		for (Iface iface : this.interfaces.values())
 		{
-			// Run every 10 seconds
-			try 
-			{ Thread.sleep(10000); }
-			catch (InterruptedException e) 
-			{ break; }
-
-			// send out unsolocited rip responses to all neighbors
-			for (Iface curIface: interfaces.values()) {
-				// create all packet headers
-				Ethernet ether = new Ethernet();
-				IPv4 ip = new IPv4();
-				UDP udp = new UDP();
-				RIPv2 ripPacket = new RIPv2();
-				
-				// set ether headers
-				byte[] broadcast = {(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF,(byte)0xFF}; //DestMac set to all ones
-				ether.setDestinationMACAddress(broadcast);
-				ether.setSourceMACAddress(curIface.getMacAddress().toBytes());
-				ether.setEtherType(Ethernet.TYPE_IPv4);
-				ether.setPayload(ip);
-
-				// set ip headers
-				ip.setDestinationAddress(-536870903); //int version of 224.0.0.9 Special multi cast for RIP
-				ip.setSourceAddress(curIface.getIpAddress());
-				ip.setProtocol(IPv4.PROTOCOL_UDP);
-				ip.setTtl((byte)64);
-				ip.setPayload(udp);
-
-				//set udp headers
-				udp.setDestinationPort(UDP.RIP_PORT);
-				udp.setSourcePort(UDP.RIP_PORT);
-				udp.setPayload(ripPacket);
-
-				//set rip packet
-				synchronized(routeTable){
-				ripPacket.setEntries(new LinkedList<RIPv2Entry>(ripTable.keySet()));
-				}
-				ripPacket.setCommand(RIPv2.COMMAND_RESPONSE);
-
-				// send the packet
-				this.sendPacket(ether, curIface);
-
-			}
-			
-			
+			if (address == iface.getIpAddress())
+			{ return true; }
 		}
-		
+		return false;
 	}
-}
 
-class ThreadTimeOut implements Runnable {
+	/**
+	 * Rewrite the source address and port (or ICMP identifier) of a packet
+	 * leaving through the outside of the NAT, updating checksums
+	 * incrementally.
+	 * @param ipPacket the IP packet
+	 * @return true if the packet was translated, false if it should be dropped
+	 */
+	private boolean translateOutbound(IPv4 ipPacket)
+	{
+		int insideAddress = ipPacket.getSourceAddress();
+		int outsideAddress = this.natTable.getOutsideAddress();
+		byte protocol = ipPacket.getProtocol();
 
-	private Map<RIPv2Entry, Long> ripTable;
-	private RouteTable routeTable;
+		if (ipPacket.getPayload() instanceof TCP)
+		{
+			TCP tcpPacket = (TCP)ipPacket.getPayload();
+			int insidePort = tcpPacket.getSourcePort() & 0xffff;
+			int outsidePort = this.natTable.translateOutbound(protocol,
+					insideAddress, insidePort);
+			if (outsidePort < 0)
+			{ return false; }
+			short cksum = NatTable.adjustChecksum32(tcpPacket.getChecksum(),
+					insideAddress, outsideAddress);
+			cksum = NatTable.adjustChecksum(cksum, insidePort, outsidePort);
+			tcpPacket.setChecksum(cksum);
+			tcpPacket.setSourcePort((short)outsidePort);
+		}
+		else if (ipPacket.getPayload() instanceof UDP)
+		{
+			UDP udpPacket = (UDP)ipPacket.getPayload();
+			int insidePort = udpPacket.getSourcePort() & 0xffff;
+			int outsidePort = this.natTable.translateOutbound(protocol,
+					insideAddress, insidePort);
+			if (outsidePort < 0)
+			{ return false; }
+			// A zero checksum means none was computed, so leave it for
+			// serialize to fill in
+			if (udpPacket.getChecksum() != 0)
+			{
+				short cksum = NatTable.adjustChecksum32(udpPacket.getChecksum(),
+						insideAddress, outsideAddress);
+				cksum = NatTable.adjustChecksum(cksum, insidePort, outsidePort);
+				udpPacket.setChecksum(cksum);
+			}
+			udpPacket.setSourcePort((short)outsidePort);
+		}
+		else if (ipPacket.getPayload() instanceof ICMP)
+		{
+			// Only echo requests carry an identifier that can be mapped back
+			ICMP icmpPacket = (ICMP)ipPacket.getPayload();
+			if (icmpPacket.getIcmpType() != ICMP.TYPE_ECHO_REQUEST
+					|| !(icmpPacket.getPayload() instanceof Data))
+			{ return false; }
+			byte[] echo = ((Data)icmpPacket.getPayload()).getData();
+			if (null == echo || echo.length < 2)
+			{ return false; }
+			int insideId = ((echo[0] & 0xff) << 8) | (echo[1] & 0xff);
+			int outsideId = this.natTable.translateOutbound(protocol,
+					insideAddress, insideId);
+			if (outsideId < 0)
+			{ return false; }
+			icmpPacket.setChecksum(NatTable.adjustChecksum(
+					icmpPacket.getChecksum(), insideId, outsideId));
+			echo[0] = (byte)(outsideId >>> 8);
+			echo[1] = (byte)outsideId;
+		}
+		else
+		{ return false; }
 
-	public ThreadTimeOut(Map<RIPv2Entry, Long> table, RouteTable routeTable) {
-		this.ripTable = table;
-		this.routeTable = routeTable;
+		ipPacket.setSourceAddress(outsideAddress);
+		return true;
 	}
-		
 
-	@Override
-	public void run() {
-		while (true)
+	/**
+	 * Rewrite the destination address and port (or ICMP identifier) of a
+	 * packet arriving on the outside of the NAT, updating checksums
+	 * incrementally.
+	 * @param ipPacket the IP packet
+	 * @return true if the packet was translated, false if no mapping exists
+	 */
+	private boolean translateInbound(IPv4 ipPacket)
+	{
+		int outsideAddress = ipPacket.getDestinationAddress();
+		byte protocol = ipPacket.getProtocol();
+
+		if (ipPacket.getPayload() instanceof TCP)
 		{
-			try 
-				{ Thread.sleep(5000); }
-				catch (InterruptedException e) 
-				{ break; }
-
-
-			synchronized(ripTable){
-				synchronized(routeTable){
-					Iterator<Map.Entry<RIPv2Entry, Long>> iter = ripTable.entrySet().iterator();
-					while (iter.hasNext()) {
-						Map.Entry<RIPv2Entry, Long> entry = iter.next();
-
-						if (System.currentTimeMillis() - entry.getValue() > 30000) {
-							routeTable.remove(entry.getKey().getAddress(), entry.getKey().getSubnetMask());
-							iter.remove();
-							System.out.println("removed " + entry.getKey().getAddress());
-							System.out.println(routeTable);
-							
-						}
-					}
-				}
+			TCP tcpPacket = (TCP)ipPacket.getPayload();
+			int outsidePort = tcpPacket.getDestinationPort() & 0xffff;
+			long inside = this.natTable.translateInbound(protocol, outsidePort);
+			if (inside < 0)
+			{ return false; }
+			int insideAddress = (int)(inside >>> 32);
+			int insidePort = (int)(inside & 0xffff);
+			short cksum = NatTable.adjustChecksum32(tcpPacket.getChecksum(),
+					outsideAddress, insideAddress);
+			cksum = NatTable.adjustChecksum(cksum, outsidePort, insidePort);
+			tcpPacket.setChecksum(cksum);
+			tcpPacket.setDestinationPort((short)insidePort);
+			ipPacket.setDestinationAddress(insideAddress);
+		}
+		else if (ipPacket.getPayload() instanceof UDP)
+		{
+			UDP udpPacket = (UDP)ipPacket.getPayload();
+			int outsidePort = udpPacket.getDestinationPort() & 0xffff;
+			long inside = this.natTable.translateInbound(protocol, outsidePort);
+			if (inside < 0)
+			{ return false; }
+			int insideAddress = (int)(inside >>> 32);
+			int insidePort = (int)(inside & 0xffff);
+			if (udpPacket.getChecksum() != 0)
+			{
+				short cksum = NatTable.adjustChecksum32(udpPacket.getChecksum(),
+						outsideAddress, insideAddress);
+				cksum = NatTable.adjustChecksum(cksum, outsidePort, insidePort);
+				udpPacket.setChecksum(cksum);
 			}
+			udpPacket.setDestinationPort((short)insidePort);
+			ipPacket.setDestinationAddress(insideAddress);
 		}
+		else if (ipPacket.getPayload() instanceof ICMP)
+		{
+			ICMP icmpPacket = (ICMP)ipPacket.getPayload();
+			if (icmpPacket.getIcmpType() != ICMP.TYPE_ECHO_REPLY
+					|| !(icmpPacket.getPayload() instanceof Data))
+			{ return false; }
+			byte[] echo = ((Data)icmpPacket.getPayload()).getData();
+			if (null == echo || echo.length < 2)
+			{ return false; }
+			int outsideId = ((echo[0] & 0xff) << 8) | (echo[1] & 0xff);
+			long inside = this.natTable.translateInbound(protocol, outsideId);
+			if (inside < 0)
+			{ return false; }
+			int insideId = (int)(inside & 0xffff);
+			icmpPacket.setChecksum(NatTable.adjustChecksum(
+					icmpPacket.getChecksum(), outsideId, insideId));
+			echo[0] = (byte)(insideId >>> 8);
+			echo[1] = (byte)insideId;
+			ipPacket.setDestinationAddress((int)(inside >>> 32));
+		}
+		else
+		{ return false; }
+
+		return true;
 	}
 }
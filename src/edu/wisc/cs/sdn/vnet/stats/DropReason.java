@@ -0,0 +1,57 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+/**
+ * Reasons a device drops a packet.
+ * @author Aaron Gember-Jacobson
+ */
+public enum DropReason
+{
+	/** IP header checksum did not match the header contents */
+	BAD_CHECKSUM("bad_checksum"),
+
+	/** TTL reached zero */
+	TTL_EXPIRED("ttl_expired"),
+
+	/** No route matched the destination */
+	NO_ROUTE("no_route"),
+
+	/** No ARP entry for the next hop */
+	ARP_MISS("arp_miss"),
+
+	/** Packet was denied by the packet filter */
+	ACL_DENIED("acl_denied"),
+
+	/** No NAT mapping exists or one could not be created */
+	NAT_FAILED("nat_failed"),
+
+	/** Packet would be sent back out the interface it arrived on */
+	SAME_INTERFACE("same_interface"),
+
+	/** Interface is not forwarding, to keep the spanning tree loop-free */
+	STP_BLOCKED("stp_blocked"),
+
+	/** Frame exceeded the broadcast, multicast, or unknown unicast rate
+	 *  allowed on the interface it arrived on */
+	STORM_SUPPRESSED("storm_control"),
+
+	/** Frame's VLAN is not allowed on the interface it arrived on */
+	VLAN_FILTERED("vlan_filtered"),
+
+	/** Packet type is not handled by the device */
+	UNSUPPORTED("unsupported"),
+
+	/** Packet could not be written to the server */
+	SEND_ERROR("send_error");
+
+	/** Name used for the reason in exported metrics */
+	private String label;
+
+	private DropReason(String label)
+	{ this.label = label; }
+
+	/**
+	 * @return name used for the reason in exported metrics
+	 */
+	public String getLabel()
+	{ return this.label; }
+}
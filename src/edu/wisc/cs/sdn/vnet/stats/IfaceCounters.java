@@ -0,0 +1,90 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packet and byte counters for an interface. Counters are striped, so
+ * updates from several threads do not contend on a single cache line.
+ * @author Aaron Gember-Jacobson
+ */
+public class IfaceCounters
+{
+	private LongAdder rxPackets;
+	private LongAdder rxBytes;
+	private LongAdder txPackets;
+	private LongAdder txBytes;
+
+	/** Packets dropped, indexed by drop reason */
+	private LongAdder[] drops;
+
+	/**
+	 * Creates a set of zeroed counters.
+	 */
+	public IfaceCounters()
+	{
+		this.rxPackets = new LongAdder();
+		this.rxBytes = new LongAdder();
+		this.txPackets = new LongAdder();
+		this.txBytes = new LongAdder();
+		this.drops = new LongAdder[DropReason.values().length];
+		for (int i = 0; i < this.drops.length; i++)
+		{ this.drops[i] = new LongAdder(); }
+	}
+
+	/**
+	 * Record a packet received on the interface.
+	 * @param bytes length of the packet
+	 */
+	public void received(int bytes)
+	{
+		this.rxPackets.increment();
+		this.rxBytes.add(bytes);
+	}
+
+	/**
+	 * Record a packet sent on the interface.
+	 * @param bytes length of the packet
+	 */
+	public void sent(int bytes)
+	{
+		this.txPackets.increment();
+		this.txBytes.add(bytes);
+	}
+
+	/**
+	 * Record a packet dropped on the interface.
+	 * @param reason why the packet was dropped
+	 */
+	public void dropped(DropReason reason)
+	{ this.drops[reason.ordinal()].increment(); }
+
+	public long getRxPackets()
+	{ return this.rxPackets.sum(); }
+
+	public long getRxBytes()
+	{ return this.rxBytes.sum(); }
+
+	public long getTxPackets()
+	{ return this.txPackets.sum(); }
+
+	public long getTxBytes()
+	{ return this.txBytes.sum(); }
+
+	/**
+	 * @param reason a drop reason
+	 * @return number of packets dropped for the reason
+	 */
+	public long getDrops(DropReason reason)
+	{ return this.drops[reason.ordinal()].sum(); }
+
+	/**
+	 * @return number of packets dropped for any reason
+	 */
+	public long getDrops()
+	{
+		long total = 0;
+		for (LongAdder drop : this.drops)
+		{ total += drop.sum(); }
+		return total;
+	}
+}
@@ -0,0 +1,134 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size log-linear histogram of latencies in nanoseconds. Each power of
+ * two is split into SUB_BUCKETS linear buckets, so every recorded value is
+ * off by at most 1/SUB_BUCKETS of its magnitude. Recording a value touches
+ * one atomic counter and allocates nothing.
+ * @author Aaron Gember-Jacobson
+ */
+public class LatencyHistogram
+{
+	/** log2 of the number of linear buckets per power of two */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** Number of linear buckets per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Largest power of two tracked; larger values land in the last bucket */
+	private static final int MAX_EXPONENT = 40;
+
+	/** Number of buckets */
+	private static final int NUM_BUCKETS =
+			(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	/** Count of values recorded in each bucket */
+	private AtomicLongArray buckets;
+
+	/** Number of values recorded */
+	private LongAdder count;
+
+	/** Sum of the values recorded */
+	private LongAdder sum;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		this.buckets = new AtomicLongArray(NUM_BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+	}
+
+	/**
+	 * Find the bucket for a value.
+	 */
+	private static int bucketFor(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{ return (int)Math.max(value, 0); }
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+		{ return NUM_BUCKETS - 1; }
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Find the largest value that falls in a bucket.
+	 */
+	private static long highestValueIn(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{ return bucket; }
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		this.buckets.incrementAndGet(bucketFor(nanos));
+		this.count.increment();
+		this.sum.add(nanos);
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount()
+	{ return this.count.sum(); }
+
+	/**
+	 * @return sum of the values recorded, in nanoseconds
+	 */
+	public long getSum()
+	{ return this.sum.sum(); }
+
+	/**
+	 * Compute several percentiles from a single snapshot of the buckets.
+	 * @param quantiles quantiles to compute, each between 0 and 1
+	 * @return upper bound (in nanoseconds) of the bucket containing each
+	 *         quantile; 0 if nothing has been recorded
+	 */
+	public long[] quantiles(double[] quantiles)
+	{
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{
+			snapshot[i] = this.buckets.get(i);
+			total += snapshot[i];
+		}
+
+		long[] result = new long[quantiles.length];
+		if (0 == total)
+		{ return result; }
+		for (int q = 0; q < quantiles.length; q++)
+		{
+			long rank = (long)Math.ceil(quantiles[q] * total);
+			if (rank < 1)
+			{ rank = 1; }
+			long seen = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++)
+			{
+				seen += snapshot[i];
+				if (seen >= rank)
+				{
+					result[q] = highestValueIn(i);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+}
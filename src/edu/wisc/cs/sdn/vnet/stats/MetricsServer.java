@@ -0,0 +1,139 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.wisc.cs.sdn.vnet.Device;
+
+/**
+ * Serves a device's counters in the Prometheus text exposition format on
+ * the loopback address.
+ * @author Aaron Gember-Jacobson
+ */
+public class MetricsServer implements HttpHandler
+{
+	/** Path metrics are served from */
+	public static final String PATH = "/metrics";
+
+	/** Device whose metrics are served */
+	private Device device;
+
+	/** Embedded HTTP server */
+	private HttpServer server;
+
+	private MetricsServer(Device device, HttpServer server)
+	{
+		this.device = device;
+		this.server = server;
+	}
+
+	/**
+	 * Start serving metrics for a device.
+	 * @param device device whose metrics are served
+	 * @param port TCP port to listen on
+	 * @return the server, null if it could not be started
+	 */
+	public static MetricsServer start(Device device, int port)
+	{
+		HttpServer server;
+		try
+		{
+			server = HttpServer.create(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), port), 0);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot start metrics server on port " + port
+					+ ": " + e.toString());
+			return null;
+		}
+
+		MetricsServer metricsServer = new MetricsServer(device, server);
+		server.createContext(PATH, metricsServer);
+		server.start();
+		return metricsServer;
+	}
+
+	/**
+	 * Stop serving metrics.
+	 */
+	public void stop()
+	{ this.server.stop(0); }
+
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		this.device.appendMetrics(sb);
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Append the HELP and TYPE lines for a metric.
+	 * @param sb buffer to append to
+	 * @param name name of the metric
+	 * @param type counter, gauge, or summary
+	 * @param help description of the metric
+	 */
+	public static void header(StringBuilder sb, String name, String type,
+			String help)
+	{
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Append a sample for a metric.
+	 * @param sb buffer to append to
+	 * @param name name of the metric
+	 * @param labels label names and values, alternating
+	 * @param value value of the sample
+	 */
+	public static void sample(StringBuilder sb, String name, String[] labels,
+			double value)
+	{
+		sb.append(name);
+		if (labels.length > 0)
+		{
+			sb.append('{');
+			for (int i = 0; i + 1 < labels.length; i += 2)
+			{
+				if (i > 0)
+				{ sb.append(','); }
+				sb.append(labels[i]).append("=\"");
+				String labelValue = labels[i + 1];
+				for (int j = 0; j < labelValue.length(); j++)
+				{
+					char c = labelValue.charAt(j);
+					if (c == '\\' || c == '"')
+					{ sb.append('\\').append(c); }
+					else if (c == '\n')
+					{ sb.append("\\n"); }
+					else
+					{ sb.append(c); }
+				}
+				sb.append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value))
+		{ sb.append((long)value); }
+		else
+		{ sb.append(value); }
+		sb.append('\n');
+	}
+}
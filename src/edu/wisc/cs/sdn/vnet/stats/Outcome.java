@@ -0,0 +1,47 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+/**
+ * What a device did with a packet it received.
+ * @author Aaron Gember-Jacobson
+ */
+public enum Outcome
+{
+	/** Sent out a single interface towards its destination */
+	FORWARDED("forwarded"),
+
+	/** Consumed by the device without sending anything */
+	LOCAL("local"),
+
+	/** Processed as a RIP request or response */
+	RIP("rip"),
+
+	/** Processed as a link-state hello or advertisement */
+	LINK_STATE("link_state"),
+
+	/** Processed as a BFD control packet */
+	BFD("bfd"),
+
+	/** Processed as a spanning tree BPDU */
+	STP("stp"),
+
+	/** Answered with an ICMP message */
+	ICMP("icmp"),
+
+	/** Sent out every other interface */
+	FLOODED("flooded"),
+
+	/** Dropped */
+	DROPPED("dropped");
+
+	/** Name used for the outcome in exported metrics and logs */
+	private String label;
+
+	private Outcome(String label)
+	{ this.label = label; }
+
+	/**
+	 * @return name used for the outcome in exported metrics and logs
+	 */
+	public String getLabel()
+	{ return this.label; }
+}
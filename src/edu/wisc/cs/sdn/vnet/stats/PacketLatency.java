@@ -0,0 +1,176 @@
+package edu.wisc.cs.sdn.vnet.stats;
+
+/**
+ * Tracks how long a device takes to process each packet, from the time the
+ * frame is read from the server until the last packet sent in response,
+ * with a separate histogram for each outcome. The packet being processed is
+ * tracked without synchronization, since packets are processed by a single
+ * thread; sends and outcomes reported by other threads, such as control
+ * plane messages, are ignored so they cannot be mistaken for the packet's.
+ * The histograms may be read from any thread.
+ * @author Aaron Gember-Jacobson
+ */
+public class PacketLatency implements Runnable
+{
+	/** Percentiles reported in logs and metrics */
+	public static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	/** Histograms of processing time, indexed by outcome */
+	private LatencyHistogram[] histograms;
+
+	/** Outcome of the packet being processed; null if not yet known */
+	private Outcome outcome;
+
+	/** Time (from System.nanoTime) the last packet was sent while processing
+	 *  the current packet; 0 if nothing was sent */
+	private long lastSend;
+
+	/** Thread that processes packets, as of the last call to begin() */
+	private Thread packetThread;
+
+	/** Name of the device, used in logs */
+	private String host;
+
+	/** How often (in seconds) to log percentiles */
+	private int logInterval;
+
+	/** Thread for periodically logging percentiles */
+	private Thread logThread;
+
+	/**
+	 * Creates empty histograms for a device.
+	 * @param host name of the device
+	 */
+	public PacketLatency(String host)
+	{
+		this.host = host;
+		this.histograms = new LatencyHistogram[Outcome.values().length];
+		for (int i = 0; i < this.histograms.length; i++)
+		{ this.histograms[i] = new LatencyHistogram(); }
+	}
+
+	/**
+	 * Start processing a packet.
+	 */
+	public void begin()
+	{
+		this.packetThread = Thread.currentThread();
+		this.outcome = null;
+		this.lastSend = 0;
+	}
+
+	/**
+	 * Record the outcome of the packet being processed; a later outcome
+	 * replaces an earlier one. Ignored unless called by the thread that
+	 * processes packets.
+	 * @param outcome what the device did with the packet
+	 */
+	public void setOutcome(Outcome outcome)
+	{
+		if (Thread.currentThread() == this.packetThread)
+		{ this.outcome = outcome; }
+	}
+
+	/**
+	 * Record that a packet was sent while processing the current packet.
+	 * Ignored unless called by the thread that processes packets.
+	 */
+	public void sent()
+	{
+		if (Thread.currentThread() == this.packetThread)
+		{ this.lastSend = System.nanoTime(); }
+	}
+
+	/**
+	 * Finish processing a packet and record its latency.
+	 * @param start time (from System.nanoTime) the frame was read
+	 * @return what the device did with the packet
+	 */
+	public Outcome end(long start)
+	{
+		long finish = (this.lastSend != 0 ? this.lastSend : System.nanoTime());
+		Outcome result = this.outcome;
+		if (null == result)
+		{ result = (this.lastSend != 0 ? Outcome.FORWARDED : Outcome.LOCAL); }
+		this.histograms[result.ordinal()].record(finish - start);
+		return result;
+	}
+
+	/**
+	 * @param outcome an outcome
+	 * @return histogram of processing time for packets with the outcome
+	 */
+	public LatencyHistogram getHistogram(Outcome outcome)
+	{ return this.histograms[outcome.ordinal()]; }
+
+	/**
+	 * Start logging percentiles periodically.
+	 * @param logInterval how often (in seconds) to log percentiles
+	 */
+	public void startLogging(int logInterval)
+	{
+		this.logInterval = logInterval;
+		this.logThread = new Thread(this);
+		this.logThread.setDaemon(true);
+		this.logThread.start();
+	}
+
+	/**
+	 * Every log interval: print percentiles for each outcome.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{ Thread.sleep(this.logInterval * 1000L); }
+			catch (InterruptedException e)
+			{ break; }
+
+			System.out.print(this.toString());
+		}
+	}
+
+	/**
+	 * Append the histograms as Prometheus summaries.
+	 * @param sb buffer to append to
+	 */
+	public void appendMetrics(StringBuilder sb)
+	{
+		String name = "vnet_packet_latency_seconds";
+		MetricsServer.header(sb, name, "summary",
+				"Time from reading a frame to sending the last response");
+		for (Outcome outcome : Outcome.values())
+		{
+			LatencyHistogram histogram = this.getHistogram(outcome);
+			long[] values = histogram.quantiles(QUANTILES);
+			for (int q = 0; q < QUANTILES.length; q++)
+			{
+				MetricsServer.sample(sb, name, new String[] {
+						"device", this.host, "outcome", outcome.getLabel(),
+						"quantile", String.valueOf(QUANTILES[q]) },
+						values[q] / 1e9);
+			}
+			String[] labels = new String[] { "device", this.host,
+					"outcome", outcome.getLabel() };
+			MetricsServer.sample(sb, name + "_sum", labels,
+					histogram.getSum() / 1e9);
+			MetricsServer.sample(sb, name + "_count", labels,
+					histogram.getCount());
+		}
+	}
+
+	public String toString()
+	{
+		String result = "Packet latency (us)\tcount\tp50\tp99\tp999\n";
+		for (Outcome outcome : Outcome.values())
+		{
+			LatencyHistogram histogram = this.getHistogram(outcome);
+			long[] values = histogram.quantiles(QUANTILES);
+			result += String.format("%-10s\t\t%d\t%.1f\t%.1f\t%.1f\n",
+					outcome.getLabel(), histogram.getCount(),
+					values[0] / 1e3, values[1] / 1e3, values[2] / 1e3);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,398 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.IGMP;
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * IGMP snooping (RFC 4541): learns which ports have listeners for each
+ * multicast group, and which ports lead to multicast routers, from the IGMP
+ * messages the switch forwards, so multicast traffic is only sent where it
+ * is wanted.
+ * <p>
+ * A port joins a group when a report for the group is received on it, and
+ * leaves when no report is received for a group membership interval, or
+ * shortly after a leave if no other listener on the port answers the
+ * router's query. A port is a router port while queries are received on it.
+ * Version 3 reports are handled per group; source filters are ignored, so a
+ * port with listeners for any source receives the group's traffic from
+ * every source.
+ * <p>
+ * Groups are kept per VLAN in an open-addressing table with a membership
+ * expiry time per port, so finding a group's ports allocates nothing. The
+ * table is only used by the thread that processes packets.
+ * @author Aaron Gember-Jacobson
+ */
+public class IgmpSnooping
+{
+	/** Time (in seconds) a port stays in a group without a report: robustness
+	 *  variable times query interval plus query response interval */
+	public static final int MEMBERSHIP_INTERVAL = 2 * 125 + 10;
+
+	/** Time (in seconds) a port stays a router port without a query */
+	public static final int QUERIER_INTERVAL = 2 * 125 + 10 / 2;
+
+	/** Time (in seconds) a port stays in a group after a leave, for other
+	 *  listeners to answer the router's group-specific queries */
+	public static final int LAST_MEMBER_TIME = 2;
+
+	/** Default most groups tracked */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final long EMPTY = 0;
+
+	private static final long LIVE = 1L << 62;
+
+	/**
+	 * Ports with listeners for a group.
+	 */
+	public static class Group
+	{
+		/** Time (in seconds since the table was created) each port, by
+		 *  index, leaves the group; 0 if the port is not in the group */
+		private int[] expires;
+
+		private Group(int ports)
+		{ this.expires = new int[ports]; }
+	}
+
+	/** Group with no listeners; its traffic only goes to router ports */
+	private static final Group UNREGISTERED = new Group(0);
+
+	/** Keys (LIVE, VLAN, and group address) of the groups, by slot */
+	private long[] keys;
+
+	/** Groups, by slot */
+	private Group[] groups;
+
+	/** Mask for turning a hash into a slot */
+	private int mask;
+
+	/** Most groups tracked */
+	private int capacity;
+
+	/** Number of groups tracked */
+	private volatile int size;
+
+	/** Time (in seconds since the table was created) each port, by index,
+	 *  stops being a router port; 0 if the port is not a router port */
+	private int[] routerPorts;
+
+	/** Time (in seconds since the table was created) the last router port
+	 *  expires */
+	private int querierUntil;
+
+	/** Time (in milliseconds since the epoch) the table was created */
+	private long startTime;
+
+	/** Current time (in seconds since the table was created), as of the
+	 *  last message or group lookup */
+	private int now;
+
+	/** Number of queries, reports, and leaves processed */
+	private volatile long queries;
+	private volatile long reports;
+	private volatile long leaves;
+
+	/**
+	 * Create an empty snooping table.
+	 * @param capacity most groups tracked; traffic for other groups is
+	 *        flooded
+	 */
+	public IgmpSnooping(int capacity)
+	{
+		int slots = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+		this.keys = new long[slots];
+		this.groups = new Group[slots];
+		this.mask = slots - 1;
+		this.capacity = Math.max(capacity, 1);
+		this.routerPorts = new int[0];
+		this.startTime = System.currentTimeMillis();
+		this.now = 1;
+	}
+
+	private void tick()
+	{
+		this.now = 1 + (int)((System.currentTimeMillis() - this.startTime)
+				/ 1000);
+	}
+
+	private static long key(int vlan, int group)
+	{ return LIVE | ((long)(vlan & 0xfff) << 32) | (group & 0xffffffffL); }
+
+	private static int hash(long key)
+	{
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	/**
+	 * @param address an IPv4 address
+	 * @return true if the address is a multicast group whose membership is
+	 *         tracked: not in the link-local block 224.0.0.0/24, whose
+	 *         traffic always goes to every port
+	 */
+	public static boolean isSnooped(int address)
+	{ return (address >>> 28) == 0xe && (address >>> 8) != 0xe00000; }
+
+	/**
+	 * @return slot containing the key, -1 if the key is not present
+	 */
+	private int find(long key)
+	{
+		int slot = hash(key) & this.mask;
+		while (this.keys[slot] != EMPTY)
+		{
+			if (this.keys[slot] == key)
+			{ return slot; }
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the ports to send a multicast packet to.
+	 * @param vlan VLAN the packet is in
+	 * @param group destination address of the packet
+	 * @return the group's listeners, to pass to forwards(); null if the
+	 *         packet should go to every port
+	 */
+	public Group lookup(int vlan, int group)
+	{
+		this.tick();
+		if (!isSnooped(group))
+		{ return null; }
+		// Without a multicast router, hosts only report when they join, so
+		// unknown groups, and groups whose listeners have all timed out, may
+		// still have listeners
+		boolean querier = (this.now < this.querierUntil);
+		int slot = this.find(key(vlan, group));
+		if (slot >= 0 && (querier || !this.isExpired(slot)))
+		{ return this.groups[slot]; }
+		return (querier ? UNREGISTERED : null);
+	}
+
+	/**
+	 * Find the ports to send an IGMP report or leave to.
+	 * @return no listeners, to pass to forwards(), so the message only goes
+	 *         to router ports; null if no multicast router was recently
+	 *         heard from, so the message should go to every port
+	 */
+	public Group lookupRouters()
+	{
+		this.tick();
+		return (this.now < this.querierUntil ? UNREGISTERED : null);
+	}
+
+	/**
+	 * @param group listeners for a group, from lookup()
+	 * @param iface a port on the switch
+	 * @return true if the group's traffic should be sent on the port: the
+	 *         port has listeners or leads to a multicast router
+	 */
+	public boolean forwards(Group group, Iface iface)
+	{
+		int index = iface.getIndex();
+		return ((index < group.expires.length
+					&& group.expires[index] > this.now)
+				|| this.isRouterPort(iface));
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @return true if queries were recently received on the port
+	 */
+	public boolean isRouterPort(Iface iface)
+	{
+		int index = iface.getIndex();
+		return (index < this.routerPorts.length
+				&& this.routerPorts[index] > this.now);
+	}
+
+	/**
+	 * Learn from an IGMP message received on a port.
+	 * @param vlan VLAN the message was received in
+	 * @param igmp the message
+	 * @param inIface port the message was received on
+	 */
+	public void receive(int vlan, IGMP igmp, Iface inIface)
+	{
+		this.tick();
+		switch (igmp.getType())
+		{
+		case IGMP.TYPE_QUERY:
+			this.queries++;
+			int index = inIface.getIndex();
+			if (index >= this.routerPorts.length)
+			{ this.routerPorts = Arrays.copyOf(this.routerPorts, index + 1); }
+			this.routerPorts[index] = this.now + QUERIER_INTERVAL;
+			this.querierUntil = Math.max(this.querierUntil,
+					this.routerPorts[index]);
+			break;
+		case IGMP.TYPE_V1_REPORT:
+		case IGMP.TYPE_V2_REPORT:
+			this.reports++;
+			this.join(vlan, igmp.getGroupAddress(), inIface);
+			break;
+		case IGMP.TYPE_LEAVE:
+			this.leaves++;
+			this.leave(vlan, igmp.getGroupAddress(), inIface);
+			break;
+		case IGMP.TYPE_V3_REPORT:
+			this.reports++;
+			for (int i = 0; i < igmp.getRecordCount(); i++)
+			{
+				// Including no sources means no longer listening; blocking
+				// some sources leaves listeners for the rest
+				byte type = igmp.getRecordType(i);
+				if ((IGMP.CHANGE_TO_INCLUDE == type
+						|| IGMP.MODE_IS_INCLUDE == type)
+						&& 0 == igmp.getRecordSources(i).length)
+				{
+					this.leaves++;
+					this.leave(vlan, igmp.getRecordGroup(i), inIface);
+				}
+				else if (type != IGMP.BLOCK_OLD_SOURCES)
+				{ this.join(vlan, igmp.getRecordGroup(i), inIface); }
+			}
+			break;
+		}
+	}
+
+	private void join(int vlan, int group, Iface iface)
+	{
+		if (!isSnooped(group))
+		{ return; }
+		long key = key(vlan, group);
+		int slot = this.find(key);
+		if (slot < 0)
+		{
+			if (this.size >= this.capacity)
+			{ this.sweep(); }
+			if (this.size >= this.capacity)
+			{ return; }
+			slot = hash(key) & this.mask;
+			while (this.keys[slot] != EMPTY)
+			{ slot = (slot + 1) & this.mask; }
+			this.groups[slot] = new Group(iface.getIndex() + 1);
+			this.keys[slot] = key;
+			this.size++;
+		}
+
+		Group entry = this.groups[slot];
+		int index = iface.getIndex();
+		if (index >= entry.expires.length)
+		{ entry.expires = Arrays.copyOf(entry.expires, index + 1); }
+		entry.expires[index] = this.now + MEMBERSHIP_INTERVAL;
+	}
+
+	private void leave(int vlan, int group, Iface iface)
+	{
+		int slot = this.find(key(vlan, group));
+		int index = iface.getIndex();
+		if (slot < 0 || index >= this.groups[slot].expires.length)
+		{ return; }
+		Group entry = this.groups[slot];
+		entry.expires[index] = Math.min(entry.expires[index],
+				this.now + LAST_MEMBER_TIME);
+	}
+
+	/**
+	 * Remove groups whose listeners have all left.
+	 */
+	private void sweep()
+	{
+		for (int slot = 0; slot <= this.mask; slot++)
+		{
+			while (this.keys[slot] != EMPTY && this.isExpired(slot))
+			{ this.remove(slot); }
+		}
+	}
+
+	private boolean isExpired(int slot)
+	{
+		for (int expires : this.groups[slot].expires)
+		{
+			if (expires > this.now)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the group in a slot, shifting later groups in its probe
+	 * sequence back so no tombstone is needed.
+	 */
+	private void remove(int slot)
+	{
+		int hole = slot;
+		int next = (slot + 1) & this.mask;
+		while (this.keys[next] != EMPTY)
+		{
+			// Move a group into the hole if the hole lies between its home
+			// slot and where it is now
+			int home = hash(this.keys[next]) & this.mask;
+			if (((next - home) & this.mask) >= ((next - hole) & this.mask))
+			{
+				this.keys[hole] = this.keys[next];
+				this.groups[hole] = this.groups[next];
+				hole = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys[hole] = EMPTY;
+		this.groups[hole] = null;
+		this.size--;
+	}
+
+	/**
+	 * @return number of groups tracked
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return number of queries processed
+	 */
+	public long getQueries()
+	{ return this.queries; }
+
+	/**
+	 * @return number of reports processed
+	 */
+	public long getReports()
+	{ return this.reports; }
+
+	/**
+	 * @return number of leaves processed, including version 3 records that
+	 *         stop listening
+	 */
+	public long getLeaves()
+	{ return this.leaves; }
+
+	public String toString()
+	{
+		String result = "VLAN\tGroup\tPorts\n";
+		for (int slot = 0; slot <= this.mask; slot++)
+		{
+			long key = this.keys[slot];
+			if (EMPTY == key)
+			{ continue; }
+			String ports = "";
+			int[] expires = this.groups[slot].expires;
+			for (int index = 0; index < expires.length; index++)
+			{
+				if (expires[index] > this.now)
+				{ ports += (ports.length() > 0 ? "," : "") + index; }
+			}
+			result += ((key >>> 32) & 0xfff) + "\t"
+					+ IPv4.fromIPv4Address((int)key) + "\t" + ports + "\n";
+		}
+		return result;
+	}
+}
@@ -0,0 +1,287 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Static link aggregation: groups of a switch's ports (port channels) that
+ * connect to the same neighbor and act as a single logical port, so the
+ * bandwidth to the neighbor grows with the number of links.
+ * <p>
+ * The first member of a channel represents it. Stations are learned on,
+ * frames are flooded to, and VLANs, the spanning tree, IGMP snooping, and
+ * storm control apply to the representative, so a channel behaves like any
+ * other port. Only when a frame is sent is a member chosen, by a hash of
+ * the frame's MAC addresses and, for IPv4, its addresses, protocol, and
+ * TCP or UDP ports. Every frame of a flow takes the same member, so frames
+ * within a flow stay in order.
+ * <p>
+ * Channels are static: members are not negotiated with the neighbor, and
+ * a failed member keeps being chosen for its share of flows.
+ * @author Aaron Gember-Jacobson
+ */
+public class LinkAggregation
+{
+	/** IPv4 flag set on every fragment but the last */
+	private static final byte MORE_FRAGMENTS = 0x1;
+
+	/** Representative of the channel each port, by index, belongs to;
+	 *  null if the port is not in a channel */
+	private Iface[] channels;
+
+	/** Members of each channel, by the representative's index */
+	private Iface[][] members;
+
+	/** Name of each channel, by the representative's index */
+	private String[] names;
+
+	/**
+	 * Create a configuration with no channels.
+	 */
+	public LinkAggregation()
+	{
+		this.channels = new Iface[0];
+		this.members = new Iface[0][];
+		this.names = new String[0];
+	}
+
+	/**
+	 * Group ports into a channel.
+	 * @param name name of the channel
+	 * @param ifaces distinct ports in the channel; the first represents the
+	 *        channel
+	 * @return false if a port is already in a channel
+	 */
+	public boolean addChannel(String name, Iface[] ifaces)
+	{
+		int length = this.channels.length;
+		for (Iface iface : ifaces)
+		{
+			if (iface.getIndex() < length
+					&& this.channels[iface.getIndex()] != null)
+			{ return false; }
+			length = Math.max(length, iface.getIndex() + 1);
+		}
+		this.channels = Arrays.copyOf(this.channels, length);
+		this.members = Arrays.copyOf(this.members, length);
+		this.names = Arrays.copyOf(this.names, length);
+
+		Iface representative = ifaces[0];
+		for (Iface iface : ifaces)
+		{ this.channels[iface.getIndex()] = representative; }
+		this.members[representative.getIndex()] = ifaces.clone();
+		this.names[representative.getIndex()] = name;
+		return true;
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @return logical port the port belongs to: the representative of its
+	 *         channel, or the port itself if it is not in a channel
+	 */
+	public Iface getPort(Iface iface)
+	{
+		int index = iface.getIndex();
+		return (index < this.channels.length && this.channels[index] != null
+				? this.channels[index] : iface);
+	}
+
+	/**
+	 * Choose the member of a logical port to send a frame on.
+	 * @param port a logical port
+	 * @param etherPacket frame to send
+	 * @return the member the frame's flow is sent on, or the port itself if
+	 *         it is not a channel
+	 */
+	public Iface select(Iface port, Ethernet etherPacket)
+	{
+		int index = port.getIndex();
+		Iface[] members = (index < this.members.length ? this.members[index]
+				: null);
+		if (null == members)
+		{ return port; }
+		return members[(flowHash(etherPacket) & 0x7fffffff) % members.length];
+	}
+
+	/**
+	 * Hash a frame's flow: its MAC addresses and, for IPv4, its addresses,
+	 * protocol, and TCP or UDP ports. Ports are left out for fragments,
+	 * since only the first fragment carries them.
+	 */
+	private static int flowHash(Ethernet etherPacket)
+	{
+		long hash = etherPacket.getSourceMAC().toLong() * 31
+				+ etherPacket.getDestinationMAC().toLong();
+		if (etherPacket.getPayload() instanceof IPv4)
+		{
+			IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+			hash = hash * 31 + ipPacket.getSourceAddress();
+			hash = hash * 31 + ipPacket.getDestinationAddress();
+			hash = hash * 31 + ipPacket.getProtocol();
+			boolean fragment = (ipPacket.getFragmentOffset() != 0
+					|| (ipPacket.getFlags() & MORE_FRAGMENTS) != 0);
+			if (!fragment && ipPacket.getPayload() instanceof TCP)
+			{
+				TCP tcpPacket = (TCP)ipPacket.getPayload();
+				hash = hash * 31 + tcpPacket.getSourcePort();
+				hash = hash * 31 + tcpPacket.getDestinationPort();
+			}
+			else if (!fragment && ipPacket.getPayload() instanceof UDP)
+			{
+				UDP udpPacket = (UDP)ipPacket.getPayload();
+				hash = hash * 31 + udpPacket.getSourcePort();
+				hash = hash * 31 + udpPacket.getDestinationPort();
+			}
+		}
+		else if (etherPacket.getPayload() instanceof Data
+				&& Ethernet.TYPE_IPv4 == etherPacket.getEtherType())
+		{
+			// Read the same fields from an undecoded payload
+			Data raw = (Data)etherPacket.getPayload();
+			byte[] data = raw.getBuffer();
+			int offset = raw.getOffset();
+			if (raw.getLength() >= 20)
+			{
+				int headerLength = (data[offset] & 0xf) * 4;
+				byte protocol = data[offset + 9];
+				hash = hash * 31 + readInt(data, offset + 12);
+				hash = hash * 31 + readInt(data, offset + 16);
+				hash = hash * 31 + protocol;
+				boolean fragment = ((readInt(data, offset + 4) & 0x3fff) != 0);
+				if (!fragment && (IPv4.PROTOCOL_TCP == protocol
+						|| IPv4.PROTOCOL_UDP == protocol)
+						&& headerLength >= 20
+						&& raw.getLength() >= headerLength + 4)
+				{
+					int ports = readInt(data, offset + headerLength);
+					hash = hash * 31 + (short)(ports >> 16);
+					hash = hash * 31 + (short)ports;
+				}
+			}
+		}
+
+		// Mix the bits, so members are chosen evenly even when flows differ
+		// only in a few bits
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return (int)hash;
+	}
+
+	private static int readInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Read channels from a file. Each line has the form
+	 * <pre>
+	 * name iface iface...
+	 * </pre>
+	 * with at least two ports. Blank lines and lines starting with # are
+	 * ignored.
+	 * @param filename name of the file containing the channels
+	 * @param sw switch whose ports are grouped
+	 * @return true if the channels were successfully loaded, otherwise false
+	 */
+	public boolean load(String filename, Switch sw)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		while (true)
+		{
+			// Read a channel from the file
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+
+			line = line.trim();
+			if (0 == line.length() || line.startsWith("#"))
+			{ continue; }
+
+			if (!this.parse(line, sw))
+			{
+				System.err.println("Invalid entry in link aggregation file: "
+						+ line);
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return true;
+	}
+
+	/**
+	 * Parse and add a single channel.
+	 * @return false if the line is invalid
+	 */
+	private boolean parse(String line, Switch sw)
+	{
+		String[] fields = line.split("\\s+");
+		if (fields.length < 3)
+		{ return false; }
+		List<Iface> ifaces = new ArrayList<Iface>();
+		for (int i = 1; i < fields.length; i++)
+		{
+			Iface iface = sw.getInterface(fields[i]);
+			if (null == iface || ifaces.contains(iface))
+			{ return false; }
+			ifaces.add(iface);
+		}
+		return this.addChannel(fields[0], ifaces.toArray(new Iface[0]));
+	}
+
+	public String toString()
+	{
+		String result = "Channel\tMembers\n";
+		for (int index = 0; index < this.members.length; index++)
+		{
+			if (null == this.members[index])
+			{ continue; }
+			String members = "";
+			for (Iface iface : this.members[index])
+			{ members += (members.length() > 0 ? "," : "") + iface.getName(); }
+			result += this.names[index] + "\t" + members + "\n";
+		}
+		return result;
+	}
+}
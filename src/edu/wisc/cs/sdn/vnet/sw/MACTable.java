@@ -1,77 +1,551 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import edu.wisc.cs.sdn.vnet.Iface;
-
-import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 
 /**
- * A MAC learning table.
+ * A MAC learning table, with stations learned separately in each VLAN.
+ * <p>
+ * VLAN IDs and MAC addresses are packed into longs and kept in an
+ * open-addressing table, so learning and lookups take no locks and allocate
+ * nothing. Stations are only added by the thread that processes packets.
+ * Each slot takes 20 bytes: the key, the port and time last seen packed into
+ * a second long, and the deadline of the slot's timer. Ports are referred to
+ * by their index on the switch.
+ * <p>
+ * Stations are aged without a thread of their own. The time a station was
+ * last seen is kept in whole seconds and only written when it changes, so a
+ * busy station costs one write per second rather than one per frame.
+ * Lookups treat stale stations as unknown, and a timer wheel, advanced by
+ * the packet thread at most once a second, retires them. Each station has a
+ * single timer for when it could next go stale; a station that was seen
+ * since is rescheduled when the timer fires, so aging costs nothing per
+ * frame and one timer per station per timeout.
+ * <p>
+ * A retired station's slot is filled by shifting later stations in its
+ * probe sequence back, so no tombstones are left behind and a lookup for an
+ * unknown station stops at the first empty slot however many stations have
+ * come and gone. A lookup that races a shift may miss a station, and the
+ * frame is flooded.
+ * <p>
+ * The number of stations is limited, both overall and per port, so a host
+ * flooding the switch with made-up source addresses cannot exhaust memory.
+ * A new station that would exceed a limit evicts the least recently seen of
+ * a small random sample of stations (overall, or on the same port), which
+ * approximates evicting the least recently seen station without keeping an
+ * LRU list.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
-	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
-	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+
+	/** Default number of stations the table holds */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** Number of timer wheel slots, of one second each; one rotation spans
+	 *  more than the timeout */
+	private static final int TIMER_SLOTS = 32;
+
+	/** Number of stations sampled to pick one to evict */
+	private static final int EVICTION_SAMPLES = 8;
+
+	/** Most slots examined to find stations to sample */
+	private static final int EVICTION_PROBES = 256;
+
+	private static final long EMPTY = 0;
+	private static final long LIVE = 1L << 62;
+	private static final long MAC_MASK = 0xffffffffffffL;
+
+	/** VLAN ID and MAC address (with the LIVE bit set) in each slot */
+	private AtomicLongArray keys;
+
+	/** Index of the port (plus one) in the upper 32 bits and time (in seconds
+	 *  since the table was created) last seen in the lower 32 bits, for each
+	 *  slot's MAC */
+	private AtomicLongArray values;
+
+	/** Deadline (in seconds since the table was created) of each slot's
+	 *  pending timer; guarded by the table's lock */
+	private int[] timers;
+
+	/** Number of slots minus one; the number of slots is a power of two */
+	private int mask;
+
+	/** Most stations in the table */
+	private int capacity;
+
+	/** Most stations on a single port; 0 for no limit */
+	private int portLimit;
+
+	/** Ports, by index; replaced when a port is first seen */
+	private volatile Iface[] ports;
+
+	/** Number of stations on each port, by index; guarded by the table's
+	 *  lock */
+	private int[] portCounts;
+
+	/** Number of live entries */
+	private volatile int size;
+
+	/** Number of stations learned */
+	private volatile long learned;
+
+	/** Number of stations evicted to stay within the capacity */
+	private volatile long evictions;
+
+	/** Number of stations evicted to stay within the per-port limit */
+	private volatile long portEvictions;
+
+	/** Number of stations that could not be learned */
+	private volatile long failures;
+
+	/** Expiry timers for stations, keyed by VLAN ID and MAC address */
+	private TimerWheel wheel;
+
+	/** Time (in seconds since the table was created) the timers were last
+	 *  advanced */
+	private volatile int lastAdvanced;
+
+	/** Time (in milliseconds since the epoch) the table was created */
+	private long startTime;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
-	 * @param sw switch to which this table belongs
 	 */
 	public MACTable()
+	{ this(DEFAULT_CAPACITY, 0); }
+
+	/**
+	 * Initializes an empty MAC learning table for a switch.
+	 * @param capacity most stations the table holds
+	 * @param portLimit most stations on a single port; 0 for no limit
+	 */
+	public MACTable(int capacity, int portLimit)
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		// Leave a quarter of the slots free so probe sequences stay short
+		int minSlots = (int)Math.min((Math.max(capacity, 1) * 4L + 2) / 3,
+				1 << 30);
+		int slots = Integer.highestOneBit(Math.max(minSlots, 2) - 1) << 1;
+		this.keys = new AtomicLongArray(slots);
+		this.values = new AtomicLongArray(slots);
+		this.timers = new int[slots];
+		this.mask = slots - 1;
+		this.capacity = Math.max(capacity, 1);
+		this.portLimit = Math.max(portLimit, 0);
+		this.ports = new Iface[0];
+		this.portCounts = new int[0];
+		this.startTime = System.currentTimeMillis();
+		this.wheel = new TimerWheel(1000, TIMER_SLOTS, this.startTime);
 	}
-	
-	public void insert(MACAddress macAddress, Iface iface)
+
+	/**
+	 * @return current time (in seconds since the table was created)
+	 */
+	private int now()
+	{ return (int)((System.currentTimeMillis() - this.startTime) / 1000); }
+
+	/**
+	 * @return true if a MAC last seen at a time (in seconds since the table
+	 *         was created) has timed out
+	 */
+	private static boolean isStale(int lastSeen, int now)
+	{ return (long)(now - lastSeen) * 1000 > TIMEOUT; }
+
+	/**
+	 * @return time (in seconds since the table was created) a MAC last seen
+	 *         at a time (in seconds since the table was created) times out
+	 */
+	private static int staleAt(int lastSeen)
+	{ return lastSeen + 1 + TIMEOUT / 1000; }
+
+	private static long value(int port, int lastSeen)
+	{ return ((long)(port + 1) << 32) | (lastSeen & 0xffffffffL); }
+
+	private static int portOf(long value)
+	{ return (int)(value >>> 32) - 1; }
+
+	private static int lastSeenOf(long value)
+	{ return (int)value; }
+
+	private static long key(int vlan, long macAddress)
+	{ return LIVE | ((long)(vlan & 0xfff) << 48) | (macAddress & MAC_MASK); }
+
+	private static int hash(long key)
+	{
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	/**
+	 * @return slot containing the key, -1 if the key is not present
+	 */
+	private int find(long key)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+		int slot = hash(key) & this.mask;
+		for (int probes = 0; probes <= this.mask; probes++)
+		{
+			long current = this.keys.get(slot);
+			if (current == key)
+			{ return slot; }
+			if (current == EMPTY)
+			{ return -1; }
+			slot = (slot + 1) & this.mask;
 		}
+		return -1;
 	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
+
+	/**
+	 * Make sure a port has an entry in the ports array and the per-port
+	 * counts. Called with the table's lock held.
+	 */
+	private void register(Iface iface)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		int index = iface.getIndex();
+		if (index < this.ports.length && this.ports[index] == iface)
+		{ return; }
+		if (index >= this.portCounts.length)
+		{ this.portCounts = Arrays.copyOf(this.portCounts, index + 1); }
+		Iface[] ports = Arrays.copyOf(this.ports,
+				Math.max(this.ports.length, index + 1));
+		ports[index] = iface;
+		this.ports = ports;
+	}
+
+	/**
+	 * Add a key, unless it is already present, evicting a station if the
+	 * table or the port is full.
+	 * @return false if the station could not be added
+	 */
+	private synchronized boolean add(long key, Iface iface, int seen)
+	{
+		// A restored entry may have been added since the caller looked
+		if (this.find(key) >= 0)
+		{ return true; }
+
+		this.register(iface);
+		int port = iface.getIndex();
+		if (this.portLimit > 0 && this.portCounts[port] >= this.portLimit)
+		{
+			if (!this.evict(port))
+			{
+				this.failures++;
+				return false;
+			}
+			this.portEvictions++;
+		}
+		if (this.size >= this.capacity)
+		{
+			if (!this.evict(-1))
+			{
+				this.failures++;
+				return false;
+			}
+			this.evictions++;
+		}
+
+		int slot = hash(key) & this.mask;
+		for (int probes = 0; probes <= this.mask; probes++)
+		{
+			long current = this.keys.get(slot);
+			if (EMPTY == current)
+			{
+				// Publish the port and time before the key so readers that
+				// see the key also see them
+				this.values.set(slot, value(port, seen));
+				this.keys.set(slot, key);
+				this.size++;
+				this.learned++;
+				this.portCounts[port]++;
+				this.timers[slot] = staleAt(seen);
+				this.wheel.schedule(key, this.startTime
+						+ this.timers[slot] * 1000L);
+				return true;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.failures++;
+		return false;
+	}
+
+	/**
+	 * Remove the station in a slot, if the slot still holds the key, shifting
+	 * later stations in its probe sequence back so no tombstone is needed.
+	 * Called with the table's lock held.
+	 */
+	private void remove(int slot, long key)
+	{
+		if (this.keys.get(slot) != key)
+		{ return; }
+		this.portCounts[portOf(this.values.get(slot))]--;
+		this.size--;
+
+		int hole = slot;
+		int next = (slot + 1) & this.mask;
+		long current;
+		while ((current = this.keys.get(next)) != EMPTY)
+		{
+			// Move a station into the hole if the hole lies between its home
+			// slot and where it is now; the key is published last, so readers
+			// that see it also see its port and time
+			int home = hash(current) & this.mask;
+			if (((next - home) & this.mask) >= ((next - hole) & this.mask))
+			{
+				this.values.set(hole, this.values.get(next));
+				this.timers[hole] = this.timers[next];
+				this.keys.set(hole, current);
+				hole = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys.set(hole, EMPTY);
 	}
-	
+
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Evict the least recently seen of a random sample of stations. Called
+	 * with the table's lock held.
+	 * @param port index of the port to evict a station from; -1 for any port
+	 * @return false if no station was found to evict
 	 */
-	public void run()
+	private boolean evict(int port)
 	{
-		while (true)
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int victim = -1;
+		int oldest = Integer.MAX_VALUE;
+		int sampled = 0;
+		int slot = random.nextInt() & this.mask;
+		for (int probes = 0; probes < EVICTION_PROBES
+				&& sampled < EVICTION_SAMPLES; probes++)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
+			long value = this.values.get(slot);
+			if (this.keys.get(slot) != EMPTY
+					&& (port < 0 || portOf(value) == port))
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				if (lastSeenOf(value) < oldest)
+				{
+					victim = slot;
+					oldest = lastSeenOf(value);
+				}
+				sampled++;
+
+				// Sample from scattered places in the table when evicting
+				// from any port
+				if (port < 0)
+				{
+					slot = random.nextInt() & this.mask;
+					continue;
+				}
 			}
+			slot = (slot + 1) & this.mask;
 		}
+		if (victim < 0)
+		{ return false; }
+		this.remove(victim, this.keys.get(victim));
+		return true;
+	}
+
+	/**
+	 * Record that a station moved to a different port.
+	 */
+	private synchronized void move(int slot, long key, Iface iface, int seen)
+	{
+		if (this.keys.get(slot) != key)
+		{ return; }
+		this.register(iface);
+		int port = iface.getIndex();
+		this.portCounts[portOf(this.values.get(slot))]--;
+		this.portCounts[port]++;
+		this.values.set(slot, value(port, seen));
+	}
+
+	/**
+	 * Learn, or refresh, the interface a MAC address is reached on. Only
+	 * called by the thread that processes packets.
+	 * @param vlan VLAN the MAC address was seen in
+	 * @param macAddress MAC address, in the lower 48 bits
+	 * @param iface interface the MAC address was seen on
+	 */
+	public void insert(int vlan, long macAddress, Iface iface)
+	{
+		long key = key(vlan, macAddress);
+		int now = this.now();
+		if (now != this.lastAdvanced)
+		{ this.advance(now); }
+
+		int slot = this.find(key);
+		if (slot < 0)
+		{
+			this.add(key, iface, now);
+			return;
+		}
+		long value = this.values.get(slot);
+		if (portOf(value) != iface.getIndex())
+		{ this.move(slot, key, iface, now); }
+		else if (lastSeenOf(value) != now)
+		{ this.values.lazySet(slot, value(iface.getIndex(), now)); }
+	}
+
+	/**
+	 * @param vlan VLAN to look in
+	 * @param macAddress MAC address, in the lower 48 bits
+	 * @return interface out which packets should be sent to reach the MAC
+	 *         address, null if the MAC address has not been learned in the
+	 *         VLAN
+	 */
+	public Iface lookup(int vlan, long macAddress)
+	{
+		int slot = this.find(key(vlan, macAddress));
+		if (slot < 0)
+		{ return null; }
+		long value = this.values.get(slot);
+		if (isStale(lastSeenOf(value), this.now()))
+		{ return null; }
+		return this.ports[portOf(value)];
+	}
+
+	/**
+	 * Restore an entry that was learned earlier, unless the MAC address has
+	 * been learned since.
+	 * @param vlan VLAN the MAC address was learned in
+	 * @param macAddress MAC address, in the lower 48 bits
+	 * @param iface interface the MAC address was learned on
+	 * @param timeUpdated time (in milliseconds since the epoch) the entry was
+	 *        last updated
+	 */
+	public void restore(int vlan, long macAddress, Iface iface,
+			long timeUpdated)
+	{
+		this.add(key(vlan, macAddress), iface,
+				(int)Math.floorDiv(timeUpdated - this.startTime, 1000L));
+	}
+
+	/**
+	 * Forget every station, so each is relearned on the port it is now
+	 * reached through. Timers for the stations are left to fire and be
+	 * ignored.
+	 */
+	public synchronized void flush()
+	{
+		// Every slot is emptied, so no probe sequence is left broken
+		for (int slot = 0; slot <= this.mask; slot++)
+		{ this.keys.set(slot, EMPTY); }
+		Arrays.fill(this.portCounts, 0);
+		this.size = 0;
+	}
+
+	/**
+	 * @return a snapshot of all entries in the MAC table
+	 */
+	public Collection<MACTableEntry> getEntries()
+	{
+		List<MACTableEntry> entries = new ArrayList<MACTableEntry>();
+		Iface[] ports = this.ports;
+		int now = this.now();
+		for (int slot = 0; slot <= this.mask; slot++)
+		{
+			long key = this.keys.get(slot);
+			long value = this.values.get(slot);
+			if (EMPTY == key || isStale(lastSeenOf(value), now))
+			{ continue; }
+			entries.add(new MACTableEntry((int)((key >>> 48) & 0xfff),
+					key & MAC_MASK, ports[portOf(value)],
+					this.startTime + lastSeenOf(value) * 1000L));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return number of stations in the table
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return most stations the table holds
+	 */
+	public int capacity()
+	{ return this.capacity; }
+
+	/**
+	 * @return most stations on a single port; 0 for no limit
+	 */
+	public int getPortLimit()
+	{ return this.portLimit; }
+
+	/**
+	 * @param iface a port on the switch
+	 * @return number of stations on the port
+	 */
+	public synchronized int size(Iface iface)
+	{
+		int index = iface.getIndex();
+		return (index < this.portCounts.length ? this.portCounts[index] : 0);
+	}
+
+	/**
+	 * @return number of stations learned
+	 */
+	public long getLearned()
+	{ return this.learned; }
+
+	/**
+	 * @return number of stations evicted to stay within the capacity
+	 */
+	public long getEvictions()
+	{ return this.evictions; }
+
+	/**
+	 * @return number of stations evicted to stay within the per-port limit
+	 */
+	public long getPortEvictions()
+	{ return this.portEvictions; }
+
+	/**
+	 * @return number of stations that could not be learned
+	 */
+	public long getFailures()
+	{ return this.failures; }
+
+	/**
+	 * Retire stations whose timer fired and that were not seen since it was
+	 * scheduled; reschedule the others for when they could next go stale.
+	 * @param now current time (in seconds since the table was created)
+	 */
+	private synchronized void advance(final int now)
+	{
+		if (now == this.lastAdvanced)
+		{ return; }
+		this.lastAdvanced = now;
+
+		this.wheel.advance(System.currentTimeMillis(), new TimerWheel.Handler() {
+			public void expired(long key, long deadline)
+			{
+				// Ignore timers for retired stations and superseded timers
+				int slot = find(key);
+				if (slot < 0 || startTime + timers[slot] * 1000L != deadline)
+				{ return; }
+
+				int staleAt = staleAt(lastSeenOf(values.get(slot)));
+				if (staleAt > now)
+				{
+					timers[slot] = staleAt;
+					wheel.schedule(key, startTime + staleAt * 1000L);
+				}
+				else
+				{ remove(slot, key); }
+			}
+		});
 	}
 }
@@ -4,45 +4,59 @@ import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * An entry in a MAC learning table.
+ * A snapshot of an entry in a MAC learning table.
  * @author Aaron Gember-Jacobson
  */
-public class MACTableEntry 
+public class MACTableEntry
 {
-	/** MAC address */
-	private MACAddress macAddress;
+	/** VLAN the MAC address was learned in */
+	private int vlan;
+
+	/** MAC address, in the lower 48 bits */
+	private long macAddress;
 
 	/** Switch interface out which packets should be sent to reach the MAC */
 	private Iface iface;
-	
+
 	/** Time (in milliseconds since the epoch) the entry was updated */
 	private long timeUpdated;
-	
+
 	/**
-	 * Create a new MAC table entry.
-	 * @param macAddress MAC addresses
-	 * @param ifaceName name of the switch interface out which packets should 
-	 *        be sent to reach the MAC address
+	 * Create a MAC table entry that was last updated at a specific time.
+	 * @param vlan VLAN the MAC address was learned in
+	 * @param macAddress MAC address, in the lower 48 bits
+	 * @param iface switch interface out which packets should be sent to reach
+	 *        the MAC address
+	 * @param timeUpdated time (in milliseconds since the epoch) the entry was
+	 *        last updated
 	 */
-	public MACTableEntry(MACAddress macAddress, Iface iface)
+	public MACTableEntry(int vlan, long macAddress, Iface iface,
+			long timeUpdated)
 	{
+		this.vlan = vlan;
 		this.macAddress = macAddress;
 		this.iface = iface;
-		this.timeUpdated = System.currentTimeMillis();
+		this.timeUpdated = timeUpdated;
 	}
-	
-	public void update(Iface iface)
-	{
-		this.iface = iface;
-		this.timeUpdated = System.currentTimeMillis();
-	}
-	
-	public MACAddress getMACAddress() 
+
+	/**
+	 * @return VLAN the MAC address was learned in
+	 */
+	public int getVlan()
+	{ return this.vlan; }
+
+	public MACAddress getMACAddress()
+	{ return MACAddress.valueOf(this.macAddress); }
+
+	/**
+	 * @return MAC address, in the lower 48 bits
+	 */
+	public long getMACAddressLong()
 	{ return this.macAddress; }
 
 	public Iface getInterface()
 	{ return this.iface; }
-	
+
 	/**
 	 * @return time (in milliseconds since the epoch) the entry was updated
 	 */
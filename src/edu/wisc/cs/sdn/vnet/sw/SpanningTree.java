@@ -0,0 +1,634 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.BPDU;
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Rapid spanning tree (a subset of RSTP, IEEE 802.1D-2004 clause 17), which
+ * blocks redundant links between switches so flooded frames cannot loop.
+ * <p>
+ * Switches exchange BPDUs carrying their view of the tree: the root bridge,
+ * the cost to reach it, and the sending bridge and port. Each switch picks
+ * the port with the best path to the root as its root port, makes itself
+ * the designated bridge for every segment where it offers the best path,
+ * and blocks the remaining (alternate) ports. Ports only forward frames in
+ * the forwarding state.
+ * <p>
+ * Transitions are fast, as in RSTP. A root port forwards immediately. A
+ * designated port proposes to forward, and the switch on the other end of
+ * the link agrees once it has blocked its own designated ports (which then
+ * propose in turn), so a new tree forwards within a few round trips rather
+ * than after two forward delays. Ports that have not received a BPDU within
+ * a few seconds are edge ports leading to hosts, and forward without a
+ * handshake. The forward delay is only a fallback for neighbors that never
+ * agree. Info from a neighbor expires after three missed hellos, rather than
+ * STP's 20 seconds.
+ * <p>
+ * When a non-edge port starts forwarding, or a neighbor reports a topology
+ * change, the MAC table is flushed so stations are relearned along the new
+ * tree. Only RST BPDUs are sent; legacy STP topology change notifications
+ * are honored but legacy configuration BPDUs are treated like RST BPDUs.
+ * <p>
+ * All state is guarded by the object's lock; the packet thread hands
+ * received BPDUs over and reads port states without locking, and a
+ * periodic task on the switch's control-plane thread runs the timers.
+ * @author Aaron Gember-Jacobson
+ */
+public class SpanningTree
+{
+	/** Bridge priority, in the upper 16 bits of the bridge ID */
+	public static final int PRIORITY = 0x8000;
+
+	/** Cost of a link */
+	public static final int PATH_COST = 20000;
+
+	/** Time (in milliseconds) between BPDUs on designated ports */
+	public static final int HELLO_TIME = 2000;
+
+	/** Time (in milliseconds) a neighbor's info is kept without a BPDU */
+	public static final int MAX_AGE = 3 * HELLO_TIME;
+
+	/** Time (in milliseconds) a designated port that gets no agreement
+	 *  spends in each of the discarding and learning states */
+	public static final int FORWARD_DELAY = 15000;
+
+	/** Time (in milliseconds) without a BPDU before a port is an edge port */
+	public static final int EDGE_DELAY = 3000;
+
+	/** Time (in milliseconds) topology changes are reported in BPDUs */
+	private static final int TC_TIME = 2 * HELLO_TIME;
+
+	/** Time (in milliseconds) between timer checks */
+	private static final int TICK = 250;
+
+	/** Port states */
+	public static final byte DISCARDING = 0;
+	public static final byte LEARNING = 1;
+	public static final byte FORWARDING = 2;
+
+	/**
+	 * Spanning tree state of a switch port.
+	 */
+	private static class Port
+	{
+		Iface iface;
+
+		/** Port ID: priority in the upper 4 bits, port number in the rest */
+		short id;
+
+		byte role;
+		byte state;
+
+		/** Best info received on the port, if any */
+		boolean hasInfo;
+		long infoRoot;
+		int infoCost;
+		long infoBridge;
+		short infoPort;
+
+		/** Time (in milliseconds since the epoch) the info expires */
+		long infoExpires;
+
+		/** Whether the port leads to hosts rather than switches */
+		boolean edge;
+
+		/** Whether a BPDU was ever received on the port */
+		boolean bpduSeen;
+
+		/** Time (in milliseconds since the epoch) the port becomes an edge
+		 *  port if no BPDU was received */
+		long edgeAt;
+
+		/** Whether the designated port is proposing to forward */
+		boolean proposing;
+
+		/** Time (in milliseconds since the epoch) the designated port moves
+		 *  to the next state without an agreement */
+		long stateAt;
+
+		/** Time (in milliseconds since the epoch) until which topology
+		 *  changes are reported on the port */
+		long tcUntil;
+	}
+
+	/** Switch running the spanning tree */
+	private Switch sw;
+
+	/** Table to flush when the topology changes */
+	private MACTable macTable;
+
+	/** Ports, by index */
+	private Port[] ports;
+
+	/** State of each port, by index; replaced on every change */
+	private volatile byte[] states;
+
+	/** ID of this bridge: priority and lowest port MAC address */
+	private long bridgeId;
+
+	/** ID of the root bridge */
+	private long rootId;
+
+	/** Cost to reach the root bridge */
+	private int rootCost;
+
+	/** Port towards the root bridge; null if this bridge is the root */
+	private Port rootPort;
+
+	/** Time (in milliseconds since the epoch) of the last hello */
+	private long lastHello;
+
+	/** Time (in milliseconds since the epoch) of the last topology change */
+	private long lastChange;
+
+	/** Number of topology changes detected or reported */
+	private volatile long topologyChanges;
+
+	/**
+	 * Create a spanning tree for a switch, with every port discarding until
+	 * the tree converges.
+	 * @param sw switch running the spanning tree
+	 * @param macTable table to flush when the topology changes
+	 */
+	public SpanningTree(Switch sw, MACTable macTable)
+	{
+		this.sw = sw;
+		this.macTable = macTable;
+		long now = System.currentTimeMillis();
+
+		int count = 0;
+		long lowestMac = -1;
+		for (Iface iface : sw.getInterfaces().values())
+		{
+			count = Math.max(count, iface.getIndex() + 1);
+			if (iface.getMacAddress() != null)
+			{
+				long mac = iface.getMacAddress().toLong();
+				if (lowestMac < 0 || mac < lowestMac)
+				{ lowestMac = mac; }
+			}
+		}
+		if (lowestMac < 0)
+		{ lowestMac = sw.getHost().hashCode() & 0xffffffffL; }
+		this.bridgeId = ((long)PRIORITY << 48) | lowestMac;
+		this.rootId = this.bridgeId;
+		this.rootCost = 0;
+
+		this.ports = new Port[count];
+		this.states = new byte[count];
+		for (Iface iface : sw.getInterfaces().values())
+		{
+			// A port channel is a single link in the tree
+			if (sw.getPort(iface) != iface)
+			{ continue; }
+			Port port = new Port();
+			port.iface = iface;
+			port.id = (short)(0x8000 | ((iface.getIndex() + 1) & 0xfff));
+			port.role = BPDU.ROLE_DESIGNATED;
+			port.state = DISCARDING;
+			port.edgeAt = now + EDGE_DELAY;
+			port.proposing = true;
+			port.stateAt = now + FORWARD_DELAY;
+			this.ports[iface.getIndex()] = port;
+		}
+	}
+
+	/**
+	 * Start sending BPDUs and running timers.
+	 * @param executor control-plane thread to run on
+	 */
+	public void start(ScheduledExecutorService executor)
+	{
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run()
+			{
+				// An exception would silently cancel the periodic task
+				try
+				{ tick(); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}, 0, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @return true if frames may be received and sent on the port
+	 */
+	public boolean isForwarding(Iface iface)
+	{
+		byte[] states = this.states;
+		int index = iface.getIndex();
+		return (index >= states.length || FORWARDING == states[index]);
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @return true if source addresses of frames received on the port may be
+	 *         learned
+	 */
+	public boolean isLearning(Iface iface)
+	{
+		byte[] states = this.states;
+		int index = iface.getIndex();
+		return (index >= states.length || states[index] != DISCARDING);
+	}
+
+	/**
+	 * @return ID of the root bridge
+	 */
+	public synchronized long getRootId()
+	{ return this.rootId; }
+
+	/**
+	 * @return ID of this bridge
+	 */
+	public long getBridgeId()
+	{ return this.bridgeId; }
+
+	/**
+	 * @return number of topology changes detected or reported
+	 */
+	public long getTopologyChanges()
+	{ return this.topologyChanges; }
+
+	/**
+	 * Compare two priority vectors; lower is better.
+	 */
+	private static int compare(long root1, int cost1, long bridge1,
+			short port1, long root2, int cost2, long bridge2, short port2)
+	{
+		if (root1 != root2)
+		{ return Long.compareUnsigned(root1, root2); }
+		if (cost1 != cost2)
+		{ return Integer.compareUnsigned(cost1, cost2); }
+		if (bridge1 != bridge2)
+		{ return Long.compareUnsigned(bridge1, bridge2); }
+		return Integer.compare(port1 & 0xffff, port2 & 0xffff);
+	}
+
+	/**
+	 * @return true if the info received on a port is better than what this
+	 *         bridge would send on it
+	 */
+	private boolean isSuperior(Port port)
+	{
+		return port.hasInfo && compare(port.infoRoot, port.infoCost,
+				port.infoBridge, port.infoPort, this.rootId, this.rootCost,
+				this.bridgeId, port.id) < 0;
+	}
+
+	/**
+	 * Process a BPDU received on a port; called on the packet thread.
+	 * @param bpdu the BPDU
+	 * @param inIface port the BPDU was received on
+	 */
+	public synchronized void receive(BPDU bpdu, Iface inIface)
+	{
+		int index = inIface.getIndex();
+		if (bpdu.getVersion() < 0 || index >= this.ports.length
+				|| null == this.ports[index])
+		{ return; }
+		Port port = this.ports[index];
+		long now = System.currentTimeMillis();
+
+		port.bpduSeen = true;
+		if (port.edge)
+		{
+			// A switch appeared on what looked like a host port
+			port.edge = false;
+			this.setState(port, DISCARDING, now);
+			port.proposing = true;
+			port.stateAt = now + FORWARD_DELAY;
+		}
+
+		// Changes reported through blocked ports would come back around the
+		// loop the port is blocking
+		if ((BPDU.TYPE_TCN == bpdu.getType()
+				|| bpdu.hasFlags(BPDU.FLAG_TOPOLOGY_CHANGE))
+				&& FORWARDING == port.state)
+		{ this.topologyChange(port, now); }
+		if (BPDU.TYPE_TCN == bpdu.getType())
+		{ return; }
+
+		boolean fromDesignated = (BPDU.TYPE_CONFIG == bpdu.getType()
+				|| BPDU.ROLE_DESIGNATED == bpdu.getRole());
+		boolean sameSender = (port.hasInfo
+				&& bpdu.getBridgeId() == port.infoBridge
+				&& bpdu.getPortId() == port.infoPort);
+		boolean superior = compare(bpdu.getRootId(), bpdu.getRootPathCost(),
+				bpdu.getBridgeId(), bpdu.getPortId(), this.rootId,
+				this.rootCost, this.bridgeId, port.id) < 0;
+
+		if (fromDesignated && (superior || sameSender))
+		{
+			// Keep the neighbor's info, and agree to its proposal once this
+			// bridge's own designated ports are blocked
+			port.hasInfo = true;
+			port.infoRoot = bpdu.getRootId();
+			port.infoCost = bpdu.getRootPathCost();
+			port.infoBridge = bpdu.getBridgeId();
+			port.infoPort = bpdu.getPortId();
+			port.infoExpires = now + MAX_AGE;
+			this.recompute(now);
+			if (bpdu.hasFlags(BPDU.FLAG_PROPOSAL)
+					&& port.role != BPDU.ROLE_DESIGNATED)
+			{ this.send(port, true, now); }
+		}
+		else if (BPDU.ROLE_DESIGNATED == port.role
+				&& bpdu.hasFlags(BPDU.FLAG_AGREEMENT)
+				&& bpdu.getRootId() == this.rootId)
+		{
+			// The neighbor blocked its own designated ports, so this port
+			// can forward without creating a loop
+			port.proposing = false;
+			if (port.state != FORWARDING)
+			{ this.setState(port, FORWARDING, now); }
+		}
+		else if (fromDesignated && BPDU.ROLE_DESIGNATED == port.role)
+		{
+			// Tell a neighbor with worse info about the better path
+			this.send(port, false, now);
+		}
+	}
+
+	/**
+	 * Choose the root port and every port's role from the info received,
+	 * and move ports whose role changed to the matching state.
+	 */
+	private void recompute(long now)
+	{
+		long oldRootId = this.rootId;
+		int oldRootCost = this.rootCost;
+		Port oldRootPort = this.rootPort;
+
+		// The root port offers the best path to a root better than this
+		// bridge; BPDUs this bridge sent that came back are ignored
+		Port best = null;
+		for (Port port : this.ports)
+		{
+			if (null == port || !port.hasInfo
+					|| port.infoBridge == this.bridgeId)
+			{ continue; }
+			if (null == best || compare(port.infoRoot,
+					port.infoCost + PATH_COST, port.infoBridge,
+					port.infoPort, best.infoRoot, best.infoCost + PATH_COST,
+					best.infoBridge, best.infoPort) < 0
+					|| (port.infoRoot == best.infoRoot
+						&& port.infoCost == best.infoCost
+						&& port.infoBridge == best.infoBridge
+						&& port.infoPort == best.infoPort
+						&& (port.id & 0xffff) < (best.id & 0xffff)))
+			{ best = port; }
+		}
+		if (best != null && compare(best.infoRoot, best.infoCost + PATH_COST,
+				best.infoBridge, best.infoPort, this.bridgeId, 0,
+				this.bridgeId, (short)0) < 0)
+		{
+			this.rootPort = best;
+			this.rootId = best.infoRoot;
+			this.rootCost = best.infoCost + PATH_COST;
+		}
+		else
+		{
+			this.rootPort = null;
+			this.rootId = this.bridgeId;
+			this.rootCost = 0;
+		}
+		boolean changed = (this.rootPort != oldRootPort
+				|| this.rootId != oldRootId || this.rootCost != oldRootCost);
+
+		// A new path to the root may create a loop through the designated
+		// ports, so block them until their neighbors agree
+		if (changed)
+		{ this.sync(now); }
+
+		for (Port port : this.ports)
+		{
+			if (null == port)
+			{ continue; }
+			byte role;
+			if (port == this.rootPort)
+			{ role = BPDU.ROLE_ROOT; }
+			else if (this.isSuperior(port))
+			{ role = BPDU.ROLE_ALTERNATE; }
+			else
+			{ role = BPDU.ROLE_DESIGNATED; }
+			this.setRole(port, role, now);
+		}
+
+		// Tell neighbors about the new path
+		if (changed)
+		{
+			System.out.println(String.format("Spanning tree root %016x, cost %d"
+					+ ", root port %s", this.rootId, this.rootCost,
+					(null == this.rootPort ? "none"
+						: this.rootPort.iface.getName())));
+			for (Port port : this.ports)
+			{
+				if (port != null && BPDU.ROLE_DESIGNATED == port.role)
+				{ this.send(port, false, now); }
+			}
+		}
+	}
+
+	/**
+	 * Block every designated port that does not lead to hosts, and have it
+	 * propose to forward again.
+	 */
+	private void sync(long now)
+	{
+		for (Port port : this.ports)
+		{
+			if (null == port || port.edge
+					|| port.role != BPDU.ROLE_DESIGNATED)
+			{ continue; }
+			this.setState(port, DISCARDING, now);
+			port.proposing = true;
+			port.stateAt = now + FORWARD_DELAY;
+		}
+	}
+
+	private void setRole(Port port, byte role, long now)
+	{
+		if (port.role == role)
+		{ return; }
+		port.role = role;
+		switch (role)
+		{
+		case BPDU.ROLE_ROOT:
+			port.proposing = false;
+			this.setState(port, FORWARDING, now);
+			break;
+		case BPDU.ROLE_ALTERNATE:
+			port.proposing = false;
+			this.setState(port, DISCARDING, now);
+			break;
+		default:
+			if (port.edge)
+			{ this.setState(port, FORWARDING, now); }
+			else
+			{
+				this.setState(port, DISCARDING, now);
+				port.proposing = true;
+				port.stateAt = now + FORWARD_DELAY;
+			}
+			break;
+		}
+	}
+
+	private void setState(Port port, byte state, long now)
+	{
+		if (port.state == state)
+		{ return; }
+		port.state = state;
+		byte[] states = this.states.clone();
+		states[port.iface.getIndex()] = state;
+		this.states = states;
+
+		if (FORWARDING == state)
+		{
+			port.proposing = false;
+			if (!port.edge)
+			{ this.topologyChange(null, now); }
+		}
+	}
+
+	/**
+	 * Flush the MAC table, since stations may now be reached through
+	 * different ports, and report the change on every other port that
+	 * leads to switches.
+	 * @param from port the change was reported on; null if it was detected
+	 *        by this bridge
+	 */
+	private void topologyChange(Port from, long now)
+	{
+		// A neighbor reports a change in every BPDU for a while; only the
+		// first report of the change needs handling
+		if (from != null && now - this.lastChange < TC_TIME)
+		{ return; }
+		this.lastChange = now;
+		this.macTable.flush();
+		this.topologyChanges++;
+		for (Port port : this.ports)
+		{
+			if (port != null && port != from && !port.edge)
+			{ port.tcUntil = now + TC_TIME; }
+		}
+	}
+
+	/**
+	 * Every tick: expire neighbors' info, detect edge ports, move
+	 * designated ports that got no agreement through the forward delay, and
+	 * send hellos.
+	 */
+	private synchronized void tick()
+	{
+		long now = System.currentTimeMillis();
+		boolean expired = false;
+		for (Port port : this.ports)
+		{
+			if (port != null && port.hasInfo && now >= port.infoExpires)
+			{
+				port.hasInfo = false;
+				expired = true;
+			}
+		}
+		if (expired)
+		{ this.recompute(now); }
+
+		for (Port port : this.ports)
+		{
+			if (null == port || port.role != BPDU.ROLE_DESIGNATED
+					|| FORWARDING == port.state)
+			{ continue; }
+			if (!port.bpduSeen && now >= port.edgeAt)
+			{
+				port.edge = true;
+				this.setState(port, FORWARDING, now);
+			}
+			else if (now >= port.stateAt)
+			{
+				port.stateAt = now + FORWARD_DELAY;
+				this.setState(port, (byte)(port.state + 1), now);
+			}
+		}
+
+		if (now - this.lastHello >= HELLO_TIME)
+		{
+			this.lastHello = now;
+			for (Port port : this.ports)
+			{
+				if (null == port)
+				{ continue; }
+				if (BPDU.ROLE_DESIGNATED == port.role
+						|| (port.role != BPDU.ROLE_ALTERNATE
+							&& now < port.tcUntil))
+				{ this.send(port, false, now); }
+			}
+		}
+	}
+
+	/**
+	 * Send a BPDU with this bridge's view of the tree on a port.
+	 * @param agreement whether to agree to the neighbor's proposal
+	 */
+	private void send(Port port, boolean agreement, long now)
+	{
+		BPDU bpdu = new BPDU();
+		byte flags = 0;
+		if (port.proposing && BPDU.ROLE_DESIGNATED == port.role
+				&& port.state != FORWARDING)
+		{ flags |= BPDU.FLAG_PROPOSAL; }
+		if (port.state != DISCARDING)
+		{ flags |= BPDU.FLAG_LEARNING; }
+		if (FORWARDING == port.state)
+		{ flags |= BPDU.FLAG_FORWARDING; }
+		if (agreement)
+		{ flags |= BPDU.FLAG_AGREEMENT; }
+		if (now < port.tcUntil)
+		{ flags |= BPDU.FLAG_TOPOLOGY_CHANGE; }
+		bpdu.setFlags(flags);
+		bpdu.setRole(port.role);
+		bpdu.setRootId(this.rootId);
+		bpdu.setRootPathCost(this.rootCost);
+		bpdu.setBridgeId(this.bridgeId);
+		bpdu.setPortId(port.id);
+		bpdu.setMaxAge((short)(MAX_AGE * 256 / 1000));
+		bpdu.setHelloTime((short)(HELLO_TIME * 256 / 1000));
+		bpdu.setForwardDelay((short)(FORWARD_DELAY * 256 / 1000));
+
+		Ethernet ether = new Ethernet();
+		ether.setDestinationMACAddress(BPDU.GROUP_ADDRESS.toBytes());
+		ether.setSourceMACAddress(null == port.iface.getMacAddress()
+				? new byte[6] : port.iface.getMacAddress().toBytes());
+		ether.setEtherType((short)BPDU.RST_LENGTH);
+		ether.setPad(true);
+		ether.setPayload(bpdu);
+
+		byte[] frame = ether.serialize();
+		this.sw.sendFrame(frame, frame.length, port.iface);
+	}
+
+	public synchronized String toString()
+	{
+		String[] roles = { "Disabled", "Alternate", "Root", "Designated" };
+		String[] states = { "Discarding", "Learning", "Forwarding" };
+		String result = String.format("Bridge %016x, root %016x, cost %d\n",
+				this.bridgeId, this.rootId, this.rootCost);
+		result += "Port\tRole\tState\tEdge\n";
+		for (Port port : this.ports)
+		{
+			if (null == port)
+			{ continue; }
+			result += String.format("%s\t%s\t%s\t%s\n", port.iface.getName(),
+					roles[port.role], states[port.state], port.edge);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,146 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Arrays;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Storm control: limits the rate of broadcast, multicast, and unknown
+ * unicast frames accepted on each port, so a single misbehaving host cannot
+ * make the switch spend all its time replicating frames to every port.
+ * <p>
+ * Each port has a token bucket per traffic type, refilled at the type's
+ * rate and holding up to one second of traffic. A frame that finds its
+ * bucket empty is suppressed. Buckets are kept in flat arrays indexed by
+ * port and type, with tokens in billionths so a bucket is refilled from
+ * the elapsed nanoseconds without rounding, and checking a frame allocates
+ * nothing. Buckets are only used by the thread that processes packets.
+ * @author Aaron Gember-Jacobson
+ */
+public class StormControl
+{
+	/** Traffic types */
+	public static final int BROADCAST = 0;
+	public static final int MULTICAST = 1;
+	public static final int UNKNOWN_UNICAST = 2;
+
+	/** Name used for each traffic type in exported metrics */
+	public static final String[] LABELS = { "broadcast", "multicast",
+			"unknown_unicast" };
+
+	private static final int TYPES = 3;
+
+	/** Tokens a frame costs */
+	private static final long FRAME = 1000000000L;
+
+	/** Frames per second accepted on each port, by type; 0 for no limit */
+	private int[] rates;
+
+	/** Tokens in each bucket, by port index times TYPES plus type */
+	private long[] tokens;
+
+	/** Time (in nanoseconds) each bucket was last refilled */
+	private long[] refilled;
+
+	/** Frames suppressed in each bucket */
+	private long[] suppressed;
+
+	/**
+	 * Create storm control with the same limits on every port.
+	 * @param broadcast broadcast frames per second accepted on a port; 0 for
+	 *        no limit
+	 * @param multicast multicast frames per second accepted on a port; 0 for
+	 *        no limit
+	 * @param unknownUnicast frames per second to unlearned unicast
+	 *        addresses accepted on a port; 0 for no limit
+	 */
+	public StormControl(int broadcast, int multicast, int unknownUnicast)
+	{
+		this.rates = new int[] { Math.max(broadcast, 0),
+				Math.max(multicast, 0), Math.max(unknownUnicast, 0) };
+		this.tokens = new long[0];
+		this.refilled = new long[0];
+		this.suppressed = new long[0];
+	}
+
+	/**
+	 * @param type a traffic type
+	 * @return frames per second of the type accepted on a port; 0 for no
+	 *         limit
+	 */
+	public int getRate(int type)
+	{ return this.rates[type]; }
+
+	/**
+	 * Make sure a port has buckets, starting full.
+	 */
+	private void ensure(int index, long now)
+	{
+		int oldLength = this.tokens.length;
+		int length = (index + 1) * TYPES;
+		this.tokens = Arrays.copyOf(this.tokens, length);
+		this.refilled = Arrays.copyOf(this.refilled, length);
+		this.suppressed = Arrays.copyOf(this.suppressed, length);
+		for (int bucket = oldLength; bucket < length; bucket++)
+		{
+			this.tokens[bucket] = this.rates[bucket % TYPES] * FRAME;
+			this.refilled[bucket] = now;
+		}
+	}
+
+	/**
+	 * Take a token for a frame received on a port.
+	 * @param iface port the frame was received on
+	 * @param type the frame's traffic type
+	 * @return true if the frame is accepted, false if it is suppressed
+	 */
+	public boolean admit(Iface iface, int type)
+	{
+		int rate = this.rates[type];
+		if (0 == rate)
+		{ return true; }
+		long now = System.nanoTime();
+		int bucket = iface.getIndex() * TYPES + type;
+		if (bucket >= this.tokens.length)
+		{ this.ensure(iface.getIndex(), now); }
+
+		// A bucket idle for a second is full; checking first keeps the
+		// refill from overflowing
+		long burst = rate * FRAME;
+		long elapsed = now - this.refilled[bucket];
+		this.refilled[bucket] = now;
+		long tokens = (elapsed >= FRAME ? burst
+				: Math.min(burst, this.tokens[bucket] + elapsed * rate));
+		if (tokens < FRAME)
+		{
+			this.tokens[bucket] = tokens;
+			this.suppressed[bucket]++;
+			return false;
+		}
+		this.tokens[bucket] = tokens - FRAME;
+		return true;
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @param type a traffic type
+	 * @return number of frames of the type suppressed on the port
+	 */
+	public long getSuppressed(Iface iface, int type)
+	{
+		long[] suppressed = this.suppressed;
+		int bucket = iface.getIndex() * TYPES + type;
+		return (bucket < suppressed.length ? suppressed[bucket] : 0);
+	}
+
+	public String toString()
+	{
+		String result = "";
+		for (int type = 0; type < TYPES; type++)
+		{
+			result += LABELS[type] + "\t" + (0 == this.rates[type] ? "none"
+					: this.rates[type] + " frames/s") + "\n";
+		}
+		return result;
+	}
+}
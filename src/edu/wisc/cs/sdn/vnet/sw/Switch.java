@@ -1,9 +1,21 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import net.floodlightcontroller.packet.BPDU;
+import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IGMP;
+import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.stats.DropReason;
+import edu.wisc.cs.sdn.vnet.stats.MetricsServer;
+import edu.wisc.cs.sdn.vnet.stats.Outcome;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -11,15 +23,441 @@ import edu.wisc.cs.sdn.vnet.Iface;
 public class Switch extends Device
 {
 	private MACTable macTable;
+
+	/** VLAN membership of the ports; null if VLANs are not configured */
+	private VlanTable vlans;
+
+	/** Multicast group listeners and router ports, learned from IGMP */
+	private IgmpSnooping igmp;
+
+	/** Whether only the Ethernet header of received frames is decoded */
+	private boolean headerOnly;
+
+	/** Groups of ports that act as one logical port; null if there are
+	 *  none */
+	private LinkAggregation lag;
+
+	/** Rate limits on flooded traffic per port; null if there are none */
+	private StormControl storm;
+
+	/** Spanning tree run with neighboring switches; null if the spanning
+	 *  tree is not running */
+	private SpanningTree stp;
+
+	/** Ports a frame is flooded out of untagged, and tagged; reused for
+	 *  every flooded frame */
+	private Iface[] floodPorts;
+	private Iface[] taggedPorts;
 	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
 	 */
 	public Switch(String host, DumpFile logfile)
+	{ this(host, logfile, MACTable.DEFAULT_CAPACITY, 0); }
+
+	/**
+	 * Creates a switch for a specific host with a bounded MAC table.
+	 * @param host hostname for the switch
+	 * @param macCapacity most stations the MAC table holds
+	 * @param macPortLimit most stations learned on a single port; 0 for no
+	 *        limit
+	 */
+	public Switch(String host, DumpFile logfile, int macCapacity,
+			int macPortLimit)
 	{
 		super(host,logfile);
-		this.macTable = new MACTable();
+		this.macTable = new MACTable(macCapacity, macPortLimit);
+		this.igmp = new IgmpSnooping(IgmpSnooping.DEFAULT_CAPACITY);
+		this.floodPorts = new Iface[0];
+		this.taggedPorts = new Iface[0];
+	}
+
+	/**
+	 * Load the VLAN membership of the switch's ports from a file.
+	 * @param vlanFile name of the file containing the port configuration
+	 */
+	public void loadVlans(String vlanFile)
+	{
+		VlanTable vlans = new VlanTable();
+		if (!vlans.load(vlanFile, this))
+		{
+			System.err.println("Error setting up VLANs from file " + vlanFile);
+			System.exit(1);
+		}
+		this.vlans = vlans;
+
+		System.out.println("Loaded VLANs");
+		System.out.println("----------------------------------");
+		System.out.print(this.vlans.toString());
+		System.out.println("----------------------------------");
+	}
+
+	/**
+	 * Decode only the Ethernet header of received frames, and send their
+	 * payload back out as the raw bytes it arrived as, so the cost of
+	 * switching a frame does not depend on what it carries. Only BPDUs,
+	 * and IGMP messages for snooping, are still decoded.
+	 * @param headerOnly whether to decode only Ethernet headers
+	 */
+	public void setHeaderOnly(boolean headerOnly)
+	{ this.headerOnly = headerOnly; }
+
+	@Override
+	public boolean isHeaderOnly()
+	{ return this.headerOnly; }
+
+	/**
+	 * Load groups of ports that act as one logical port from a file.
+	 * @param lagFile name of the file containing the port channels
+	 */
+	public void loadLinkAggregation(String lagFile)
+	{
+		LinkAggregation lag = new LinkAggregation();
+		if (!lag.load(lagFile, this))
+		{
+			System.err.println("Error setting up link aggregation from file "
+					+ lagFile);
+			System.exit(1);
+		}
+		this.lag = lag;
+
+		System.out.println("Loaded link aggregation");
+		System.out.println("----------------------------------");
+		System.out.print(this.lag.toString());
+		System.out.println("----------------------------------");
+	}
+
+	/**
+	 * @param iface a port on the switch
+	 * @return logical port the port belongs to: the port representing its
+	 *         port channel, or the port itself if it is not in a channel
+	 */
+	public Iface getPort(Iface iface)
+	{ return (null == this.lag ? iface : this.lag.getPort(iface)); }
+
+	/**
+	 * Limit the rate of broadcast, multicast, and unknown unicast frames
+	 * accepted on each port.
+	 * @param broadcast broadcast frames per second; 0 for no limit
+	 * @param multicast multicast frames per second; 0 for no limit
+	 * @param unknownUnicast frames per second to unlearned unicast
+	 *        addresses; 0 for no limit
+	 */
+	public void setStormControl(int broadcast, int multicast,
+			int unknownUnicast)
+	{
+		this.storm = new StormControl(broadcast, multicast, unknownUnicast);
+
+		System.out.println("Loaded storm control limits");
+		System.out.println("----------------------------------");
+		System.out.print(this.storm.toString());
+		System.out.println("----------------------------------");
+	}
+
+	/**
+	 * Start running the spanning tree with neighboring switches. Every port
+	 * discards frames until the tree converges or the port turns out to
+	 * lead to hosts.
+	 */
+	public void startSpanningTree()
+	{
+		this.stp = new SpanningTree(this, this.macTable);
+		this.stp.start(this.getControlPlane());
+		System.out.println(String.format("Started spanning tree as bridge %016x",
+				this.stp.getBridgeId()));
+	}
+
+	/**
+	 * @return spanning tree run with neighboring switches; null if the
+	 *         spanning tree is not running
+	 */
+	public SpanningTree getSpanningTree()
+	{ return this.stp; }
+
+	/**
+	 * @return the switch's MAC learning table
+	 */
+	public MACTable getMacTable()
+	{ return this.macTable; }
+
+	/**
+	 * @return multicast group listeners and router ports, learned from IGMP
+	 */
+	public IgmpSnooping getIgmpSnooping()
+	{ return this.igmp; }
+
+	@Override
+	public void appendMetrics(StringBuilder sb)
+	{
+		super.appendMetrics(sb);
+
+		String[] device = new String[] { "device", this.getHost() };
+		MetricsServer.header(sb, "vnet_mac_stations", "gauge",
+				"Stations in the MAC learning table");
+		MetricsServer.sample(sb, "vnet_mac_stations", device,
+				this.macTable.size());
+		MetricsServer.header(sb, "vnet_mac_capacity", "gauge",
+				"Most stations the MAC learning table holds");
+		MetricsServer.sample(sb, "vnet_mac_capacity", device,
+				this.macTable.capacity());
+		MetricsServer.header(sb, "vnet_mac_port_stations", "gauge",
+				"Stations learned on a port");
+		for (Iface iface : this.interfaces.values())
+		{
+			MetricsServer.sample(sb, "vnet_mac_port_stations", new String[] {
+					"device", this.getHost(), "iface", iface.getName() },
+					this.macTable.size(iface));
+		}
+		MetricsServer.header(sb, "vnet_mac_learned_total", "counter",
+				"Stations added to the MAC learning table");
+		MetricsServer.sample(sb, "vnet_mac_learned_total", device,
+				this.macTable.getLearned());
+		MetricsServer.header(sb, "vnet_mac_evictions_total", "counter",
+				"Stations evicted from a full MAC learning table, by limit");
+		MetricsServer.sample(sb, "vnet_mac_evictions_total", new String[] {
+				"device", this.getHost(), "limit", "table" },
+				this.macTable.getEvictions());
+		MetricsServer.sample(sb, "vnet_mac_evictions_total", new String[] {
+				"device", this.getHost(), "limit", "port" },
+				this.macTable.getPortEvictions());
+		MetricsServer.header(sb, "vnet_mac_learn_failures_total", "counter",
+				"Stations that could not be learned");
+		MetricsServer.sample(sb, "vnet_mac_learn_failures_total", device,
+				this.macTable.getFailures());
+
+		MetricsServer.header(sb, "vnet_igmp_groups", "gauge",
+				"Multicast groups tracked by IGMP snooping");
+		MetricsServer.sample(sb, "vnet_igmp_groups", device, this.igmp.size());
+		MetricsServer.header(sb, "vnet_igmp_messages_total", "counter",
+				"IGMP messages processed by snooping, by type");
+		MetricsServer.sample(sb, "vnet_igmp_messages_total", new String[] {
+				"device", this.getHost(), "type", "query" },
+				this.igmp.getQueries());
+		MetricsServer.sample(sb, "vnet_igmp_messages_total", new String[] {
+				"device", this.getHost(), "type", "report" },
+				this.igmp.getReports());
+		MetricsServer.sample(sb, "vnet_igmp_messages_total", new String[] {
+				"device", this.getHost(), "type", "leave" },
+				this.igmp.getLeaves());
+
+		if (this.storm != null)
+		{
+			MetricsServer.header(sb, "vnet_storm_suppressed_total", "counter",
+					"Frames suppressed by storm control, by traffic type");
+			for (Iface iface : this.interfaces.values())
+			{
+				for (int type = 0; type < StormControl.LABELS.length; type++)
+				{
+					MetricsServer.sample(sb, "vnet_storm_suppressed_total",
+							new String[] { "device", this.getHost(),
+								"iface", iface.getName(),
+								"traffic", StormControl.LABELS[type] },
+							this.storm.getSuppressed(iface, type));
+				}
+			}
+		}
+
+		if (null == this.stp)
+		{ return; }
+		MetricsServer.header(sb, "vnet_stp_port_forwarding", "gauge",
+				"Whether a port is forwarding in the spanning tree");
+		for (Iface iface : this.interfaces.values())
+		{
+			MetricsServer.sample(sb, "vnet_stp_port_forwarding", new String[] {
+					"device", this.getHost(), "iface", iface.getName() },
+					this.stp.isForwarding(this.getPort(iface)) ? 1 : 0);
+		}
+		MetricsServer.header(sb, "vnet_stp_topology_changes_total", "counter",
+				"Spanning tree topology changes detected or reported");
+		MetricsServer.sample(sb, "vnet_stp_topology_changes_total", device,
+				this.stp.getTopologyChanges());
+	}
+
+	/**
+	 * Save the MAC table: each entry's VLAN, MAC address, interface, and
+	 * age.
+	 * @param out stream to write to
+	 */
+	@Override
+	public void writeState(DataOutputStream out) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		Collection<MACTableEntry> entries = this.macTable.getEntries();
+		out.writeInt(entries.size());
+		for (MACTableEntry entry : entries)
+		{
+			long mac = entry.getMACAddressLong();
+			out.writeShort(entry.getVlan());
+			out.writeShort((int)(mac >>> 32));
+			out.writeInt((int)mac);
+			out.writeUTF(entry.getInterface().getName());
+			out.writeInt((int)(now - entry.getTimeUpdated()));
+		}
+	}
+
+	/**
+	 * Restore the MAC table, skipping entries that would have timed out
+	 * since the checkpoint was written.
+	 * @param in stream to read from
+	 * @param age time (in milliseconds) since the checkpoint was written
+	 */
+	@Override
+	public void readState(DataInputStream in, long age) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		int count = in.readInt();
+		int restored = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int vlan = in.readUnsignedShort();
+			long mac = ((long)in.readUnsignedShort() << 32)
+					| (in.readInt() & 0xffffffffL);
+			Iface iface = this.getInterface(in.readUTF());
+			long entryAge = in.readInt() + age;
+			if (null == iface || entryAge > MACTable.TIMEOUT)
+			{ continue; }
+			this.macTable.restore(vlan, mac, iface, now - entryAge);
+			restored++;
+		}
+		System.out.println(String.format("Restored %d of %d MAC table entries",
+				restored, count));
+	}
+
+	/** Broadcast MAC address, in the lower 48 bits */
+	private static final long BROADCAST_MAC = 0xffffffffffffL;
+
+	/**
+	 * @param mac MAC address, in the lower 48 bits
+	 * @return true if the MAC address is a broadcast or multicast address
+	 */
+	private static boolean isGroup(long mac)
+	{ return (mac & (1L << 40)) != 0; }
+
+	/**
+	 * Tag or untag a frame for the port it is about to be sent on.
+	 */
+	private void tag(Ethernet etherPacket, int vlan, Iface outIface)
+	{
+		if (null == this.vlans)
+		{ return; }
+		etherPacket.setVlanID(this.vlans.isTagged(outIface, vlan) ? (short)vlan
+				: Ethernet.VLAN_UNTAGGED);
+	}
+
+	/**
+	 * Send a frame out every port in its VLAN except the one it arrived on.
+	 * The frame is serialized at most twice, once untagged and once tagged,
+	 * however many ports it is sent on. A port channel gets one copy, on
+	 * the member chosen for the frame's flow.
+	 * @param group listeners for the frame's multicast group; null to send
+	 *        the frame on every port
+	 */
+	private void flood(Ethernet etherPacket, int vlan, Iface inPort,
+			IgmpSnooping.Group group)
+	{
+		this.setOutcome(Outcome.FLOODED);
+		if (this.floodPorts.length < this.interfaces.size())
+		{
+			this.floodPorts = new Iface[this.interfaces.size()];
+			this.taggedPorts = new Iface[this.interfaces.size()];
+		}
+		int untagged = 0;
+		int tagged = 0;
+		for (Iface iface : this.interfaces.values()) 
+		{
+			if (iface == inPort || this.getPort(iface) != iface
+					|| (this.vlans != null && !this.vlans.isMember(iface, vlan))
+					|| (this.stp != null && !this.stp.isForwarding(iface))
+					|| (group != null && !this.igmp.forwards(group, iface)))
+			{ continue; }
+			Iface outIface = (null == this.lag ? iface
+					: this.lag.select(iface, etherPacket));
+			if (this.vlans != null && this.vlans.isTagged(iface, vlan))
+			{ this.taggedPorts[tagged++] = outIface; }
+			else
+			{ this.floodPorts[untagged++] = outIface; }
+			System.out.println("Send packet out interface "+outIface);
+		}
+
+		// Serialize the frame once for each encoding, rather than once per
+		// port
+		if (untagged > 0)
+		{
+			if (this.vlans != null)
+			{ etherPacket.setVlanID(Ethernet.VLAN_UNTAGGED); }
+			byte[] frame = etherPacket.serialize();
+			this.sendFrame(frame, frame.length, this.floodPorts, untagged);
+		}
+		if (tagged > 0)
+		{
+			etherPacket.setVlanID((short)vlan);
+			byte[] frame = etherPacket.serialize();
+			this.sendFrame(frame, frame.length, this.taggedPorts, tagged);
+		}
+	}
+
+	/**
+	 * Decode a frame's payload as a BPDU, if it is one.
+	 * @return the BPDU; null if the frame is not an 802.3 frame carrying a
+	 *         BPDU
+	 */
+	private static BPDU toBpdu(Ethernet etherPacket)
+	{
+		if ((etherPacket.getEtherType() & 0xffff) > Ethernet.MAX_LENGTH
+				|| !(etherPacket.getPayload() instanceof Data))
+		{ return null; }
+		Data raw = (Data)etherPacket.getPayload();
+		if (!BPDU.isBpdu(raw.getBuffer(), raw.getOffset(), raw.getLength()))
+		{ return null; }
+		BPDU bpdu = new BPDU();
+		bpdu.deserialize(raw.getBuffer(), raw.getOffset(), raw.getLength());
+		return bpdu;
+	}
+
+	/**
+	 * Learn from IGMP messages, and find the ports a multicast frame should
+	 * be sent to. Queries go to every port; reports and leaves go to
+	 * multicast routers, which are the only ones that need them.
+	 * @return listeners for the frame's multicast group; null to send the
+	 *         frame on every port
+	 */
+	private IgmpSnooping.Group snoop(Ethernet etherPacket, int vlan,
+			Iface inPort)
+	{
+		IPv4 ipPacket;
+		if (etherPacket.getPayload() instanceof IPv4)
+		{ ipPacket = (IPv4)etherPacket.getPayload(); }
+		else if (etherPacket.getPayload() instanceof Data
+				&& Ethernet.TYPE_IPv4 == etherPacket.getEtherType())
+		{
+			// Only decode an undecoded payload if it is an IGMP message;
+			// other traffic just needs its destination
+			Data raw = (Data)etherPacket.getPayload();
+			byte[] data = raw.getBuffer();
+			int offset = raw.getOffset();
+			if (raw.getLength() < 20)
+			{ return null; }
+			if (data[offset + 9] != IPv4.PROTOCOL_IGMP)
+			{
+				return this.igmp.lookup(vlan, ((data[offset + 16] & 0xff) << 24)
+						| ((data[offset + 17] & 0xff) << 16)
+						| ((data[offset + 18] & 0xff) << 8)
+						| (data[offset + 19] & 0xff));
+			}
+			ipPacket = new IPv4();
+			ipPacket.deserialize(data, offset, raw.getLength());
+		}
+		else
+		{ return null; }
+		if (!(ipPacket.getPayload() instanceof IGMP))
+		{ return this.igmp.lookup(vlan, ipPacket.getDestinationAddress()); }
+
+		IGMP igmpPacket = (IGMP)ipPacket.getPayload();
+		this.igmp.receive(vlan, igmpPacket, inPort);
+		if (IGMP.TYPE_QUERY == igmpPacket.getType() || 0 == igmpPacket.getType())
+		{ return null; }
+		return this.igmp.lookupRouters();
 	}
 
 	/**
@@ -35,22 +473,85 @@ public class Switch extends Device
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		// Members of a port channel act as the port representing it
+		Iface inPort = this.getPort(inIface);
+
+		// BPDUs are consumed by the spanning tree, never forwarded; without
+		// a spanning tree they are forwarded untouched like any other frame
+		BPDU bpdu = (this.stp != null ? toBpdu(etherPacket) : null);
+		if (bpdu != null)
+		{
+			this.setOutcome(Outcome.STP);
+			this.stp.receive(bpdu, inPort);
+			return;
+		}
+		if (this.stp != null && !this.stp.isLearning(inPort))
+		{
+			this.drop(DropReason.STP_BLOCKED, inIface);
+			return;
+		}
+
+		// Classify the frame into a VLAN; without VLAN configuration, every
+		// frame is in VLAN 0 and is forwarded unchanged
+		int vlan = 0;
+		if (this.vlans != null)
+		{
+			vlan = this.vlans.classify(inPort, etherPacket.getVlanID());
+			if (vlan < 0)
+			{
+				this.drop(DropReason.VLAN_FILTERED, inIface);
+				return;
+			}
+		}
+
+		// Suppress floods of broadcast and multicast frames before doing any
+		// more work on them
+		long dstMac = etherPacket.getDestinationMAC().toLong();
+		if (this.storm != null && isGroup(dstMac)
+				&& !this.storm.admit(inPort, BROADCAST_MAC == dstMac
+					? StormControl.BROADCAST : StormControl.MULTICAST))
+		{
+			this.drop(DropReason.STORM_SUPPRESSED, inIface);
+			return;
+		}
+
+		// Group addresses are never sources, so they are neither learned
+		// nor looked up
+		long srcMac = etherPacket.getSourceMAC().toLong();
+		if (!isGroup(srcMac))
+		{ this.macTable.insert(vlan, srcMac, inPort); }
+
+		// A learning port learns stations but does not forward yet
+		if (this.stp != null && !this.stp.isForwarding(inPort))
+		{
+			this.drop(DropReason.STP_BLOCKED, inIface);
+			return;
+		}
 		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
-		else
+		if (isGroup(dstMac))
 		{
-			for (Iface iface : this.interfaces.values()) 
+			this.flood(etherPacket, vlan, inPort,
+					this.snoop(etherPacket, vlan, inPort));
+			return;
+		}
+		Iface outIface = this.macTable.lookup(vlan, dstMac);
+		if (outIface != null)
+		{
+			if (this.stp != null && !this.stp.isForwarding(outIface))
+			{ this.drop(DropReason.STP_BLOCKED, inIface); }
+			else
 			{
-				if (iface != inIface)
-				{
-					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
-				}
+				this.tag(etherPacket, vlan, outIface);
+				if (this.lag != null)
+				{ outIface = this.lag.select(outIface, etherPacket); }
+				this.sendPacket(etherPacket, outIface);
 			}
 		}
+		else if (this.storm != null
+				&& !this.storm.admit(inPort, StormControl.UNKNOWN_UNICAST))
+		{ this.drop(DropReason.STORM_SUPPRESSED, inIface); }
+		else
+		{ this.flood(etherPacket, vlan, inPort, null); }
 		
 		/********************************************************************/
 	}
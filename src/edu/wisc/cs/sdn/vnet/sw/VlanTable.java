@@ -0,0 +1,304 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * 802.1Q VLAN membership of a switch's ports. An access port belongs to a
+ * single VLAN and sends and receives its frames untagged. A trunk port
+ * belongs to a set of VLANs and sends and receives their frames tagged,
+ * except for an optional native VLAN whose frames are untagged. Ports that
+ * are not configured are access ports in VLAN 1.
+ * <p>
+ * Membership is kept in arrays indexed by port, with a 4096-bit set of
+ * VLANs per trunk port, so checks on the packet path allocate nothing.
+ * @author Aaron Gember-Jacobson
+ */
+public class VlanTable
+{
+	/** VLAN of ports that are not configured */
+	public static final int DEFAULT_VLAN = 1;
+
+	/** Highest usable VLAN ID */
+	public static final int MAX_VLAN = 4094;
+
+	/** No native VLAN on a trunk port */
+	private static final int NONE = -1;
+
+	/** Configured ports, by index */
+	private Iface[] ports;
+
+	/** Whether each port, by index, is a trunk port */
+	private boolean[] trunk;
+
+	/** VLAN of each access port, or native VLAN of each trunk port, by
+	 *  index; NONE if a trunk port has no native VLAN */
+	private int[] untagged;
+
+	/** VLANs each trunk port belongs to, by index, one bit per VLAN */
+	private long[][] allowed;
+
+	/**
+	 * Create a table in which every port is an access port in VLAN 1.
+	 */
+	public VlanTable()
+	{
+		this.ports = new Iface[0];
+		this.trunk = new boolean[0];
+		this.untagged = new int[0];
+		this.allowed = new long[0][];
+	}
+
+	private void ensure(Iface iface)
+	{
+		int index = iface.getIndex();
+		if (index >= this.trunk.length)
+		{
+			int oldLength = this.trunk.length;
+			this.ports = Arrays.copyOf(this.ports, index + 1);
+			this.trunk = Arrays.copyOf(this.trunk, index + 1);
+			this.untagged = Arrays.copyOf(this.untagged, index + 1);
+			this.allowed = Arrays.copyOf(this.allowed, index + 1);
+			Arrays.fill(this.untagged, oldLength, index + 1, DEFAULT_VLAN);
+		}
+		this.ports[index] = iface;
+	}
+
+	/**
+	 * Make a port an access port.
+	 * @param iface the port
+	 * @param vlan VLAN the port belongs to
+	 */
+	public void setAccess(Iface iface, int vlan)
+	{
+		int index = iface.getIndex();
+		this.ensure(iface);
+		this.trunk[index] = false;
+		this.untagged[index] = vlan;
+		this.allowed[index] = null;
+	}
+
+	/**
+	 * Make a port a trunk port.
+	 * @param iface the port
+	 * @param vlans VLANs the port belongs to, one bit per VLAN
+	 * @param nativeVlan VLAN whose frames are untagged on the port; -1 for
+	 *        none
+	 */
+	public void setTrunk(Iface iface, long[] vlans, int nativeVlan)
+	{
+		int index = iface.getIndex();
+		this.ensure(iface);
+		this.trunk[index] = true;
+		this.allowed[index] = vlans.clone();
+		this.untagged[index] = nativeVlan;
+		if (nativeVlan != NONE)
+		{ this.allowed[index][nativeVlan >>> 6] |= 1L << (nativeVlan & 63); }
+	}
+
+	/**
+	 * @param iface a port
+	 * @param vlan a VLAN ID
+	 * @return true if the port belongs to the VLAN
+	 */
+	public boolean isMember(Iface iface, int vlan)
+	{
+		int index = iface.getIndex();
+		if (index >= this.trunk.length)
+		{ return DEFAULT_VLAN == vlan; }
+		if (!this.trunk[index])
+		{ return this.untagged[index] == vlan; }
+		return (this.allowed[index][vlan >>> 6] & (1L << (vlan & 63))) != 0;
+	}
+
+	/**
+	 * @param iface a port that belongs to a VLAN
+	 * @param vlan the VLAN ID
+	 * @return true if the VLAN's frames are tagged when sent on the port
+	 */
+	public boolean isTagged(Iface iface, int vlan)
+	{
+		int index = iface.getIndex();
+		return (index < this.trunk.length && this.trunk[index]
+				&& this.untagged[index] != vlan);
+	}
+
+	/**
+	 * Classify a frame received on a port into a VLAN.
+	 * @param iface port the frame was received on
+	 * @param tag VLAN ID in the frame's tag; Ethernet.VLAN_UNTAGGED if the
+	 *        frame is untagged
+	 * @return VLAN the frame belongs to, -1 if the port does not accept it
+	 */
+	public int classify(Iface iface, short tag)
+	{
+		int index = iface.getIndex();
+		int untagged = (index < this.trunk.length ? this.untagged[index]
+				: DEFAULT_VLAN);
+
+		// Priority-tagged frames (VLAN ID 0) belong to the untagged VLAN
+		if (Ethernet.VLAN_UNTAGGED == tag || 0 == tag)
+		{ return untagged; }
+		int vlan = tag & 0xfff;
+		return (this.isMember(iface, vlan) ? vlan : NONE);
+	}
+
+	/**
+	 * Read port configuration from a file. Each line has the form
+	 * <pre>
+	 * access iface vlan
+	 * trunk iface vlan[,vlan|lo-hi]... [native vlan]
+	 * </pre>
+	 * Blank lines and lines starting with # are ignored.
+	 * @param filename name of the file containing the configuration
+	 * @param sw switch whose ports are configured
+	 * @return true if the configuration was successfully loaded, otherwise
+	 *         false
+	 */
+	public boolean load(String filename, Switch sw)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		while (true)
+		{
+			// Read a port's configuration from the file
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+
+			line = line.trim();
+			if (0 == line.length() || line.startsWith("#"))
+			{ continue; }
+
+			if (!this.parse(line, sw))
+			{
+				System.err.println("Invalid entry in VLAN file: " + line);
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return true;
+	}
+
+	/**
+	 * Parse and apply a single port's configuration.
+	 * @return false if the line is invalid
+	 */
+	private boolean parse(String line, Switch sw)
+	{
+		String[] fields = line.split("\\s+");
+		if (fields.length < 3)
+		{ return false; }
+		Iface iface = sw.getInterface(fields[1]);
+		if (null == iface)
+		{ return false; }
+
+		try
+		{
+			if (fields[0].equals("access") && 3 == fields.length)
+			{
+				int vlan = parseVlan(fields[2]);
+				if (vlan < 0)
+				{ return false; }
+				this.setAccess(iface, vlan);
+				return true;
+			}
+			if (!fields[0].equals("trunk")
+					|| (fields.length != 3 && fields.length != 5))
+			{ return false; }
+
+			long[] vlans = new long[(MAX_VLAN >>> 6) + 1];
+			for (String range : fields[2].split(","))
+			{
+				String[] bounds = range.split("-");
+				int lo = parseVlan(bounds[0]);
+				int hi = (bounds.length > 1 ? parseVlan(bounds[1]) : lo);
+				if (lo < 0 || hi < lo || bounds.length > 2)
+				{ return false; }
+				for (int vlan = lo; vlan <= hi; vlan++)
+				{ vlans[vlan >>> 6] |= 1L << (vlan & 63); }
+			}
+			int nativeVlan = NONE;
+			if (5 == fields.length)
+			{
+				if (!fields[3].equals("native"))
+				{ return false; }
+				nativeVlan = parseVlan(fields[4]);
+				if (nativeVlan < 0)
+				{ return false; }
+			}
+			this.setTrunk(iface, vlans, nativeVlan);
+			return true;
+		}
+		catch (NumberFormatException e)
+		{ return false; }
+	}
+
+	/**
+	 * @return the VLAN ID, -1 if it is out of range
+	 */
+	private static int parseVlan(String field)
+	{
+		int vlan = Integer.parseInt(field);
+		return (vlan >= 1 && vlan <= MAX_VLAN ? vlan : NONE);
+	}
+
+	public String toString()
+	{
+		String result = "Port\tMode\tVLANs\n";
+		for (int index = 0; index < this.trunk.length; index++)
+		{
+			if (null == this.ports[index])
+			{ continue; }
+			result += this.ports[index].getName() + "\t"
+					+ (this.trunk[index] ? "trunk" : "access") + "\t";
+			if (!this.trunk[index])
+			{
+				result += this.untagged[index] + "\n";
+				continue;
+			}
+			String vlans = "";
+			for (int vlan = 1; vlan <= MAX_VLAN; vlan++)
+			{
+				if ((this.allowed[index][vlan >>> 6] & (1L << (vlan & 63))) != 0)
+				{ vlans += (vlans.length() > 0 ? "," : "") + vlan; }
+			}
+			result += vlans;
+			if (this.untagged[index] != NONE)
+			{ result += " native " + this.untagged[index]; }
+			result += "\n";
+		}
+		return result;
+	}
+}
@@ -8,9 +8,23 @@ public class CommandPacket extends Command
 {
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
+
+	/** Whether only the Ethernet header of the frame is decoded */
+	protected boolean headerOnly;
 	
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
+
+	/**
+	 * Create a packet command to deserialize into.
+	 * @param headerOnly whether to decode only the Ethernet header of the
+	 *        frame, leaving the payload as a slice of the received bytes
+	 */
+	public CommandPacket(boolean headerOnly)
+	{
+		this();
+		this.headerOnly = headerOnly;
+	}
 	
 	protected CommandPacket deserialize(ByteBuffer buf)
 	{
@@ -20,9 +34,17 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-        this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.etherPacket = new Ethernet();
+		if (this.headerOnly)
+		{
+			this.etherPacket.deserializeHeader(buf.array(), buf.position(),
+					buf.capacity() - buf.position());
+		}
+		else
+		{
+			this.etherPacket.deserialize(buf.array(), buf.position(),
+					buf.capacity() - buf.position());
+		}
 		
 		return this;
 	}
@@ -30,6 +52,45 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * Serialize a packet command for an already serialized frame.
+	 * @param ifaceName name of the interface to send the frame on
+	 * @param frame buffer containing the frame
+	 * @param length length of the frame
+	 * @param data buffer to serialize into; must be large enough
+	 * @return length of the serialized command
+	 */
+	protected static int serialize(String ifaceName, byte[] frame, int length,
+			byte[] data)
+	{
+		int size = new CommandPacket().getSize() + length;
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name, 0, Math.min(name.length, 16));
+		for (int i = name.length; i < 16; i++)
+		{ bb.put((byte)0); }
+		bb.put(frame, 0, length);
+		return size;
+	}
+	
+	/**
+	 * Overwrite the interface name in a serialized packet command, without
+	 * allocating.
+	 * @param data buffer containing the serialized command
+	 * @param offset offset of the command in the buffer
+	 * @param ifaceName name of the interface to send the frame on
+	 */
+	protected static void setInterfaceName(byte[] data, int offset,
+			String ifaceName)
+	{
+		offset += 8;
+		int length = Math.min(ifaceName.length(), 16);
+		for (int i = 0; i < 16; i++)
+		{ data[offset + i] = (i < length ? (byte)ifaceName.charAt(i) : 0); }
+	}
+	
 	protected byte[] serialize()
 	{
 		byte[] packet = this.etherPacket.serialize();
@@ -13,12 +13,18 @@ import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.events.PacketProcessedEvent;
+import edu.wisc.cs.sdn.vnet.events.PacketReceivedEvent;
+import edu.wisc.cs.sdn.vnet.stats.Outcome;
 
 public class VNSComm 
 {
 	private Socket socket;
 	private Device device;
 	
+	/** Buffer for serializing commands in sendFrame */
+	private byte[] frameCommand = new byte[0];
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
@@ -173,6 +179,8 @@ public class VNSComm
 			}
 		}
 		
+		long readTime = System.nanoTime();
+
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
 		if (expectedCmd != 0 && command != expectedCmd)
@@ -190,16 +198,38 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
+			PacketProcessedEvent processedEvent = new PacketProcessedEvent();
+			processedEvent.begin();
+			this.device.getLatency().begin();
+			CommandPacket cmdPkt = new CommandPacket(
+					this.device.isHeaderOnly());
 			cmdPkt.deserialize(buf);
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
+			if (inIface != null)
+			{ inIface.getCounters().received(len - cmdPkt.getSize()); }
+
+			PacketReceivedEvent receivedEvent = new PacketReceivedEvent();
+			if (receivedEvent.isEnabled())
+			{
+				receivedEvent.iface = cmdPkt.mInterfaceName;
+				receivedEvent.length = len - cmdPkt.getSize();
+				receivedEvent.commit();
+			}
 			
 			// Log packet
             if (this.device.getLogFile() != null)
             { this.device.getLogFile().dump(cmdPkt.etherPacket); }
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.handlePacket(cmdPkt.etherPacket, inIface);
+			Outcome outcome = this.device.getLatency().end(readTime);
+			processedEvent.end();
+			if (processedEvent.shouldCommit())
+			{
+				processedEvent.iface = cmdPkt.mInterfaceName;
+				processedEvent.outcome = outcome.getLabel();
+				processedEvent.commit();
+			}
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -256,21 +286,120 @@ public class VNSComm
 			return false;
 		}*/
 		
+		// Log and write the packet under the same lock as sendFrame, which
+		// the control plane uses concurrently
+		synchronized (this)
+		{
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(etherPacket); }
+
+			try
+			{
+				OutputStream outStream = socket.getOutputStream();
+				outStream.write(buf);
+				outStream.flush();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+		}
+
+		Iface iface = this.device.getInterface(ifaceName);
+		if (iface != null)
+		{ iface.getCounters().sent(buf.length - cmdPacket.getSize()); }
+		return true;
+	}
+
+	/**
+	 * Send an already serialized frame.
+	 * @param frame buffer containing the frame
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame on
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public synchronized boolean sendFrame(byte[] frame, int length,
+			String ifaceName)
+	{
+		int headerSize = new CommandPacket().getSize();
+		if (this.frameCommand.length < headerSize + length)
+		{ this.frameCommand = new byte[headerSize + length]; }
+		int size = CommandPacket.serialize(ifaceName, frame, length,
+				this.frameCommand);
+		
 		// Log packet
-        if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, length); }
+		
+		try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(this.frameCommand, 0, size);
+			outStream.flush();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+
+		Iface iface = this.device.getInterface(ifaceName);
+		if (iface != null)
+		{ iface.getCounters().sent(length); }
+		return true;
+	}
+
+	/**
+	 * Send an already serialized frame on several interfaces. The command
+	 * for the first interface is serialized once and copied for the others,
+	 * with only the interface name rewritten, and all the commands are
+	 * written to the server at once.
+	 * @param frame buffer containing the frame
+	 * @param length length of the frame
+	 * @param ifaces interfaces to send the frame on
+	 * @param count number of interfaces to send the frame on
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public synchronized boolean sendFrame(byte[] frame, int length,
+			Iface[] ifaces, int count)
+	{
+		if (count <= 0)
+		{ return true; }
+		int size = new CommandPacket().getSize() + length;
+		if (this.frameCommand.length < size * count)
+		{ this.frameCommand = new byte[size * count]; }
+		CommandPacket.serialize(ifaces[0].getName(), frame, length,
+				this.frameCommand);
+		for (int i = 1; i < count; i++)
+		{
+			System.arraycopy(this.frameCommand, 0, this.frameCommand, i * size,
+					size);
+			CommandPacket.setInterfaceName(this.frameCommand, i * size,
+					ifaces[i].getName());
+		}
+		
+		// Log packet, once for each copy sent
+		if (this.device.getLogFile() != null)
+		{
+			for (int i = 0; i < count; i++)
+			{ this.device.getLogFile().dump(frame, length); }
+		}
 		
-	    try
+		try
 		{
 			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			outStream.write(this.frameCommand, 0, size * count);
+			outStream.flush();
 		}
 		catch(IOException e)
 		{
 			System.err.println("Error writing packet");
 			return false;
 		}
+
+		for (int i = 0; i < count; i++)
+		{ ifaces[i].getCounters().sent(length); }
 		return true;
 	}
 }
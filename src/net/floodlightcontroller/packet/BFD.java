@@ -0,0 +1,165 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A BFD control packet (RFC 5880 section 4.1), without authentication.
+ * @author Aaron Gember-Jacobson
+ */
+public class BFD extends BasePacket
+{
+	public static final byte VERSION = 1;
+	public static final int LENGTH = 24;
+	public static final byte STATE_ADMIN_DOWN = 0;
+	public static final byte STATE_DOWN = 1;
+	public static final byte STATE_INIT = 2;
+	public static final byte STATE_UP = 3;
+	public static final byte DIAG_NONE = 0;
+	public static final byte DIAG_DETECTION_TIMEOUT = 1;
+	public static final byte DIAG_NEIGHBOR_DOWN = 3;
+
+	protected byte version;
+	protected byte diagnostic;
+	protected byte state;
+	protected byte flags;
+	protected byte detectMult;
+	protected int myDiscriminator;
+	protected int yourDiscriminator;
+	protected int desiredMinTxInterval;
+	protected int requiredMinRxInterval;
+	protected int requiredMinEchoRxInterval;
+
+	public BFD()
+	{
+		super();
+		this.version = VERSION;
+	}
+
+	public byte getVersion()
+	{ return this.version; }
+
+	public byte getDiagnostic()
+	{ return this.diagnostic; }
+
+	public void setDiagnostic(byte diagnostic)
+	{ this.diagnostic = diagnostic; }
+
+	public byte getState()
+	{ return this.state; }
+
+	public void setState(byte state)
+	{ this.state = state; }
+
+	public byte getDetectMult()
+	{ return this.detectMult; }
+
+	public void setDetectMult(byte detectMult)
+	{ this.detectMult = detectMult; }
+
+	public int getMyDiscriminator()
+	{ return this.myDiscriminator; }
+
+	public void setMyDiscriminator(int myDiscriminator)
+	{ this.myDiscriminator = myDiscriminator; }
+
+	public int getYourDiscriminator()
+	{ return this.yourDiscriminator; }
+
+	public void setYourDiscriminator(int yourDiscriminator)
+	{ this.yourDiscriminator = yourDiscriminator; }
+
+	/**
+	 * @return shortest interval (in microseconds) the sender wants to use
+	 *         between packets it sends
+	 */
+	public int getDesiredMinTxInterval()
+	{ return this.desiredMinTxInterval; }
+
+	public void setDesiredMinTxInterval(int desiredMinTxInterval)
+	{ this.desiredMinTxInterval = desiredMinTxInterval; }
+
+	/**
+	 * @return shortest interval (in microseconds) the sender can receive
+	 *         packets at
+	 */
+	public int getRequiredMinRxInterval()
+	{ return this.requiredMinRxInterval; }
+
+	public void setRequiredMinRxInterval(int requiredMinRxInterval)
+	{ this.requiredMinRxInterval = requiredMinRxInterval; }
+
+	/**
+	 * Write a control packet into a buffer, without creating a packet.
+	 * @param bb buffer to write to
+	 * @param diagnostic diagnostic code
+	 * @param state session state
+	 * @param detectMult detection time multiplier
+	 * @param myDiscriminator sender's discriminator
+	 * @param yourDiscriminator receiver's discriminator; 0 if unknown
+	 * @param desiredMinTx desired minimum transmit interval (in microseconds)
+	 * @param requiredMinRx required minimum receive interval (in
+	 *        microseconds)
+	 */
+	public static void serialize(ByteBuffer bb, byte diagnostic, byte state,
+			byte detectMult, int myDiscriminator, int yourDiscriminator,
+			int desiredMinTx, int requiredMinRx)
+	{
+		bb.put((byte)((VERSION << 5) | (diagnostic & 0x1f)));
+		bb.put((byte)((state & 0x3) << 6));
+		bb.put(detectMult);
+		bb.put((byte)LENGTH);
+		bb.putInt(myDiscriminator);
+		bb.putInt(yourDiscriminator);
+		bb.putInt(desiredMinTx);
+		bb.putInt(requiredMinRx);
+		bb.putInt(0); // No echo function
+	}
+
+	@Override
+	public byte[] serialize()
+	{
+		byte[] data = new byte[LENGTH];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		serialize(bb, this.diagnostic, this.state, this.detectMult,
+				this.myDiscriminator, this.yourDiscriminator,
+				this.desiredMinTxInterval, this.requiredMinRxInterval);
+		bb.put(1, (byte)(bb.get(1) | (this.flags & 0x3f)));
+		bb.putInt(20, this.requiredMinEchoRxInterval);
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		// Leave truncated packets with an invalid version, so they are ignored
+		if (length < LENGTH)
+		{
+			this.version = 0;
+			return this;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+
+		byte versionDiag = bb.get();
+		this.version = (byte)((versionDiag >> 5) & 0x7);
+		this.diagnostic = (byte)(versionDiag & 0x1f);
+		byte stateFlags = bb.get();
+		this.state = (byte)((stateFlags >> 6) & 0x3);
+		this.flags = (byte)(stateFlags & 0x3f);
+		this.detectMult = bb.get();
+		bb.get(); // Consume length
+		this.myDiscriminator = bb.getInt();
+		this.yourDiscriminator = bb.getInt();
+		this.desiredMinTxInterval = bb.getInt();
+		this.requiredMinRxInterval = bb.getInt();
+		this.requiredMinEchoRxInterval = bb.getInt();
+		return this;
+	}
+
+	public String toString()
+	{
+		return String.format("BFD : {state=%d, diag=%d, mult=%d, my=%d, your=%d, "
+				+ "tx=%d, rx=%d}", this.state, this.diagnostic, this.detectMult,
+				this.myDiscriminator, this.yourDiscriminator,
+				this.desiredMinTxInterval, this.requiredMinRxInterval);
+	}
+}
@@ -0,0 +1,242 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A spanning tree bridge protocol data unit (IEEE 802.1D-2004 clause 9),
+ * including the LLC header it is carried in. Configuration, topology change
+ * notification, and RST BPDUs are supported. Times are in 1/256ths of a
+ * second, as on the wire.
+ * @author Aaron Gember-Jacobson
+ */
+public class BPDU extends BasePacket
+{
+	/** Destination MAC address of BPDUs */
+	public static final MACAddress GROUP_ADDRESS =
+			MACAddress.valueOf("01:80:c2:00:00:00");
+
+	/** LLC service access point and control field for BPDUs */
+	public static final byte LLC_SAP = 0x42;
+	public static final byte LLC_CONTROL = 0x03;
+
+	public static final byte VERSION_STP = 0;
+	public static final byte VERSION_RSTP = 2;
+
+	public static final byte TYPE_CONFIG = 0x00;
+	public static final byte TYPE_RST = 0x02;
+	public static final byte TYPE_TCN = (byte)0x80;
+
+	public static final byte FLAG_TOPOLOGY_CHANGE = 0x01;
+	public static final byte FLAG_PROPOSAL = 0x02;
+	public static final byte FLAG_LEARNING = 0x10;
+	public static final byte FLAG_FORWARDING = 0x20;
+	public static final byte FLAG_AGREEMENT = 0x40;
+	public static final byte FLAG_TOPOLOGY_CHANGE_ACK = (byte)0x80;
+
+	/** Port roles, in bits 2 and 3 of the flags */
+	public static final byte ROLE_UNKNOWN = 0;
+	public static final byte ROLE_ALTERNATE = 1;
+	public static final byte ROLE_ROOT = 2;
+	public static final byte ROLE_DESIGNATED = 3;
+
+	/** Lengths, including the LLC header */
+	public static final int TCN_LENGTH = 3 + 4;
+	public static final int CONFIG_LENGTH = 3 + 35;
+	public static final int RST_LENGTH = 3 + 36;
+
+	protected byte version;
+	protected byte type;
+	protected byte flags;
+	protected long rootId;
+	protected int rootPathCost;
+	protected long bridgeId;
+	protected short portId;
+	protected short messageAge;
+	protected short maxAge;
+	protected short helloTime;
+	protected short forwardDelay;
+
+	public BPDU()
+	{
+		super();
+		this.version = VERSION_RSTP;
+		this.type = TYPE_RST;
+	}
+
+	/**
+	 * @param data buffer containing an Ethernet payload
+	 * @param offset offset of the payload in the buffer
+	 * @param length length of the payload
+	 * @return true if the payload starts with the LLC header of a BPDU
+	 */
+	public static boolean isBpdu(byte[] data, int offset, int length)
+	{
+		return (length >= 3 && LLC_SAP == data[offset]
+				&& LLC_SAP == data[offset + 1]
+				&& LLC_CONTROL == data[offset + 2]);
+	}
+
+	public byte getVersion()
+	{ return this.version; }
+
+	public void setVersion(byte version)
+	{ this.version = version; }
+
+	public byte getType()
+	{ return this.type; }
+
+	public void setType(byte type)
+	{ this.type = type; }
+
+	public byte getFlags()
+	{ return this.flags; }
+
+	public void setFlags(byte flags)
+	{ this.flags = flags; }
+
+	/**
+	 * @return true if all of the given flags are set
+	 */
+	public boolean hasFlags(byte flags)
+	{ return (this.flags & flags) == flags; }
+
+	/**
+	 * @return role of the sending port
+	 */
+	public byte getRole()
+	{ return (byte)((this.flags >> 2) & 0x3); }
+
+	public void setRole(byte role)
+	{ this.flags = (byte)((this.flags & ~0x0c) | ((role & 0x3) << 2)); }
+
+	public long getRootId()
+	{ return this.rootId; }
+
+	public void setRootId(long rootId)
+	{ this.rootId = rootId; }
+
+	public int getRootPathCost()
+	{ return this.rootPathCost; }
+
+	public void setRootPathCost(int rootPathCost)
+	{ this.rootPathCost = rootPathCost; }
+
+	public long getBridgeId()
+	{ return this.bridgeId; }
+
+	public void setBridgeId(long bridgeId)
+	{ this.bridgeId = bridgeId; }
+
+	public short getPortId()
+	{ return this.portId; }
+
+	public void setPortId(short portId)
+	{ this.portId = portId; }
+
+	public short getMessageAge()
+	{ return this.messageAge; }
+
+	public void setMessageAge(short messageAge)
+	{ this.messageAge = messageAge; }
+
+	public short getMaxAge()
+	{ return this.maxAge; }
+
+	public void setMaxAge(short maxAge)
+	{ this.maxAge = maxAge; }
+
+	public short getHelloTime()
+	{ return this.helloTime; }
+
+	public void setHelloTime(short helloTime)
+	{ this.helloTime = helloTime; }
+
+	public short getForwardDelay()
+	{ return this.forwardDelay; }
+
+	public void setForwardDelay(short forwardDelay)
+	{ this.forwardDelay = forwardDelay; }
+
+	@Override
+	public byte[] serialize()
+	{
+		int length;
+		if (TYPE_TCN == this.type)
+		{ length = TCN_LENGTH; }
+		else if (TYPE_RST == this.type)
+		{ length = RST_LENGTH; }
+		else
+		{ length = CONFIG_LENGTH; }
+
+		byte[] data = new byte[length];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put(LLC_SAP);
+		bb.put(LLC_SAP);
+		bb.put(LLC_CONTROL);
+		bb.putShort((short)0); // Protocol identifier
+		bb.put(this.version);
+		bb.put(this.type);
+		if (TYPE_TCN == this.type)
+		{ return data; }
+
+		bb.put(this.flags);
+		bb.putLong(this.rootId);
+		bb.putInt(this.rootPathCost);
+		bb.putLong(this.bridgeId);
+		bb.putShort(this.portId);
+		bb.putShort(this.messageAge);
+		bb.putShort(this.maxAge);
+		bb.putShort(this.helloTime);
+		bb.putShort(this.forwardDelay);
+		if (TYPE_RST == this.type)
+		{ bb.put((byte)0); } // Version 1 length
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		// Leave truncated BPDUs as topology change notifications with an
+		// invalid version, so they are ignored
+		this.version = -1;
+		this.type = TYPE_TCN;
+		if (length < TCN_LENGTH || !isBpdu(data, offset, length))
+		{ return this; }
+		ByteBuffer bb = ByteBuffer.wrap(data, offset + 3, length - 3);
+
+		if (bb.getShort() != 0)
+		{ return this; }
+		byte version = bb.get();
+		this.type = bb.get();
+		if (TYPE_TCN == this.type)
+		{
+			this.version = version;
+			return this;
+		}
+		if (length < CONFIG_LENGTH)
+		{
+			this.type = TYPE_TCN;
+			return this;
+		}
+
+		this.version = version;
+		this.flags = bb.get();
+		this.rootId = bb.getLong();
+		this.rootPathCost = bb.getInt();
+		this.bridgeId = bb.getLong();
+		this.portId = bb.getShort();
+		this.messageAge = bb.getShort();
+		this.maxAge = bb.getShort();
+		this.helloTime = bb.getShort();
+		this.forwardDelay = bb.getShort();
+		return this;
+	}
+
+	public String toString()
+	{
+		return String.format("BPDU : {version=%d, type=%d, flags=0x%02x, "
+				+ "root=%016x, cost=%d, bridge=%016x, port=0x%04x}",
+				this.version, this.type & 0xff, this.flags & 0xff, this.rootId,
+				this.rootPathCost, this.bridgeId, this.portId & 0xffff);
+	}
+}
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -25,6 +26,8 @@ import java.util.Arrays;
  */
 public class Data extends BasePacket {
     protected byte[] data;
+    protected int offset;
+    protected int length;
 
     /**
      * 
@@ -36,13 +39,32 @@ public class Data extends BasePacket {
      * @param data
      */
     public Data(byte[] data) {
+        this.setData(data);
+    }
+
+    /**
+     * Create a payload that is a slice of a larger buffer, without copying
+     * it. The buffer must not be modified while the payload is in use.
+     * @param data buffer containing the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    public Data(byte[] data, int offset, int length) {
         this.data = data;
+        this.offset = offset;
+        this.length = length;
     }
 
     /**
-     * @return the data
+     * @return the data; copied out of the buffer it was received in the
+     *         first time it is requested, if it is a slice of the buffer
      */
     public byte[] getData() {
+        if (this.data != null
+                && (this.offset != 0 || this.length != this.data.length)) {
+            this.setData(Arrays.copyOfRange(this.data, this.offset,
+                    this.offset + this.length));
+        }
         return data;
     }
 
@@ -51,16 +73,50 @@ public class Data extends BasePacket {
      */
     public Data setData(byte[] data) {
         this.data = data;
+        this.offset = 0;
+        this.length = (null == data ? 0 : data.length);
         return this;
     }
 
-    public byte[] serialize() {
+    /**
+     * @return buffer containing the data, which may be shared with the
+     *         buffer the data was received in; it must not be modified
+     */
+    public byte[] getBuffer() {
         return this.data;
     }
 
+    /**
+     * @return offset of the data in the buffer
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return length of the data
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public byte[] serialize() {
+        return this.getData();
+    }
+
+    /**
+     * Write the data into a buffer, without copying it out of the buffer it
+     * was received in first.
+     * @param bb buffer to write to
+     */
+    public void serialize(ByteBuffer bb) {
+        if (this.data != null)
+            bb.put(this.data, this.offset, this.length);
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
-        this.data = Arrays.copyOfRange(data, offset, data.length);
+        this.setData(Arrays.copyOfRange(data, offset, data.length));
         return this;
     }
 
@@ -71,7 +127,7 @@ public class Data extends BasePacket {
     public int hashCode() {
         final int prime = 1571;
         int result = super.hashCode();
-        result = prime * result + Arrays.hashCode(data);
+        result = prime * result + Arrays.hashCode(this.getData());
         return result;
     }
 
@@ -87,7 +143,7 @@ public class Data extends BasePacket {
         if (!(obj instanceof Data))
             return false;
         Data other = (Data) obj;
-        if (!Arrays.equals(data, other.data))
+        if (!Arrays.equals(this.getData(), other.getData()))
             return false;
         return true;
     }
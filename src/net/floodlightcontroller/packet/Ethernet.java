@@ -36,6 +36,8 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_LLDP = (short) 0x88cc;
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
+    /** Largest value of the type field that is an 802.3 length instead */
+    public static final int MAX_LENGTH = 1500;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
     public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
 
@@ -199,12 +201,17 @@ public class Ethernet extends BasePacket {
 
     public byte[] serialize() {
         byte[] payloadData = null;
-        if (payload != null) {
+        Data slice = null;
+        if (payload instanceof Data) {
+            // Copy raw payloads straight from the buffer they arrived in
+            slice = (Data) payload;
+        } else if (payload != null) {
             payload.setParent(this);
             payloadData = payload.serialize();
         }
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          ((payloadData == null) ? 0 : payloadData.length) +
+                          ((slice == null) ? 0 : slice.getLength());
         if (pad && length < 60) {
             length = 60;
         }
@@ -219,6 +226,8 @@ public class Ethernet extends BasePacket {
         bb.putShort(etherType);
         if (payloadData != null)
             bb.put(payloadData);
+        if (slice != null)
+            slice.serialize(bb);
         if (pad) {
             Arrays.fill(data, bb.position(), data.length, (byte)0x0);
         }
@@ -230,14 +239,54 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
+        this.deserializeHeader(bb);
+        
+        IPacket payload;
+        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
+            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
+            try {
+                payload = clazz.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
+            }
+        } else {
+            payload = new Data();
+        }
+        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
+        this.payload.setParent(this);
+        return this;
+    }
+
+    /**
+     * Deserialize only the Ethernet header. The payload is left as a Data
+     * slice of the buffer, which is not copied, so the buffer must not be
+     * modified while the packet is in use.
+     * @param data buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     * @return the deserialized packet, null if the frame is empty
+     */
+    public IPacket deserializeHeader(byte[] data, int offset, int length) {
+        if (length <= 0)
+            return null;
+        ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+        this.deserializeHeader(bb);
+
+        this.payload = new Data(data, bb.position(), bb.remaining());
+        this.payload.setParent(this);
+        return this;
+    }
+
+    /**
+     * Read the addresses, VLAN tag, and type from the start of a frame.
+     * @param bb buffer positioned at the start of the frame; left positioned
+     *        at the start of the payload
+     */
+    private void deserializeHeader(ByteBuffer bb) {
         byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
         bb.get(dstAddr);
         this.destinationMACAddress = MACAddress.valueOf(dstAddr);
 
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
         byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
         bb.get(srcAddr);
         this.sourceMACAddress = MACAddress.valueOf(srcAddr);
@@ -252,21 +301,6 @@ public class Ethernet extends BasePacket {
             this.vlanID = VLAN_UNTAGGED;
         }
         this.etherType = etherType;
-        
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-        return this;
     }
 
     /**
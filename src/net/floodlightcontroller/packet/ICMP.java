@@ -24,6 +24,7 @@ import java.nio.ByteBuffer;
  * @author shudong.zhou@bigswitch.com
  */
 public class ICMP extends BasePacket {
+    public static final byte TYPE_ECHO_REPLY = 0x0;
     public static final byte TYPE_ECHO_REQUEST = 0x8;
 
     protected byte icmpType;
@@ -0,0 +1,273 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An IGMP message (RFC 2236 and RFC 3376). Queries and version 1 and 2
+ * reports and leaves carry a single group address; version 3 reports carry
+ * a list of group records, each with a record type, a group address, and
+ * source addresses. Version 3 queries are decoded without their source
+ * list or query parameters.
+ * <p>
+ * A decoded message is serialized exactly as it was received, so messages
+ * forwarded by a switch keep their version 3 query fields, auxiliary data,
+ * and checksum. Once a field is set, the message is serialized from its
+ * fields instead, with queries in the version 2 format and a recomputed
+ * checksum.
+ * @author Aaron Gember-Jacobson
+ */
+public class IGMP extends BasePacket
+{
+	public static final byte TYPE_QUERY = 0x11;
+	public static final byte TYPE_V1_REPORT = 0x12;
+	public static final byte TYPE_V2_REPORT = 0x16;
+	public static final byte TYPE_LEAVE = 0x17;
+	public static final byte TYPE_V3_REPORT = 0x22;
+
+	/** Version 3 group record types */
+	public static final byte MODE_IS_INCLUDE = 1;
+	public static final byte MODE_IS_EXCLUDE = 2;
+	public static final byte CHANGE_TO_INCLUDE = 3;
+	public static final byte CHANGE_TO_EXCLUDE = 4;
+	public static final byte ALLOW_NEW_SOURCES = 5;
+	public static final byte BLOCK_OLD_SOURCES = 6;
+
+	/** Length of a query, or a version 1 or 2 report or leave */
+	public static final int LENGTH = 8;
+
+	/** Length of a version 3 query without its source list */
+	public static final int V3_QUERY_LENGTH = 12;
+
+	/** Length of a version 3 report's header, and of a group record's */
+	public static final int V3_HEADER_LENGTH = 8;
+	public static final int RECORD_LENGTH = 8;
+
+	private static final int[] NO_SOURCES = new int[0];
+
+	protected byte type;
+	protected byte maxResponseTime;
+	protected short checksum;
+	protected int groupAddress;
+	protected byte[] recordTypes;
+	protected int[] recordGroups;
+	protected int[][] recordSources;
+
+	/** Bytes the message was decoded from; null once a field is set */
+	protected byte[] raw;
+
+	public IGMP()
+	{
+		super();
+		this.recordTypes = new byte[0];
+		this.recordGroups = new int[0];
+		this.recordSources = new int[0][];
+	}
+
+	public byte getType()
+	{ return this.type; }
+
+	public void setType(byte type)
+	{
+		this.type = type;
+		this.modified();
+	}
+
+	/**
+	 * @return longest time (in tenths of a second) before a host responds
+	 *         to a query
+	 */
+	public byte getMaxResponseTime()
+	{ return this.maxResponseTime; }
+
+	public void setMaxResponseTime(byte maxResponseTime)
+	{
+		this.maxResponseTime = maxResponseTime;
+		this.modified();
+	}
+
+	public short getChecksum()
+	{ return this.checksum; }
+
+	public void setChecksum(short checksum)
+	{
+		this.checksum = checksum;
+		this.raw = null;
+	}
+
+	/**
+	 * @return group the query, report, or leave is for; 0 for a general
+	 *         query or a version 3 report
+	 */
+	public int getGroupAddress()
+	{ return this.groupAddress; }
+
+	public void setGroupAddress(int groupAddress)
+	{
+		this.groupAddress = groupAddress;
+		this.modified();
+	}
+
+	/**
+	 * @return number of group records in a version 3 report
+	 */
+	public int getRecordCount()
+	{ return this.recordTypes.length; }
+
+	public byte getRecordType(int record)
+	{ return this.recordTypes[record]; }
+
+	public int getRecordGroup(int record)
+	{ return this.recordGroups[record]; }
+
+	public int[] getRecordSources(int record)
+	{ return this.recordSources[record]; }
+
+	/**
+	 * @param types type of each group record in a version 3 report
+	 * @param groups group address of each record
+	 * @param sources source addresses of each record
+	 */
+	public void setRecords(byte[] types, int[] groups, int[][] sources)
+	{
+		this.recordTypes = types;
+		this.recordGroups = groups;
+		this.recordSources = sources;
+		this.modified();
+	}
+
+	/**
+	 * Stop re-emitting the decoded bytes, and recompute the checksum, after
+	 * a field is set.
+	 */
+	private void modified()
+	{
+		this.raw = null;
+		this.checksum = 0;
+	}
+
+	@Override
+	public byte[] serialize()
+	{
+		if (this.parent != null && this.parent instanceof IPv4)
+		{ ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_IGMP); }
+		if (this.raw != null)
+		{ return this.raw; }
+
+		int length = LENGTH;
+		if (TYPE_V3_REPORT == this.type)
+		{
+			length = V3_HEADER_LENGTH;
+			for (int[] sources : this.recordSources)
+			{ length += RECORD_LENGTH + sources.length * 4; }
+		}
+
+		byte[] data = new byte[length];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put(this.type);
+		bb.put(TYPE_V3_REPORT == this.type ? 0 : this.maxResponseTime);
+		bb.putShort(this.checksum);
+		if (TYPE_V3_REPORT == this.type)
+		{
+			bb.putShort((short)0); // Reserved
+			bb.putShort((short)this.recordTypes.length);
+			for (int i = 0; i < this.recordTypes.length; i++)
+			{
+				bb.put(this.recordTypes[i]);
+				bb.put((byte)0); // No auxiliary data
+				bb.putShort((short)this.recordSources[i].length);
+				bb.putInt(this.recordGroups[i]);
+				for (int source : this.recordSources[i])
+				{ bb.putInt(source); }
+			}
+		}
+		else
+		{ bb.putInt(this.groupAddress); }
+
+		// Compute the checksum if needed
+		if (0 == this.checksum)
+		{
+			bb.rewind();
+			int accumulation = 0;
+			for (int i = 0; i < length / 2; i++)
+			{ accumulation += 0xffff & bb.getShort(); }
+			accumulation = ((accumulation >> 16) & 0xffff)
+					+ (accumulation & 0xffff);
+			this.checksum = (short)(~accumulation & 0xffff);
+			bb.putShort(2, this.checksum);
+		}
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		// Leave truncated messages with type 0, so they are ignored, but
+		// still re-emit them as received
+		this.type = 0;
+		this.raw = Arrays.copyOfRange(data, offset, offset + length);
+		if (length < LENGTH)
+		{ return this; }
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+
+		byte type = bb.get();
+		this.maxResponseTime = bb.get();
+		this.checksum = bb.getShort();
+		if (type != TYPE_V3_REPORT)
+		{
+			this.groupAddress = bb.getInt();
+			this.type = type;
+
+			// Keep a version 3 query's parameters and source list, but not
+			// anything past the end of the message
+			int messageLength = LENGTH;
+			if (TYPE_QUERY == type && length >= V3_QUERY_LENGTH)
+			{
+				int sourceCount = bb.getShort(offset + 10) & 0xffff;
+				messageLength = Math.min(length,
+						V3_QUERY_LENGTH + sourceCount * 4);
+			}
+			this.raw = Arrays.copyOf(this.raw, messageLength);
+			return this;
+		}
+
+		bb.getShort(); // Reserved
+		int count = bb.getShort() & 0xffff;
+		byte[] types = new byte[count];
+		int[] groups = new int[count];
+		int[][] sources = new int[count][];
+		for (int i = 0; i < count; i++)
+		{
+			if (bb.remaining() < RECORD_LENGTH)
+			{ return this; }
+			types[i] = bb.get();
+			int auxLength = (bb.get() & 0xff) * 4;
+			int sourceCount = bb.getShort() & 0xffff;
+			groups[i] = bb.getInt();
+			if (bb.remaining() < sourceCount * 4 + auxLength)
+			{ return this; }
+			sources[i] = (0 == sourceCount ? NO_SOURCES
+					: new int[sourceCount]);
+			for (int j = 0; j < sourceCount; j++)
+			{ sources[i][j] = bb.getInt(); }
+			bb.position(bb.position() + auxLength);
+		}
+		this.recordTypes = types;
+		this.recordGroups = groups;
+		this.recordSources = sources;
+		this.type = type;
+		this.raw = Arrays.copyOf(this.raw, bb.position() - offset);
+		return this;
+	}
+
+	public String toString()
+	{
+		if (TYPE_V3_REPORT == this.type)
+		{
+			return String.format("IGMP : {type=0x%02x, records=%d}",
+					this.type & 0xff, this.recordTypes.length);
+		}
+		return String.format("IGMP : {type=0x%02x, group=%s}",
+				this.type & 0xff, IPv4.fromIPv4Address(this.groupAddress));
+	}
+}
@@ -32,6 +32,7 @@ import java.util.Map;
  */
 public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
+    public static final byte PROTOCOL_IGMP = 0x2;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
@@ -39,6 +40,7 @@ public class IPv4 extends BasePacket {
     static {
         protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
         protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
+        protocolClassMap.put(PROTOCOL_IGMP, IGMP.class);
         protocolClassMap.put(PROTOCOL_TCP, TCP.class);
         protocolClassMap.put(PROTOCOL_UDP, UDP.class);
     }
@@ -371,7 +373,13 @@ public class IPv4 extends BasePacket {
         } else {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
+        // Leave out any Ethernet padding past the end of the packet
+        int payloadLength = bb.limit() - bb.position();
+        int headerBytes = this.headerLength * 4;
+        if ((this.totalLength & 0xffff) >= headerBytes
+                && (this.totalLength & 0xffff) - headerBytes < payloadLength)
+            payloadLength = (this.totalLength & 0xffff) - headerBytes;
+        this.payload = payload.deserialize(data, bb.position(), payloadLength);
         this.payload.setParent(this);
 
         if (this.totalLength != length)
@@ -0,0 +1,223 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A link-state routing message, carried over UDP. A hello announces the
+ * sending router on a link; a link-state advertisement (LSA) describes the
+ * originating router's adjacencies to other routers, with a cost for each,
+ * and the prefixes the router is directly connected to.
+ * @author Aaron Gember-Jacobson
+ */
+public class LinkState extends BasePacket
+{
+	public static final byte VERSION = 1;
+	public static final byte TYPE_HELLO = 1;
+	public static final byte TYPE_LSA = 2;
+	public static final int HEADER_LENGTH = 16;
+	public static final int LINK_LENGTH = 8;
+	public static final int PREFIX_LENGTH = 8;
+
+	protected byte type;
+	protected byte version;
+	protected int routerId;
+	protected int sequence;
+	protected int[] neighbors;
+	protected int[] costs;
+	protected int[] addresses;
+	protected int[] masks;
+
+	public LinkState()
+	{
+		super();
+		this.version = VERSION;
+		this.neighbors = new int[0];
+		this.costs = new int[0];
+		this.addresses = new int[0];
+		this.masks = new int[0];
+	}
+
+	public void setType(byte type)
+	{ this.type = type; }
+
+	public byte getType()
+	{ return this.type; }
+
+	/**
+	 * @param routerId ID of the router that sent the hello or originated
+	 *        the LSA
+	 */
+	public void setRouterId(int routerId)
+	{ this.routerId = routerId; }
+
+	public int getRouterId()
+	{ return this.routerId; }
+
+	/**
+	 * @param sequence sequence number of the LSA; a higher number replaces
+	 *        an LSA from the same router
+	 */
+	public void setSequence(int sequence)
+	{ this.sequence = sequence; }
+
+	public int getSequence()
+	{ return this.sequence; }
+
+	/**
+	 * @param neighbors IDs of the adjacent routers
+	 * @param costs cost of the link to each adjacent router
+	 */
+	public void setLinks(int[] neighbors, int[] costs)
+	{
+		this.neighbors = neighbors;
+		this.costs = costs;
+	}
+
+	public int[] getNeighbors()
+	{ return this.neighbors; }
+
+	public int[] getCosts()
+	{ return this.costs; }
+
+	/**
+	 * @param addresses addresses of the directly connected prefixes
+	 * @param masks subnet mask of each prefix
+	 */
+	public void setPrefixes(int[] addresses, int[] masks)
+	{
+		this.addresses = addresses;
+		this.masks = masks;
+	}
+
+	public int[] getAddresses()
+	{ return this.addresses; }
+
+	public int[] getMasks()
+	{ return this.masks; }
+
+	/**
+	 * @param other another LSA
+	 * @return true if both LSAs list the same adjacencies with the same costs
+	 */
+	public boolean sameLinks(LinkState other)
+	{
+		return Arrays.equals(this.neighbors, other.neighbors)
+				&& Arrays.equals(this.costs, other.costs);
+	}
+
+	/**
+	 * @param other another LSA
+	 * @return true if both LSAs list the same prefixes
+	 */
+	public boolean samePrefixes(LinkState other)
+	{
+		return Arrays.equals(this.addresses, other.addresses)
+				&& Arrays.equals(this.masks, other.masks);
+	}
+
+	@Override
+	public byte[] serialize()
+	{
+		int length = HEADER_LENGTH + this.neighbors.length * LINK_LENGTH
+				+ this.addresses.length * PREFIX_LENGTH;
+		byte[] data = new byte[length];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+
+		bb.put(this.type);
+		bb.put(this.version);
+		bb.putShort((short)0); // Put padding
+		bb.putInt(this.routerId);
+		bb.putInt(this.sequence);
+		bb.putShort((short)this.neighbors.length);
+		bb.putShort((short)this.addresses.length);
+		for (int i = 0; i < this.neighbors.length; i++)
+		{
+			bb.putInt(this.neighbors[i]);
+			bb.putInt(this.costs[i]);
+		}
+		for (int i = 0; i < this.addresses.length; i++)
+		{
+			bb.putInt(this.addresses[i]);
+			bb.putInt(this.masks[i]);
+		}
+
+		return data;
+	}
+
+	@Override
+	public IPacket deserialize(byte[] data, int offset, int length)
+	{
+		// Leave truncated messages with type 0, so they are ignored
+		this.type = 0;
+		if (length < HEADER_LENGTH)
+		{ return this; }
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+
+		this.type = bb.get();
+		this.version = bb.get();
+		bb.getShort(); // Consume padding
+		this.routerId = bb.getInt();
+		this.sequence = bb.getInt();
+		int linkCount = bb.getShort() & 0xffff;
+		int prefixCount = bb.getShort() & 0xffff;
+
+		// Ignore counts that run past the end of the message
+		linkCount = Math.min(linkCount, bb.remaining() / LINK_LENGTH);
+		this.neighbors = new int[linkCount];
+		this.costs = new int[linkCount];
+		for (int i = 0; i < linkCount; i++)
+		{
+			this.neighbors[i] = bb.getInt();
+			this.costs[i] = bb.getInt();
+		}
+		prefixCount = Math.min(prefixCount, bb.remaining() / PREFIX_LENGTH);
+		this.addresses = new int[prefixCount];
+		this.masks = new int[prefixCount];
+		for (int i = 0; i < prefixCount; i++)
+		{
+			this.addresses[i] = bb.getInt();
+			this.masks[i] = bb.getInt();
+		}
+		return this;
+	}
+
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{ return true; }
+		if (null == obj)
+		{ return false; }
+		if (!(obj instanceof LinkState))
+		{ return false; }
+		LinkState other = (LinkState)obj;
+		return this.type == other.type && this.version == other.version
+				&& this.routerId == other.routerId
+				&& this.sequence == other.sequence
+				&& this.sameLinks(other) && this.samePrefixes(other);
+	}
+
+	public int hashCode()
+	{ return 31 * this.routerId + this.sequence; }
+
+	public String toString()
+	{
+		String x = String.format(
+				"LinkState : {type=%d, version=%d, router=%s, seq=%d, links={",
+				this.type, this.version, IPv4.fromIPv4Address(this.routerId),
+				this.sequence);
+		for (int i = 0; i < this.neighbors.length; i++)
+		{
+			x = x + IPv4.fromIPv4Address(this.neighbors[i]) + ":"
+					+ this.costs[i] + ",";
+		}
+		x = x + "}, prefixes={";
+		for (int i = 0; i < this.addresses.length; i++)
+		{
+			x = x + IPv4.fromIPv4Address(this.addresses[i]) + "/"
+					+ IPv4.fromIPv4Address(this.masks[i]) + ",";
+		}
+		x = x + "}}";
+		return x;
+	}
+}
@@ -12,6 +12,11 @@ public class RIPv2 extends BasePacket
     public static final byte VERSION = 2;
     public static final byte COMMAND_REQUEST = 1;
     public static final byte COMMAND_RESPONSE = 2;
+    public static final int HEADER_LENGTH = 4;
+    /** Most entries allowed in a single message (RFC 2453 section 3.6) */
+    public static final int MAX_ENTRIES = 25;
+    /** Metric for an unreachable destination */
+    public static final int INFINITY = 16;
 
 	protected byte command;
 	protected byte version;
@@ -42,7 +47,7 @@ public class RIPv2 extends BasePacket
 	@Override
 	public byte[] serialize() 
     {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
+		int length = HEADER_LENGTH + this.entries.size() * RIPv2Entry.LENGTH;
 		byte[] data = new byte[length];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 
@@ -50,7 +55,7 @@ public class RIPv2 extends BasePacket
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
+		{ entry.serialize(bb); }
 
 		return data;
 	}
@@ -68,7 +73,7 @@ public class RIPv2 extends BasePacket
         {
             RIPv2Entry entry = new RIPv2Entry();
             entry.deserialize(data, bb.position(), bb.limit()-bb.position());
-            bb.position(bb.position() +  5*4);
+            bb.position(bb.position() + RIPv2Entry.LENGTH);
             this.entries.add(entry);
         }
 		return this;
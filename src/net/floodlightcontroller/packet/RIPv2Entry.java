@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 public class RIPv2Entry 
 {
     public static final short ADDRESS_FAMILY_IPv4 = 2;
+    public static final int LENGTH = 2*2 + 4*4;
 
     protected short addressFamily;
     protected short routeTag;
@@ -74,19 +75,37 @@ public class RIPv2Entry
 
 	public byte[] serialize() 
     {
-		int length = 2*2 + 4*4;
-		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-
-		bb.putShort(this.addressFamily);
-		bb.putShort(this.routeTag);
-        bb.putInt(this.address);
-        bb.putInt(this.subnetMask);
-        bb.putInt(this.nextHopAddress);
-        bb.putInt(this.metric);
+		byte[] data = new byte[LENGTH];
+		this.serialize(ByteBuffer.wrap(data));
 		return data;
 	}
 
+    /**
+     * Write the entry at the current position of a buffer.
+     * @param bb buffer to write to
+     */
+    public void serialize(ByteBuffer bb)
+    {
+        serialize(bb, this.addressFamily, this.routeTag, this.address,
+                this.subnetMask, this.nextHopAddress, this.metric);
+    }
+
+    /**
+     * Write an entry at the current position of a buffer without creating
+     * an entry object.
+     */
+    public static void serialize(ByteBuffer bb, short addressFamily,
+            short routeTag, int address, int subnetMask, int nextHopAddress,
+            int metric)
+    {
+		bb.putShort(addressFamily);
+		bb.putShort(routeTag);
+        bb.putInt(address);
+        bb.putInt(subnetMask);
+        bb.putInt(nextHopAddress);
+        bb.putInt(metric);
+    }
+
 	public RIPv2Entry deserialize(byte[] data, int offset, int length) 
 	{
 		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -123,4 +142,16 @@ public class RIPv2Entry
         { return false; }
         return true; 
     }
+
+    public int hashCode()
+    {
+        final int prime = 5807;
+        int result = this.addressFamily;
+        result = prime * result + this.routeTag;
+        result = prime * result + this.address;
+        result = prime * result + this.subnetMask;
+        result = prime * result + this.nextHopAddress;
+        result = prime * result + this.metric;
+        return result;
+    }
 }
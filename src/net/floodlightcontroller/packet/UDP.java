@@ -30,6 +30,8 @@ public class UDP extends BasePacket {
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
+    public static short LINK_STATE_PORT = (short)5200;
+    public static short BFD_PORT = (short)3784;
 
     static {
         decodeMap = new HashMap<Short, Class<? extends IPacket>>();